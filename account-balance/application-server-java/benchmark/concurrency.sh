@@ -0,0 +1,24 @@
+#!/bin/bash
+#
+# Runs the getBalance ab benchmark at increasing concurrency against a running
+# app server and samples its resident memory and thread count at the end of each
+# run, e.g. once with fabric.executor.type=platform and once with =virtual:
+#
+#   ./benchmark/concurrency.sh $(pgrep -f application.java.server.App) platform
+#
+# Results are written to benchmark/concurrency-<label>-<concurrency>.txt.
+
+PID=${1:?usage: concurrency.sh <server pid> <label> [requests]}
+LABEL=${2:?usage: concurrency.sh <server pid> <label> [requests]}
+REQUESTS=${3:-20000}
+URL=${URL:-https://localhost:443/get-balance}
+DIR=$(cd "$(dirname "$0")" && pwd)
+
+for CONCURRENCY in 50 500 5000; do
+    OUT="$DIR/concurrency-$LABEL-$CONCURRENCY.txt"
+    ab -n "$REQUESTS" -c "$CONCURRENCY" -s 60 -T application/json \
+        -p "$DIR/getBalanceRequest.json" "$URL" > "$OUT"
+    echo "Server RSS (kB): $(ps -o rss= -p "$PID")" >> "$OUT"
+    echo "Server threads:  $(ps -o nlwp= -p "$PID")" >> "$OUT"
+    grep -E "Requests per second|Non-2xx|Failed requests|Server RSS|Server threads" "$OUT"
+done
@@ -0,0 +1,810 @@
+package application.java.server;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+import java.lang.reflect.Proxy;
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.hyperledger.fabric.gateway.Contract;
+import org.hyperledger.fabric.gateway.ContractException;
+import org.hyperledger.fabric.gateway.DefaultCommitHandlers;
+import org.hyperledger.fabric.gateway.DefaultQueryHandlers;
+import org.hyperledger.fabric.gateway.Gateway;
+import org.hyperledger.fabric.gateway.Identity;
+import org.hyperledger.fabric.gateway.Network;
+import org.hyperledger.fabric.gateway.spi.CommitHandler;
+import org.hyperledger.fabric.gateway.spi.CommitHandlerFactory;
+import org.hyperledger.fabric.gateway.spi.CommitListener;
+import org.hyperledger.fabric.gateway.spi.Query;
+import org.hyperledger.fabric.gateway.spi.QueryHandler;
+import org.hyperledger.fabric.gateway.spi.QueryHandlerFactory;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.protos.peer.ProposalResponsePackage;
+import org.hyperledger.fabric.protos.peer.TransactionPackage.TxValidationCode;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.BlockchainInfo;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.ChaincodeResponse;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.protobuf.ByteString;
+
+/**
+ * In-process stand-in for the Fabric network, picked up by FabricGatewayPool in
+ * place of FabricNetwork.builder() when the load test runs the app.
+ *
+ * Gateways built here run the account contract against an in-memory ledger.
+ * Evaluate and endorse sleep for a configurable latency. An evaluate spends its
+ * latency in the org peer the app's query handler picks; the first peer can be
+ * made slower than the others and any peer can stall as in a GC pause. A submit goes through
+ * the app's commit handler as a real one does, and its commit event fires after
+ * the commit latency. Unreachable peers and invalid (MVCC_READ_CONFLICT)
+ * commits can be injected at a given rate; with loadtest.fabric.mvcc a commit
+ * is also invalid when an account it read was written after it was endorsed,
+ * as a peer validates the read set. Every commit is also appended to
+ * the chain as a block with one transaction, which writes the account records
+ * it changed in the contract's binary format. Block 0 creates the initial
+ * accounts. Block listeners get the blocks from the one they asked for, in
+ * order, on one delivery thread. The balance each commit left in an account is
+ * kept for GetBalanceHistory.
+ */
+@Component
+public class FakeFabric implements GatewayBuilderFactory {
+
+    private static final String MSP_ID = "Org1MSP";
+
+    private static final int SCALE = 2;
+
+    @Value("${loadtest.fabric.accounts:1000}")
+    private int accounts;
+
+    @Value("${loadtest.fabric.initial-balance:1000000}")
+    private BigDecimal initialBalance;
+
+    @Value("${loadtest.fabric.evaluate-latency-ms:5}")
+    private double evaluateLatencyMillis;
+
+    @Value("${loadtest.fabric.endorse-latency-ms:20}")
+    private double endorseLatencyMillis;
+
+    @Value("${loadtest.fabric.commit-latency-ms:500}")
+    private double commitLatencyMillis;
+
+    // each latency is drawn uniformly from +-jitter around its value
+    @Value("${loadtest.fabric.jitter:0.2}")
+    private double jitter;
+
+    @Value("${loadtest.fabric.peers:1}")
+    private int peers;
+
+    // evaluate latency of peer0 relative to the others
+    @Value("${loadtest.fabric.slow-peer-factor:1}")
+    private double slowPeerFactor;
+
+    // share of evaluates on which a peer stalls for pause-ms
+    @Value("${loadtest.fabric.pause-rate:0}")
+    private double pauseRate;
+
+    @Value("${loadtest.fabric.pause-ms:200}")
+    private double pauseMillis;
+
+    @Value("${loadtest.fabric.unavailable-rate:0}")
+    private double unavailableRate;
+
+    @Value("${loadtest.fabric.invalid-rate:0}")
+    private double invalidRate;
+
+    @Value("${loadtest.fabric.mvcc:false}")
+    private boolean mvcc;
+
+    @Value("${loadtest.fabric.commit-timeout-s:30}")
+    private long commitTimeoutSeconds;
+
+    @Value("${fabric.contract:account}")
+    private String contractName;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    // in minor units at the chaincode's default scale of 2 decimal places
+    private final ConcurrentMap<String, Long> balances = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ContractException> chaincodeErrors = new ConcurrentHashMap<>();
+    private ScheduledExecutorService committer;
+
+    private final List<BlockEvent> blocks = new ArrayList<>();
+    // the block that last wrote each account, checked against the read set of a commit with mvcc
+    private final Map<String, Long> versions = new HashMap<>();
+    // the changes of each account, oldest first, as GetBalanceHistory returns them newest first
+    private final Map<String, List<Map<String, Object>>> histories = new HashMap<>();
+    // each block listener with the number of the next block it gets
+    private final ConcurrentMap<Consumer<BlockEvent>, long[]> blockListeners = new ConcurrentHashMap<>();
+    private ExecutorService blockDelivery;
+
+    @PostConstruct
+    public void init() {
+        for (int i = 1; i <= accounts; i++) {
+            balances.put("acc" + i, initialBalance.setScale(SCALE).unscaledValue().longValueExact());
+        }
+        blocks.add(block(0, true, balances.keySet()));
+        recordHistory("genesis", balances.keySet());
+        blockDelivery = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "fake-block-delivery");
+            thread.setDaemon(true);
+            return thread;
+        });
+        committer = Executors.newScheduledThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "fake-committer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        System.out.println("Fake Fabric ledger with " + accounts + " accounts");
+    }
+
+    @PreDestroy
+    public void close() {
+        committer.shutdownNow();
+        blockDelivery.shutdownNow();
+    }
+
+    public Map<String, Object> getSettings() {
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("accounts", accounts);
+        settings.put("initialBalance", initialBalance);
+        settings.put("evaluateLatencyMs", evaluateLatencyMillis);
+        settings.put("peers", peers);
+        settings.put("slowPeerFactor", slowPeerFactor);
+        settings.put("pauseRate", pauseRate);
+        settings.put("pauseMs", pauseMillis);
+        settings.put("endorseLatencyMs", endorseLatencyMillis);
+        settings.put("commitLatencyMs", commitLatencyMillis);
+        settings.put("jitter", jitter);
+        settings.put("unavailableRate", unavailableRate);
+        settings.put("invalidRate", invalidRate);
+        settings.put("mvcc", mvcc);
+        return settings;
+    }
+
+    @Override
+    public Gateway.Builder builder() {
+        CommitHandlerFactory[] commitHandler = {DefaultCommitHandlers.MSPID_SCOPE_ALLFORTX};
+        QueryHandlerFactory[] queryHandler = {DefaultQueryHandlers.MSPID_SCOPE_SINGLE};
+        Gateway.Builder[] builder = new Gateway.Builder[1];
+        builder[0] = proxy(Gateway.Builder.class, (method, args) -> {
+            if ("connect".equals(method)) {
+                return new Connection(commitHandler[0], queryHandler[0]).gateway;
+            }
+            if ("commitHandler".equals(method)) {
+                commitHandler[0] = (CommitHandlerFactory) args[0];
+            }
+            if ("queryHandler".equals(method)) {
+                queryHandler[0] = (QueryHandlerFactory) args[0];
+            }
+            return builder[0];
+        });
+        return builder[0];
+    }
+
+    private interface Handler {
+        Object handle(String method, Object[] args) throws Exception;
+    }
+
+    private static <T> T proxy(Class<T> type, Handler handler) {
+        return type.cast(Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, (proxy, method, args) -> {
+            switch (method.getName()) {
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Fake" + type.getSimpleName();
+                default:
+                    return handler.handle(method.getName(), args);
+            }
+        }));
+    }
+
+    /**
+     * One connected gateway with its network, contract and query handler, and
+     * the commit listeners the app registered on it.
+     */
+    private final class Connection {
+        private final CommitHandlerFactory commitHandlerFactory;
+        private final QueryHandler queryHandler;
+        private final Gateway gateway;
+        private final Network network;
+        private final Contract contract;
+        private final Query query;
+        private final Channel channel = mock(Channel.class);
+        private final List<Peer> orgPeers = new ArrayList<>();
+        // what every peer answers to an evaluate; the result itself comes from execute
+        private final ProposalResponse queryResponse = mock(ProposalResponse.class, withSettings().stubOnly());
+        // a single event whose answers come from the commit and peer being delivered on the current thread
+        private final BlockEvent.TransactionEvent event = mock(BlockEvent.TransactionEvent.class);
+        private final ThreadLocal<Commit> delivering = new ThreadLocal<>();
+        private final ThreadLocal<Peer> deliveringPeer = new ThreadLocal<>();
+        private final ConcurrentMap<CommitListener, String> commitListeners = new ConcurrentHashMap<>();
+        private final List<Consumer<BlockEvent>> ownBlockListeners = new CopyOnWriteArrayList<>();
+        private volatile boolean closed;
+
+        Connection(CommitHandlerFactory commitHandlerFactory, QueryHandlerFactory queryHandlerFactory) throws Exception {
+            this.commitHandlerFactory = commitHandlerFactory;
+            for (int i = 0; i < Math.max(1, peers); i++) {
+                Peer peer = mock(Peer.class);
+                when(peer.getName()).thenReturn("peer" + i + ".org1.example.com");
+                orgPeers.add(peer);
+            }
+            when(channel.getPeers(any())).thenAnswer(invocation -> new ArrayList<>(orgPeers));
+            when(channel.getPeersForOrganization(anyString())).thenAnswer(invocation -> new ArrayList<>(orgPeers));
+            when(queryResponse.getStatus()).thenReturn(ChaincodeResponse.Status.SUCCESS);
+            when(queryResponse.getProposalResponse()).thenReturn(ProposalResponsePackage.ProposalResponse.getDefaultInstance());
+            when(channel.isShutdown()).thenAnswer(invocation -> closed);
+            BlockchainInfo blockchainInfo = mock(BlockchainInfo.class);
+            when(blockchainInfo.getHeight()).thenAnswer(invocation -> height());
+            when(channel.queryBlockchainInfo()).thenReturn(blockchainInfo);
+            when(event.getPeer()).thenAnswer(invocation -> deliveringPeer.get());
+            when(event.getTransactionID()).thenAnswer(invocation -> delivering.get().transactionId);
+            when(event.isValid()).thenAnswer(invocation -> delivering.get().valid);
+            when(event.getValidationCode()).thenAnswer(invocation -> (byte) (delivering.get().valid
+                    ? TxValidationCode.VALID_VALUE : TxValidationCode.MVCC_READ_CONFLICT_VALUE));
+
+            Identity identity = proxy(Identity.class, (method, args) -> MSP_ID);
+            query = proxy(Query.class, (method, args) -> {
+                if (args[0] instanceof Peer) {
+                    return evaluateOn((Peer) args[0]);
+                }
+                Map<Peer, ProposalResponse> responses = new LinkedHashMap<>();
+                for (Object peer : (Collection<?>) args[0]) {
+                    responses.put((Peer) peer, evaluateOn((Peer) peer));
+                }
+                return responses;
+            });
+            contract = proxy(Contract.class, (method, args) -> {
+                switch (method) {
+                    case "evaluateTransaction":
+                        return evaluate((String) args[0], (String[]) args[1]);
+                    case "submitTransaction":
+                        return submit((String) args[0], (String[]) args[1]);
+                    default:
+                        throw new UnsupportedOperationException(method);
+                }
+            });
+            network = proxy(Network.class, (method, args) -> {
+                switch (method) {
+                    case "getContract":
+                        return contract;
+                    case "getGateway":
+                        return gateway();
+                    case "getChannel":
+                        return channel;
+                    case "addBlockListener": {
+                        @SuppressWarnings("unchecked")
+                        Consumer<BlockEvent> listener = (Consumer<BlockEvent>) args[args.length - 1];
+                        ownBlockListeners.add(listener);
+                        addBlockListener(listener, args.length == 2 ? (Long) args[0] : -1);
+                        return listener;
+                    }
+                    case "addCommitListener":
+                        commitListeners.put((CommitListener) args[0], (String) args[2]);
+                        return args[0];
+                    case "removeCommitListener":
+                        commitListeners.remove(args[0]);
+                        return null;
+                    case "removeBlockListener":
+                        ownBlockListeners.remove(args[0]);
+                        blockListeners.remove(args[0]);
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method);
+                }
+            });
+            gateway = proxy(Gateway.class, (method, args) -> {
+                switch (method) {
+                    case "getNetwork":
+                        return network;
+                    case "getIdentity":
+                        return identity;
+                    case "close":
+                        closed = true;
+                        ownBlockListeners.forEach(blockListeners::remove);
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method);
+                }
+            });
+            queryHandler = queryHandlerFactory.create(network);
+        }
+
+        private Gateway gateway() {
+            return gateway;
+        }
+
+        private byte[] evaluate(String name, String[] args) throws Exception {
+            checkAvailable();
+            queryHandler.evaluate(query);
+            return execute(name, args).result;
+        }
+
+        private ProposalResponse evaluateOn(Peer peer) throws InterruptedException {
+            pause(evaluateLatencyMillis * (peer == orgPeers.get(0) ? slowPeerFactor : 1));
+            if (ThreadLocalRandom.current().nextDouble() < pauseRate) {
+                pause(pauseMillis);
+            }
+            return queryResponse;
+        }
+
+        // endorse, then order and wait for the commit through the app's commit handler like TransactionImpl.submit
+        private byte[] submit(String name, String[] args) throws Exception {
+            pause(endorseLatencyMillis);
+            checkAvailable();
+            Execution execution;
+            Map<String, Long> readVersions = new HashMap<>();
+            // the execution and the versions it read are taken between two commits
+            synchronized (blocks) {
+                execution = execute(name, args);
+                for (String accountId : execution.accountIds) {
+                    readVersions.put(accountId, versions.getOrDefault(accountId, 0L));
+                }
+            }
+            String transactionId = UUID.randomUUID().toString().replace("-", "");
+            CommitHandler commitHandler = commitHandlerFactory.create(transactionId, network);
+            commitHandler.startListening();
+            try {
+                Commit commit = new Commit(transactionId, ThreadLocalRandom.current().nextDouble() >= invalidRate, execution, readVersions);
+                committer.schedule(() -> deliver(commit), jittered(commitLatencyMillis), TimeUnit.NANOSECONDS);
+                commitHandler.waitForEvents(commitTimeoutSeconds, TimeUnit.SECONDS);
+            } catch (ContractException | TimeoutException | InterruptedException | RuntimeException e) {
+                commitHandler.cancelListening();
+                throw e;
+            }
+            return execution.result;
+        }
+
+        private void deliver(Commit commit) {
+            commitBlock(commit);
+            List<CommitListener> listeners = new ArrayList<>();
+            for (Map.Entry<CommitListener, String> entry : commitListeners.entrySet()) {
+                if (entry.getValue().equals(commit.transactionId)) {
+                    listeners.add(entry.getKey());
+                }
+            }
+            delivering.set(commit);
+            try {
+                // each org peer reports the commit, as the default commit handler waits for all of them
+                for (Peer peer : orgPeers) {
+                    deliveringPeer.set(peer);
+                    for (CommitListener listener : listeners) {
+                        listener.acceptCommit(event);
+                    }
+                }
+            } catch (RuntimeException e) {
+                System.err.println(e);
+            } finally {
+                delivering.remove();
+                deliveringPeer.remove();
+            }
+        }
+
+        private void checkAvailable() throws ContractException {
+            if (closed || ThreadLocalRandom.current().nextDouble() < unavailableRate) {
+                throw new ContractException("No valid proposal responses received. 0 peer error responses: UNAVAILABLE: io exception");
+            }
+        }
+    }
+
+    private static final class Commit {
+        private final String transactionId;
+        private final Execution execution;
+        private final Map<String, Long> readVersions;
+        // decided when the commit is appended to the chain
+        private boolean valid;
+
+        Commit(String transactionId, boolean valid, Execution execution, Map<String, Long> readVersions) {
+            this.transactionId = transactionId;
+            this.valid = valid;
+            this.execution = execution;
+            this.readVersions = readVersions;
+        }
+    }
+
+    /**
+     * The result of a simulated transaction, the writes it applies once
+     * committed and the accounts they change.
+     */
+    private static final class Execution {
+        private final byte[] result;
+        private final Runnable writes;
+        private final Collection<String> accountIds;
+
+        Execution(byte[] result, Runnable writes, Collection<String> accountIds) {
+            this.result = result;
+            this.writes = writes;
+            this.accountIds = accountIds;
+        }
+    }
+
+    private long height() {
+        synchronized (blocks) {
+            return blocks.size();
+        }
+    }
+
+    // applies the writes of a commit and appends its block in one step, so blocks follow the commit order
+    private void commitBlock(Commit commit) {
+        synchronized (blocks) {
+            if (mvcc && commit.valid) {
+                for (Map.Entry<String, Long> read : commit.readVersions.entrySet()) {
+                    if (!read.getValue().equals(versions.getOrDefault(read.getKey(), 0L))) {
+                        commit.valid = false;
+                    }
+                }
+            }
+            if (commit.valid) {
+                commit.execution.writes.run();
+                for (String accountId : commit.execution.accountIds) {
+                    versions.put(accountId, (long) blocks.size());
+                }
+                recordHistory(commit.transactionId, commit.execution.accountIds);
+            }
+            blocks.add(block(blocks.size(), commit.valid, commit.valid ? commit.execution.accountIds : Collections.emptyList()));
+        }
+        blockDelivery.execute(this::deliverBlocks);
+    }
+
+    // called with the blocks lock held
+    private void recordHistory(String transactionId, Collection<String> accountIds) {
+        String timestamp = Instant.now().toString();
+        for (String accountId : accountIds) {
+            Map<String, Object> change = new LinkedHashMap<>();
+            change.put("balance", decimal(balances.get(accountId)));
+            change.put("isDelete", false);
+            change.put("timestamp", timestamp);
+            change.put("txId", transactionId);
+            histories.computeIfAbsent(accountId, id -> new ArrayList<>()).add(change);
+        }
+    }
+
+    // fromBlock -1 starts from the next block, like the newest block of a real channel
+    private void addBlockListener(Consumer<BlockEvent> listener, long fromBlock) {
+        blockListeners.put(listener, new long[] {fromBlock < 0 ? height() : fromBlock});
+        blockDelivery.execute(this::deliverBlocks);
+    }
+
+    // only ever runs on the delivery thread, so each listener gets its blocks once and in order
+    private void deliverBlocks() {
+        for (Map.Entry<Consumer<BlockEvent>, long[]> entry : blockListeners.entrySet()) {
+            long[] next = entry.getValue();
+            for (long height = height(); next[0] < height && blockListeners.containsKey(entry.getKey()); next[0]++) {
+                BlockEvent block;
+                synchronized (blocks) {
+                    block = blocks.get((int) next[0]);
+                }
+                try {
+                    entry.getKey().accept(block);
+                } catch (RuntimeException e) {
+                    System.err.println(e);
+                }
+            }
+        }
+    }
+
+    // one transaction writing the current record of each account
+    private BlockEvent block(long number, boolean valid, Collection<String> accountIds) {
+        KvRwset.KVRWSet.Builder writes = KvRwset.KVRWSet.newBuilder();
+        for (String accountId : accountIds) {
+            writes.addWrites(KvRwset.KVWrite.newBuilder()
+                    .setKey(accountId)
+                    .setValue(ByteString.copyFrom(record(balances.get(accountId)))));
+        }
+        TxReadWriteSetInfo rwSet = new TxReadWriteSetInfo(Rwset.TxReadWriteSet.newBuilder()
+                .setDataModel(Rwset.TxReadWriteSet.DataModel.KV)
+                .addNsRwset(Rwset.NsReadWriteSet.newBuilder()
+                        .setNamespace(contractName)
+                        .setRwset(writes.build().toByteString()))
+                .build());
+        BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo action = mock(BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo.class);
+        when(action.getTxReadWriteSet()).thenReturn(rwSet);
+        BlockEvent.TransactionEvent transaction = mock(BlockEvent.TransactionEvent.class);
+        when(transaction.isValid()).thenReturn(valid);
+        when(transaction.getTransactionActionInfos()).thenReturn(Collections.singletonList(action));
+        BlockEvent block = mock(BlockEvent.class);
+        when(block.getBlockNumber()).thenReturn(number);
+        when(block.getTransactionEvents()).thenReturn(Collections.singletonList(transaction));
+        return block;
+    }
+
+    // AccountCodec version 2: version, scale, zigzag varint balance, then no account ID or public key
+    private static byte[] record(long minorUnits) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16);
+        out.write(2);
+        out.write(SCALE);
+        long zigzag = minorUnits << 1 ^ minorUnits >> 63;
+        while ((zigzag & ~0x7FL) != 0) {
+            out.write((int) (zigzag & 0x7F | 0x80));
+            zigzag >>>= 7;
+        }
+        out.write((int) zigzag);
+        out.write(0);
+        out.write(0);
+        return out.toByteArray();
+    }
+
+    // the account contract's functions used by the app, with its error codes
+    private Execution execute(String name, String[] args) throws Exception {
+        switch (name) {
+            case "GetBalance":
+                return read(decimal(existing(args[0])));
+            case "ReadAccount": {
+                Map<String, Object> account = new LinkedHashMap<>();
+                account.put("accountID", args[0]);
+                account.put("balance", existing(args[0]));
+                account.put("publicKey", "pk" + args[0].substring(3));
+                return read(objectMapper.writeValueAsString(account));
+            }
+            case "GetBalances": {
+                Map<String, Map<String, Object>> results = new LinkedHashMap<>();
+                for (JsonNode accountId : objectMapper.readTree(args[0])) {
+                    Long balance = balances.get(accountId.asText());
+                    Map<String, Object> result = new LinkedHashMap<>();
+                    result.put("balance", balance == null ? null : decimal(balance));
+                    result.put("error", balance == null ? "ACCOUNT_NOT_FOUND" : null);
+                    results.put(accountId.asText(), result);
+                }
+                return read(objectMapper.writeValueAsString(results));
+            }
+            case "GetAccountsByPublicKey": {
+                // each fake account has its own key, pk<n> for acc<n>, so there is never a second page
+                Map<String, Object> page = new LinkedHashMap<>();
+                Map<String, String> accountBalances = new LinkedHashMap<>();
+                Long balance = args[0].startsWith("pk") ? balances.get("acc" + args[0].substring(2)) : null;
+                if (balance != null) {
+                    accountBalances.put("acc" + args[0].substring(2), decimal(balance));
+                }
+                page.put("accounts", accountBalances);
+                page.put("bookmark", "");
+                return read(objectMapper.writeValueAsString(page));
+            }
+            case "ListAccounts": {
+                // the bookmark is the first account ID of the next page, like the peer's range query bookmark
+                int pageSize = Integer.parseInt(args[0]);
+                Map<String, String> accountBalances = new LinkedHashMap<>();
+                String bookmark = "";
+                for (String accountId : new TreeSet<>(balances.keySet()).tailSet(args[1])) {
+                    if (accountBalances.size() == pageSize) {
+                        bookmark = accountId;
+                        break;
+                    }
+                    accountBalances.put(accountId, decimal(balances.get(accountId)));
+                }
+                Map<String, Object> page = new LinkedHashMap<>();
+                page.put("accounts", accountBalances);
+                page.put("bookmark", bookmark);
+                return read(objectMapper.writeValueAsString(page));
+            }
+            case "GetBalanceHistory": {
+                int pageSize = Integer.parseInt(args[1]);
+                List<Map<String, Object>> changes = new ArrayList<>();
+                String bookmark = "";
+                synchronized (blocks) {
+                    List<Map<String, Object>> history = histories.getOrDefault(args[0], Collections.emptyList());
+                    int from = history.size() - 1;
+                    if (!args[2].isEmpty()) {
+                        // timestamp/txId, or a bare txId, as the chaincode takes it
+                        String afterTxId = args[2].substring(args[2].lastIndexOf('/') + 1);
+                        while (from >= 0 && !afterTxId.equals(history.get(from).get("txId"))) {
+                            from--;
+                        }
+                        if (from < 0) {
+                            throw chaincodeError(String.format("Bookmark %s is not in the history of account %s", args[2], args[0]),
+                                "INVALID_BOOKMARK");
+                        }
+                        from--;
+                    } else if (from < 0) {
+                        throw chaincodeError(String.format("Account %s does not exist", args[0]), "ACCOUNT_NOT_FOUND");
+                    }
+                    for (int i = from; i >= 0; i--) {
+                        if (changes.size() == pageSize) {
+                            bookmark = changes.get(pageSize - 1).get("timestamp") + "/" + changes.get(pageSize - 1).get("txId");
+                            break;
+                        }
+                        changes.add(history.get(i));
+                    }
+                }
+                Map<String, Object> page = new LinkedHashMap<>();
+                page.put("bookmark", bookmark);
+                page.put("changes", changes);
+                return read(objectMapper.writeValueAsString(page));
+            }
+            case "GetAccountStats": {
+                Map<String, Object> stats = new LinkedHashMap<>();
+                stats.put("accounts", balances.size());
+                stats.put("totalSupply", decimal(balances.values().stream().mapToLong(Long::longValue).sum()));
+                return read(objectMapper.writeValueAsString(stats));
+            }
+            case "CreateAccounts": {
+                Map<String, Long> created = new LinkedHashMap<>();
+                List<Map<String, Object>> results = new ArrayList<>();
+                int index = 0;
+                for (JsonNode entry : objectMapper.readTree(args[0])) {
+                    String accountId = entry.path(0).asText(null);
+                    Map<String, Object> result = new LinkedHashMap<>();
+                    result.put("accountID", accountId);
+                    try {
+                        if (entry.size() != 3 || accountId == null || accountId.isEmpty()) {
+                            throw chaincodeError(String.format("Entry %d must be [accountID, balance, publicKey]", index), "INVALID_ACCOUNT");
+                        }
+                        long balance = minorUnits(entry.get(1).asText(), "INVALID_BALANCE");
+                        if (created.containsKey(accountId) || balances.containsKey(accountId)) {
+                            throw chaincodeError(String.format("Account %s already exists", accountId), "ACCOUNT_ALREADY_EXISTS");
+                        }
+                        created.put(accountId, balance);
+                        result.put("balance", decimal(balance));
+                        result.put("error", null);
+                        result.put("message", null);
+                    } catch (ContractException e) {
+                        result.put("balance", null);
+                        result.put("error", e.getProposalResponses().iterator().next().getProposalResponse().getResponse().getPayload().toStringUtf8());
+                        result.put("message", e.getMessage());
+                    }
+                    results.add(result);
+                    index++;
+                }
+                return new Execution(objectMapper.writeValueAsBytes(results), () -> balances.putAll(created), created.keySet());
+            }
+            case "TransferCoins": {
+                long amount = minorUnits(args[2]);
+                long remaining = transfer(args[0], args[1], amount, new HashMap<>());
+                return new Execution(decimal(remaining).getBytes(), () -> apply(args[0], args[1], amount), Arrays.asList(args[0], args[1]));
+            }
+            case "BatchTransfer": {
+                Map<String, Long> batchBalances = new HashMap<>();
+                List<Map<String, Object>> results = new ArrayList<>();
+                List<Runnable> writes = new ArrayList<>();
+                Set<String> accountIds = new LinkedHashSet<>();
+                for (JsonNode leg : objectMapper.readTree(args[0])) {
+                    String from = leg.get("from").asText();
+                    String to = leg.get("to").asText();
+                    String amountText = leg.get("amount").asText();
+                    Map<String, Object> result = new LinkedHashMap<>();
+                    try {
+                        long amount = minorUnits(amountText);
+                        result.put("balance", decimal(transfer(from, to, amount, batchBalances)));
+                        result.put("error", null);
+                        result.put("message", null);
+                        writes.add(() -> apply(from, to, amount));
+                        accountIds.add(from);
+                        accountIds.add(to);
+                    } catch (ContractException e) {
+                        result.put("balance", null);
+                        result.put("error", e.getProposalResponses().iterator().next().getProposalResponse().getResponse().getPayload().toStringUtf8());
+                        result.put("message", e.getMessage());
+                    }
+                    results.add(result);
+                }
+                return new Execution(objectMapper.writeValueAsBytes(results), () -> writes.forEach(Runnable::run), accountIds);
+            }
+            default:
+                throw chaincodeError("Undefined contract method called", "UNDEFINED_FUNCTION");
+        }
+    }
+
+    private static Execution read(String result) {
+        return new Execution(result.getBytes(), () -> { }, Collections.emptyList());
+    }
+
+    private long existing(String accountId) throws ContractException {
+        Long balance = balances.get(accountId);
+        if (balance == null) {
+            throw chaincodeError(String.format("Account %s does not exist", accountId), "ACCOUNT_NOT_FOUND");
+        }
+        return balance;
+    }
+
+    // validates a transfer against the balances as updated by the earlier legs of the same transaction
+    private long transfer(String from, String to, long amount, Map<String, Long> pending) throws ContractException {
+        Long fromBalance = pending.containsKey(from) ? pending.get(from) : balances.get(from);
+        Long toBalance = pending.containsKey(to) ? pending.get(to) : balances.get(to);
+        if (fromBalance == null) {
+            throw chaincodeError(String.format("From account %s does not exist", from), "ACCOUNT_NOT_FOUND");
+        }
+        if (toBalance == null) {
+            throw chaincodeError(String.format("To account %s does not exist", to), "ACCOUNT_NOT_FOUND");
+        }
+        if (amount <= 0) {
+            throw chaincodeError(String.format("Tranfer amount must be larger than zero, received %s", decimal(amount)), "INVALID_TRANSFER_AMOUNT");
+        }
+        if (fromBalance < amount) {
+            throw chaincodeError(String.format("Insufficient account balance %s for transfer %s", decimal(fromBalance), decimal(amount)), "INSUFFICIENT_BALANCE");
+        }
+        pending.put(from, fromBalance - amount);
+        pending.put(to, pending.containsKey(to) ? pending.get(to) + amount : toBalance + amount);
+        return fromBalance - amount;
+    }
+
+    private void apply(String from, String to, long amount) {
+        balances.merge(from, -amount, Long::sum);
+        balances.merge(to, amount, Long::sum);
+    }
+
+    private long minorUnits(String amount) throws ContractException {
+        return minorUnits(amount, "INVALID_TRANSFER_AMOUNT");
+    }
+
+    private long minorUnits(String amount, String errorCode) throws ContractException {
+        try {
+            return new BigDecimal(amount.trim()).setScale(SCALE).unscaledValue().longValueExact();
+        } catch (ArithmeticException | NumberFormatException e) {
+            throw chaincodeError(String.format("Invalid amount %s, expected a decimal with at most %d decimal places", amount, SCALE),
+                errorCode);
+        }
+    }
+
+    private static String decimal(long minorUnits) {
+        return BigDecimal.valueOf(minorUnits, SCALE).toPlainString();
+    }
+
+    // a chaincode error as the gateway reports it, with the error code as the peer response payload
+    private ContractException chaincodeError(String message, String errorCode) {
+        ContractException template = chaincodeErrors.computeIfAbsent(errorCode, code -> {
+            ProposalResponse response = mock(ProposalResponse.class);
+            when(response.getProposalResponse()).thenReturn(ProposalResponsePackage.ProposalResponse.newBuilder()
+                    .setResponse(ProposalResponsePackage.Response.newBuilder()
+                            .setStatus(500)
+                            .setMessage(code)
+                            .setPayload(ByteString.copyFromUtf8(code)))
+                    .build());
+            return new ContractException(code, Collections.singletonList(response));
+        });
+        return new ContractException(message, template.getProposalResponses());
+    }
+
+    private void pause(double millis) throws InterruptedException {
+        if (millis > 0) {
+            TimeUnit.NANOSECONDS.sleep(jittered(millis));
+        }
+    }
+
+    private long jittered(double millis) {
+        double factor = 1 + jitter * (2 * ThreadLocalRandom.current().nextDouble() - 1);
+        return (long) (millis * factor * 1_000_000);
+    }
+}
@@ -0,0 +1,317 @@
+package application.java.server;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.web.servlet.context.ServletWebServerApplicationContext;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+
+/**
+ * Load test for the app server against FakeFabric.
+ *
+ * Starts the app in-process on a random port with the fake network, runs each
+ * scenario in loadtest.scenarios against it and writes a JSON report with
+ * throughput, latency percentiles and errors by kind. A scenario is
+ * mode:endpoint, where mode is closed (loadtest.concurrency clients that each
+ * wait for their response) or open (requests started at loadtest.rate per
+ * second whatever the responses do, with latency measured from the intended
+ * start so a stalled server is not hidden), and endpoint is get-balance,
+ * send, accounts-by-public-key, accounts, account-stats, balance-history or create-accounts
+ * (which uploads loadtest.upload-size new accounts per request and needs
+ * --accounts.upload.enabled=true). Any app or loadtest.* property can be given
+ * as --key=value.
+ */
+public final class LoadTest {
+
+    private final Environment env;
+    private final String baseUrl;
+    private final int accounts;
+    private final AtomicInteger requestIds = new AtomicInteger();
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    private LoadTest(Environment env, int port) {
+        this.env = env;
+        this.baseUrl = "http://localhost:" + port;
+        this.accounts = env.getProperty("loadtest.fabric.accounts", Integer.class, 1000);
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> appArgs = new ArrayList<>();
+        appArgs.add("--server.port=0");
+        appArgs.add("--server.ssl.enabled=false");
+        appArgs.add("--logging.level.root=WARN");
+        for (String arg : args) {
+            String key = arg.split("=", 2)[0];
+            appArgs.removeIf(defaultArg -> defaultArg.startsWith(key + "="));
+            appArgs.add(arg);
+        }
+
+        ConfigurableApplicationContext context = SpringApplication.run(App.class, appArgs.toArray(new String[0]));
+        int exitCode = 0;
+        try {
+            int port = ((ServletWebServerApplicationContext) context).getWebServer().getPort();
+            LoadTest loadTest = new LoadTest(context.getEnvironment(), port);
+            Map<String, Object> report = loadTest.run();
+            report.put("fabric", context.getBean(FakeFabric.class).getSettings());
+            report.put("gatewayPool", context.getBean(FabricGatewayPool.class).getStats());
+            loadTest.write(report);
+        } catch (Exception e) {
+            System.err.println(e);
+            exitCode = 1;
+        } finally {
+            SpringApplication.exit(context);
+        }
+        System.exit(exitCode);
+    }
+
+    private Map<String, Object> run() throws Exception {
+        String[] scenarios = env.getProperty("loadtest.scenarios", "closed:get-balance,closed:send,open:get-balance,open:send").split(",");
+        long warmupSeconds = env.getProperty("loadtest.warmup-s", Long.class, 5L);
+        long durationSeconds = env.getProperty("loadtest.duration-s", Long.class, 20L);
+
+        Map<String, Object> settings = new LinkedHashMap<>();
+        settings.put("warmupS", warmupSeconds);
+        settings.put("durationS", durationSeconds);
+        settings.put("concurrency", env.getProperty("loadtest.concurrency", Integer.class, 64));
+        settings.put("rate", env.getProperty("loadtest.rate", Integer.class, 500));
+        settings.put("maxOutstanding", env.getProperty("loadtest.max-outstanding", Integer.class, 5000));
+        settings.put("commitStrategy", env.getProperty("fabric.commit.strategy", "sync"));
+        settings.put("transferBatching", env.getProperty("transfer.batch.enabled", "false"));
+        settings.put("balanceCache", env.getProperty("balance.cache.enabled", "true"));
+
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (String scenario : scenarios) {
+            String[] parts = scenario.trim().split(":");
+            String mode = parts[0];
+            String endpoint = parts[1];
+            System.out.println("Load test " + scenario + ": warming up for " + warmupSeconds + "s");
+            drive(mode, endpoint, warmupSeconds, new Stats());
+            System.out.println("Load test " + scenario + ": measuring for " + durationSeconds + "s");
+            Stats stats = new Stats();
+            long start = System.nanoTime();
+            drive(mode, endpoint, durationSeconds, stats);
+            double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+            Map<String, Object> result = stats.toReport(elapsedSeconds);
+            result.put("scenario", scenario.trim());
+            System.out.println("Load test " + scenario + ": " + result);
+            results.add(result);
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("timestamp", Instant.now().toString());
+        report.put("settings", settings);
+        report.put("scenarios", results);
+        return report;
+    }
+
+    private void drive(String mode, String endpoint, long seconds, Stats stats) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(seconds);
+        if ("closed".equals(mode)) {
+            int concurrency = env.getProperty("loadtest.concurrency", Integer.class, 64);
+            ExecutorService clients = Executors.newFixedThreadPool(concurrency);
+            for (int i = 0; i < concurrency; i++) {
+                clients.execute(() -> {
+                    while (System.nanoTime() < deadline) {
+                        call(endpoint, System.nanoTime(), stats);
+                    }
+                });
+            }
+            clients.shutdown();
+            clients.awaitTermination(seconds + 60, TimeUnit.SECONDS);
+        } else if ("open".equals(mode)) {
+            int rate = env.getProperty("loadtest.rate", Integer.class, 500);
+            Semaphore outstanding = new Semaphore(env.getProperty("loadtest.max-outstanding", Integer.class, 5000));
+            ExecutorService clients = Executors.newCachedThreadPool();
+            long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+            for (long intended = System.nanoTime(); intended < deadline; intended += interval) {
+                LockSupport.parkNanos(intended - System.nanoTime());
+                if (!outstanding.tryAcquire()) {
+                    stats.error("dropped");
+                    continue;
+                }
+                long start = intended;
+                clients.execute(() -> {
+                    try {
+                        call(endpoint, start, stats);
+                    } finally {
+                        outstanding.release();
+                    }
+                });
+            }
+            clients.shutdown();
+            clients.awaitTermination(60, TimeUnit.SECONDS);
+        } else {
+            throw new IllegalArgumentException("Unknown load test mode " + mode);
+        }
+    }
+
+    private void call(String endpoint, long start, Stats stats) {
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) new URL(baseUrl + "/" + endpoint).openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setConnectTimeout(10000);
+            connection.setReadTimeout(60000);
+            connection.setDoOutput(true);
+            try (OutputStream out = connection.getOutputStream()) {
+                out.write("create-accounts".equals(endpoint) ? upload() : objectMapper.writeValueAsBytes(request(endpoint)));
+            }
+            int status = connection.getResponseCode();
+            String body = read(status < 400 ? connection.getInputStream() : connection.getErrorStream());
+            stats.latency(System.nanoTime() - start);
+            if (status < 300) {
+                stats.ok();
+            } else {
+                stats.error(status + " " + errorKind(body));
+            }
+        } catch (Exception e) {
+            stats.latency(System.nanoTime() - start);
+            stats.error(e instanceof SocketTimeoutException ? "timeout" : e.getClass().getSimpleName());
+            // a connection is kept alive for the next request only after a fully read response
+            if (connection != null) {
+                connection.disconnect();
+            }
+        }
+    }
+
+    private Map<String, Object> request(String endpoint) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Map<String, Object> params = new LinkedHashMap<>();
+        String publicKey = "pk";
+        if ("send".equals(endpoint)) {
+            int from = random.nextInt(accounts) + 1;
+            int to = from % accounts + 1;
+            params.put("fromAccountId", "acc" + from);
+            params.put("toAccountId", "acc" + to);
+            params.put("amount", "1");
+        } else if ("accounts-by-public-key".equals(endpoint)) {
+            publicKey = "pk" + (random.nextInt(accounts) + 1);
+        } else {
+            params.put("accountId", "acc" + (random.nextInt(accounts) + 1));
+        }
+        Map<String, Object> request = new LinkedHashMap<>();
+        request.put("id", requestIds.incrementAndGet());
+        request.put("timestamp", String.valueOf(System.currentTimeMillis()));
+        request.put("params", params);
+        request.put("publicKey", publicKey);
+        return request;
+    }
+
+    // one [accountID, balance, publicKey] line per new account, with IDs no other request uses
+    private byte[] upload() throws Exception {
+        int size = env.getProperty("loadtest.upload-size", Integer.class, 1000);
+        int upload = requestIds.incrementAndGet();
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            lines.append(objectMapper.writeValueAsString(Arrays.asList("up" + upload + "-" + i, "100", "pk"))).append('\n');
+        }
+        return lines.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // the exception class name the server put in the body, or the body itself when it is short
+    private static String errorKind(String body) {
+        int colon = body.indexOf(':');
+        String kind = colon > 0 ? body.substring(0, colon) : body;
+        kind = kind.substring(kind.lastIndexOf('.') + 1);
+        return kind.length() > 60 ? kind.substring(0, 60) : kind;
+    }
+
+    private static String read(InputStream in) throws Exception {
+        if (in == null) {
+            return "";
+        }
+        try (InputStream stream = in) {
+            byte[] buffer = new byte[4096];
+            StringBuilder body = new StringBuilder();
+            for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                body.append(new String(buffer, 0, n, StandardCharsets.UTF_8));
+            }
+            return body.toString();
+        }
+    }
+
+    private void write(Map<String, Object> report) throws Exception {
+        File file = new File(env.getProperty("loadtest.report", "build/reports/loadtest/loadtest-report.json"));
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        objectMapper.enable(SerializationFeature.INDENT_OUTPUT).writeValue(file, report);
+        System.out.println("Load test report written to " + file.getAbsolutePath());
+    }
+
+    /**
+     * Latencies and outcomes of one scenario run.
+     */
+    private static final class Stats {
+        // 1 microsecond to 5 minutes at 3 significant digits
+        private final Histogram latencies = new ConcurrentHistogram(TimeUnit.MINUTES.toNanos(5), 3);
+        private final AtomicLong ok = new AtomicLong();
+        private final ConcurrentMap<String, AtomicLong> errors = new ConcurrentHashMap<>();
+
+        void latency(long nanos) {
+            latencies.recordValue(Math.min(Math.max(nanos, 1000), latencies.getHighestTrackableValue()));
+        }
+
+        void ok() {
+            ok.incrementAndGet();
+        }
+
+        void error(String kind) {
+            errors.computeIfAbsent(kind, k -> new AtomicLong()).incrementAndGet();
+        }
+
+        Map<String, Object> toReport(double elapsedSeconds) {
+            long failed = 0;
+            Map<String, Object> errorCounts = new LinkedHashMap<>();
+            for (Map.Entry<String, AtomicLong> entry : errors.entrySet()) {
+                errorCounts.put(entry.getKey(), entry.getValue().get());
+                failed += entry.getValue().get();
+            }
+            Map<String, Object> latency = new LinkedHashMap<>();
+            latency.put("mean", latencies.getMean() / 1e6);
+            latency.put("p50", latencies.getValueAtPercentile(50) / 1e6);
+            latency.put("p90", latencies.getValueAtPercentile(90) / 1e6);
+            latency.put("p99", latencies.getValueAtPercentile(99) / 1e6);
+            latency.put("p999", latencies.getValueAtPercentile(99.9) / 1e6);
+            latency.put("max", latencies.getMaxValue() / 1e6);
+
+            Map<String, Object> result = new LinkedHashMap<>();
+            result.put("requests", ok.get() + failed);
+            result.put("succeeded", ok.get());
+            result.put("failed", failed);
+            result.put("throughputPerS", ok.get() / elapsedSeconds);
+            result.put("latencyMs", latency);
+            result.put("errors", errorCounts);
+            return result;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package application.java.server;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Reads the balances out of the account contract's world state values, as
+ * written by its AccountCodec: a version 2 record is a version byte, the
+ * scale, the balance in minor units as a zigzag varint, then the account ID
+ * and public key; a version 1 record holds the balance as an IEEE 754 double;
+ * older records are JSON. A delta credit is its scale and a zigzag varint.
+ */
+public final class AccountRecords {
+
+    private static final byte VERSION_1 = 1;
+    private static final byte VERSION_2 = 2;
+
+    // composite keys start with U+0000 and end every segment with it, see CompositeKey in the shim
+    private static final String DELTA_PREFIX = "\u0000delta\u0000";
+
+    private static final ObjectMapper JSON = new ObjectMapper();
+
+    private AccountRecords() {
+    }
+
+    // the account of a delta credit key, or null for any other key
+    public static String deltaAccount(String key) {
+        if (!key.startsWith(DELTA_PREFIX)) {
+            return null;
+        }
+        int end = key.indexOf('\u0000', DELTA_PREFIX.length());
+        return end < 0 ? null : key.substring(DELTA_PREFIX.length(), end);
+    }
+
+    // the account whose balance a write to key changes: the account of a record or of a delta credit, null for other keys
+    public static String balanceAccount(String key) {
+        return isAccountKey(key) ? key : deltaAccount(key);
+    }
+
+    // whether the key is an account record rather than one of the contract's composite keys
+    public static boolean isAccountKey(String key) {
+        return !key.isEmpty() && key.charAt(0) != '\u0000';
+    }
+
+    // the balance of an account record in minor units at scale
+    public static long balance(byte[] record, int scale) throws IOException {
+        if (record[0] == VERSION_2) {
+            return rescale(readZigzag(record, 2), record[1], scale);
+        }
+        if (record[0] == VERSION_1) {
+            long bits = 0;
+            for (int i = 1; i <= 8; i++) {
+                bits = bits << 8 | record[i] & 0xFF;
+            }
+            return fromDouble(Double.toString(Double.longBitsToDouble(bits)), scale);
+        }
+        JsonNode balance = JSON.readTree(record).get("balance");
+        return balance == null || !balance.isNumber() ? 0L : fromDouble(balance.asText(), scale);
+    }
+
+    // the amount of a delta credit in minor units at scale
+    public static long delta(byte[] delta, int scale) {
+        return rescale(readZigzag(delta, 1), delta[0], scale);
+    }
+
+    private static long readZigzag(byte[] bytes, int offset) {
+        long value = 0;
+        for (int shift = 0;; shift += 7) {
+            byte b = bytes[offset++];
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value >>> 1 ^ -(value & 1);
+            }
+        }
+    }
+
+    private static long rescale(long minorUnits, int fromScale, int toScale) {
+        if (fromScale == toScale) {
+            return minorUnits;
+        }
+        return BigDecimal.valueOf(minorUnits, fromScale).setScale(toScale, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+    }
+
+    private static long fromDouble(String value, int scale) {
+        if ("NaN".equals(value) || value.endsWith("Infinity")) {
+            return 0L;
+        }
+        return new BigDecimal(value).setScale(scale, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+    }
+}
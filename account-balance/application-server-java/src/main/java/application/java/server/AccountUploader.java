@@ -0,0 +1,297 @@
+package application.java.server;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Creates the accounts of an upload file with CreateAccounts transactions.
+ *
+ * The file has one [accountID, balance, publicKey] JSON array per line. Lines
+ * are cut into chunks of at most accounts.upload.max-accounts entries and
+ * accounts.upload.max-bytes of payload, and at most accounts.upload.parallelism
+ * chunks are submitted at a time. The file is read only as fast as chunks are
+ * submitted, so memory stays bounded whatever its size.
+ *
+ * Each upload is read on one of accounts.upload.max-concurrent threads of its
+ * own, never on the Fabric executor its chunks run on, and the report is
+ * composed from the chunk futures without a thread waiting for them. Uploads
+ * over that many running and as many waiting are rejected. The report counts
+ * every failed line but lists only the first accounts.upload.max-failures.
+ * A line whose CreateAccounts result cannot be read, because the result is
+ * not one entry per account or an entry has no error field, is counted as
+ * unknown rather than failed: its transaction committed, so the account may
+ * well exist.
+ */
+@Component
+public class AccountUploader {
+
+    @Value("${accounts.upload.enabled:false}")
+    private boolean enabled;
+
+    @Value("${accounts.upload.max-accounts:500}")
+    private int maxAccounts;
+
+    @Value("${accounts.upload.max-bytes:262144}")
+    private int maxBytes;
+
+    @Value("${accounts.upload.parallelism:4}")
+    private int parallelism;
+
+    @Value("${accounts.upload.max-concurrent:2}")
+    private int maxConcurrent;
+
+    @Value("${accounts.upload.max-failures:100}")
+    private int maxFailures;
+
+    @Autowired
+    private FabricGatewayPool gatewayPool;
+
+    @Autowired
+    private CommitTracker commitTracker;
+
+    @Autowired
+    private StageMetrics stageMetrics;
+
+    @Autowired
+    private ExecutorService fabricExecutor;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private ExecutorService uploadExecutor;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        AtomicInteger count = new AtomicInteger();
+        uploadExecutor = new ThreadPoolExecutor(maxConcurrent, maxConcurrent, 60, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(maxConcurrent), runnable -> {
+                Thread thread = new Thread(runnable, "account-upload-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @PreDestroy
+    public void close() {
+        if (uploadExecutor != null) {
+            uploadExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Completes with the report once every chunk of the file has finished: the
+     * accounts created, the lines that failed and the first of their failures.
+     * Throws a RejectedExecutionException when too many uploads are running.
+     */
+    public CompletableFuture<Map<String, Object>> upload(InputStream file) {
+        Report report = new Report(maxFailures);
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return read(file, report);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, uploadExecutor).thenCompose(submits -> CompletableFuture.allOf(submits.toArray(new CompletableFuture<?>[0]))
+            .thenApply(done -> report.toMap(submits.size())));
+    }
+
+    // submits the chunks of the file as it is read, and returns their futures once it is all read
+    private List<CompletableFuture<Void>> read(InputStream file, Report report) throws Exception {
+        Semaphore permits = new Semaphore(parallelism);
+        List<CompletableFuture<Void>> submits = new ArrayList<>();
+        Chunk chunk = new Chunk();
+        try (BufferedReader lines = new BufferedReader(new InputStreamReader(file, StandardCharsets.UTF_8))) {
+            int lineNumber = 0;
+            for (String line = lines.readLine(); line != null; line = lines.readLine()) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                JsonNode entry;
+                try {
+                    entry = objectMapper.readTree(line);
+                } catch (Exception e) {
+                    entry = null;
+                }
+                if (entry == null || !entry.isArray()) {
+                    report.failed(lineNumber, null, "INVALID_ACCOUNT", "Line is not a JSON array");
+                    continue;
+                }
+                int bytes = line.getBytes(StandardCharsets.UTF_8).length + 1;
+                if (!chunk.isEmpty() && (chunk.size() == maxAccounts || chunk.bytes + bytes > maxBytes)) {
+                    submits.add(submit(chunk, permits, report));
+                    chunk = new Chunk();
+                }
+                chunk.add(lineNumber, entry.path(0).asText(null), line, bytes);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            submits.add(submit(chunk, permits, report));
+        }
+        return submits;
+    }
+
+    // blocks the reader until one of the parallelism permits is free; a chunk the Fabric executor has no room for fails
+    private CompletableFuture<Void> submit(Chunk chunk, Semaphore permits, Report report) throws InterruptedException {
+        permits.acquire();
+        try {
+            return CompletableFuture.runAsync(() -> createAccounts(chunk, permits, report), fabricExecutor);
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            for (int i = 0; i < chunk.size(); i++) {
+                report.failed(chunk.lineNumbers.get(i), chunk.accountIds.get(i), StageMetrics.errorCode(e), e.toString());
+            }
+            return CompletableFuture.completedFuture(null);
+        }
+    }
+
+    private void createAccounts(Chunk chunk, Semaphore permits, Report report) {
+        try {
+            String payload = "[" + String.join(",", chunk.entries) + "]";
+            CommitTracker.Submitted submitted = commitTracker.submit(() -> gatewayPool.submitTransaction("CreateAccounts", payload));
+            JsonNode results = stageMetrics.time(StageMetrics.JSON, () -> objectMapper.readTree(submitted.getResult()));
+            if (!results.isArray() || results.size() != chunk.size()) {
+                String message = "CreateAccounts returned " + (results.isArray() ? results.size() + " results" : "no result array")
+                    + " for " + chunk.size() + " accounts";
+                for (int i = 0; i < chunk.size(); i++) {
+                    report.unknown(chunk.lineNumbers.get(i), chunk.accountIds.get(i), message);
+                }
+                return;
+            }
+            for (int i = 0; i < chunk.size(); i++) {
+                JsonNode error = results.get(i).get("error");
+                if (error == null) {
+                    report.unknown(chunk.lineNumbers.get(i), chunk.accountIds.get(i), "CreateAccounts result has no error field");
+                } else if (error.isNull()) {
+                    report.created();
+                } else {
+                    report.failed(chunk.lineNumbers.get(i), chunk.accountIds.get(i), error.asText(), results.get(i).path("message").asText());
+                }
+            }
+        } catch (Exception e) {
+            System.err.println(e);
+            for (int i = 0; i < chunk.size(); i++) {
+                report.failed(chunk.lineNumbers.get(i), chunk.accountIds.get(i), StageMetrics.errorCode(e), e.toString());
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    private static final class Chunk {
+        private final List<Integer> lineNumbers = new ArrayList<>();
+        private final List<String> accountIds = new ArrayList<>();
+        private final List<String> entries = new ArrayList<>();
+        private int bytes = 2;
+
+        void add(int lineNumber, String accountId, String entry, int entryBytes) {
+            lineNumbers.add(lineNumber);
+            accountIds.add(accountId);
+            entries.add(entry);
+            bytes += entryBytes;
+        }
+
+        int size() {
+            return entries.size();
+        }
+
+        boolean isEmpty() {
+            return entries.isEmpty();
+        }
+    }
+
+    private static final class Report {
+        private static final Comparator<Map<String, Object>> BY_LINE = Comparator.comparingInt(failure -> (Integer) failure.get("line"));
+
+        private final int maxFailures;
+        private int created;
+        private int failed;
+        private int unknown;
+        // the failures with the lowest line numbers, the highest at the head to be dropped first
+        private final PriorityQueue<Map<String, Object>> failures = new PriorityQueue<>(BY_LINE.reversed());
+
+        Report(int maxFailures) {
+            this.maxFailures = maxFailures;
+        }
+
+        synchronized void created() {
+            created++;
+        }
+
+        synchronized void failed(int line, String accountId, String error, String message) {
+            failed++;
+            list(line, accountId, error, message);
+        }
+
+        // the transaction committed but its result for the line could not be read
+        synchronized void unknown(int line, String accountId, String message) {
+            unknown++;
+            list(line, accountId, "PROTOCOL_ERROR", message);
+        }
+
+        private void list(int line, String accountId, String error, String message) {
+            if (maxFailures <= 0) {
+                return;
+            }
+            if (failures.size() == maxFailures) {
+                if (line > (Integer) failures.peek().get("line")) {
+                    return;
+                }
+                failures.poll();
+            }
+            Map<String, Object> failure = new LinkedHashMap<>();
+            failure.put("line", line);
+            failure.put("accountId", accountId);
+            failure.put("error", error);
+            failure.put("message", message);
+            failures.add(failure);
+        }
+
+        synchronized Map<String, Object> toMap(int transactions) {
+            List<Map<String, Object>> listed = new ArrayList<>(failures);
+            listed.sort(BY_LINE);
+            Map<String, Object> report = new LinkedHashMap<>();
+            report.put("created", created);
+            report.put("failed", failed);
+            report.put("unknown", unknown);
+            report.put("transactions", transactions);
+            report.put("failures", listed);
+            return report;
+        }
+    }
+}
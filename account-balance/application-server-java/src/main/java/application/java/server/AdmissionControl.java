@@ -0,0 +1,378 @@
+package application.java.server;
+
+import java.util.ArrayDeque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Bounds the Fabric calls in flight so that overload is turned away early
+ * instead of piling up until every request times out.
+ *
+ * Evaluates and submits each have their own concurrency limit and wait queue.
+ * A request that finds the limit reached waits in the queue for at most
+ * queue-timeout-ms; one that finds the queue full, or times out in it, is
+ * answered 429 with a Retry-After. The limit adapts to the latency of the
+ * calls it lets through: it backs off by backoff-ratio, at most once per
+ * response time, when a call takes more than latency-tolerance times the
+ * lowest latency seen recently, and otherwise grows by one per limit's worth of
+ * calls while it is at least half used. Optionally each publicKey also gets a
+ * token bucket of rate-limit.per-second with room for rate-limit.burst.
+ *
+ * Only calls that reach Fabric should go through limit: an answer from a
+ * cache, the balance view or another request's query takes next to no time,
+ * and would drag the lowest latency, and with it the limit, down to nothing.
+ * The rate limit applies to every request.
+ */
+@Component
+public class AdmissionControl {
+
+    public static final String EVALUATE = "evaluate";
+    public static final String SUBMIT = "submit";
+
+    @Value("${admission.enabled:false}")
+    private boolean enabled;
+
+    @Value("${admission.evaluate.initial-limit:100}")
+    private int evaluateInitialLimit;
+
+    @Value("${admission.evaluate.max-limit:1000}")
+    private int evaluateMaxLimit;
+
+    @Value("${admission.evaluate.max-queue:200}")
+    private int evaluateMaxQueue;
+
+    @Value("${admission.submit.initial-limit:50}")
+    private int submitInitialLimit;
+
+    @Value("${admission.submit.max-limit:500}")
+    private int submitMaxLimit;
+
+    @Value("${admission.submit.max-queue:100}")
+    private int submitMaxQueue;
+
+    @Value("${admission.min-limit:4}")
+    private int minLimit;
+
+    @Value("${admission.queue-timeout-ms:1000}")
+    private long queueTimeoutMillis;
+
+    @Value("${admission.latency-tolerance:2.0}")
+    private double latencyTolerance;
+
+    @Value("${admission.backoff-ratio:0.9}")
+    private double backoffRatio;
+
+    // the lowest latency is forgotten after two windows, so the limit follows a peer that got slower for good
+    @Value("${admission.min-latency-window-ms:30000}")
+    private long minLatencyWindowMillis;
+
+    @Value("${admission.rate-limit.enabled:false}")
+    private boolean rateLimitEnabled;
+
+    @Value("${admission.rate-limit.per-second:20}")
+    private double ratePerSecond;
+
+    @Value("${admission.rate-limit.burst:40}")
+    private double rateBurst;
+
+    @Value("${admission.rate-limit.max-keys:100000}")
+    private long rateMaxKeys;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    private Limiter evaluate;
+    private Limiter submit;
+    private Cache<String, TokenBucket> buckets;
+    private final AtomicLong rateLimited = new AtomicLong();
+    private ScheduledExecutorService timer;
+
+    @PostConstruct
+    public void init() {
+        evaluate = new Limiter(EVALUATE, evaluateInitialLimit, evaluateMaxLimit, evaluateMaxQueue);
+        submit = new Limiter(SUBMIT, submitInitialLimit, submitMaxLimit, submitMaxQueue);
+        buckets = CacheBuilder.newBuilder()
+                .maximumSize(rateMaxKeys)
+                .expireAfterAccess((long) Math.ceil(rateBurst / ratePerSecond) + 1, TimeUnit.SECONDS)
+                .build();
+        if (!enabled) {
+            return;
+        }
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "admission-timeout");
+            thread.setDaemon(true);
+            return thread;
+        });
+        FunctionCounter.builder("admission.rate.limited", rateLimited, AtomicLong::get).register(registry);
+        for (Limiter limiter : new Limiter[] {evaluate, submit}) {
+            Gauge.builder("admission.limit", limiter, Limiter::getLimit).tag("pool", limiter.name).register(registry);
+            Gauge.builder("admission.inflight", limiter, Limiter::getInFlight).tag("pool", limiter.name).register(registry);
+            Gauge.builder("admission.queued", limiter, Limiter::getQueued).tag("pool", limiter.name).register(registry);
+            FunctionCounter.builder("admission.rejected", limiter.rejected, AtomicLong::get).tag("pool", limiter.name).register(registry);
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (timer != null) {
+            timer.shutdownNow();
+        }
+    }
+
+    /**
+     * The 429 answer when the publicKey has used up its rate limit, otherwise
+     * null, with a token taken.
+     */
+    public ResponseEntity<Object> rateLimit(String publicKey) {
+        if (!enabled || !rateLimitEnabled || publicKey == null) {
+            return null;
+        }
+        long waitNanos = bucket(publicKey).take();
+        if (waitNanos <= 0) {
+            return null;
+        }
+        rateLimited.incrementAndGet();
+        return tooManyRequests("Rate limit exceeded", waitNanos);
+    }
+
+    /**
+     * Runs call once the pool admits it, and measures it for the limit; the
+     * returned future fails with a RejectedException when it is turned away.
+     *
+     * @param pool EVALUATE or SUBMIT
+     */
+    public <T> CompletableFuture<T> limit(String pool, Supplier<CompletableFuture<T>> call) {
+        if (!enabled) {
+            return call.get();
+        }
+        Limiter limiter = SUBMIT.equals(pool) ? submit : evaluate;
+        CompletableFuture<Long> admitted = limiter.acquire();
+        CompletableFuture<T> response = new CompletableFuture<>();
+        admitted.whenComplete((start, rejected) -> {
+            if (rejected != null) {
+                response.completeExceptionally(new RejectedException("Too many requests", limiter.retryAfterNanos()));
+                return;
+            }
+            CompletableFuture<T> result;
+            try {
+                result = call.get();
+            } catch (RuntimeException e) {
+                limiter.release(System.nanoTime() - start);
+                response.completeExceptionally(e);
+                return;
+            }
+            result.whenComplete((entity, e) -> {
+                limiter.release(System.nanoTime() - start);
+                if (e != null) {
+                    response.completeExceptionally(e);
+                } else {
+                    response.complete(entity);
+                }
+            });
+        });
+        return response;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put(EVALUATE, evaluate.toMap());
+        stats.put(SUBMIT, submit.toMap());
+        stats.put("rateLimited", rateLimited.get());
+        return stats;
+    }
+
+    /**
+     * A call the admission control turned away, answered 429 with a Retry-After.
+     */
+    public static class RejectedException extends RejectedExecutionException {
+        private static final long serialVersionUID = 1L;
+
+        private final long retryAfterNanos;
+
+        public RejectedException(String message, long retryAfterNanos) {
+            super(message);
+            this.retryAfterNanos = retryAfterNanos;
+        }
+
+        public ResponseEntity<Object> toResponse() {
+            return tooManyRequests(getMessage(), retryAfterNanos);
+        }
+    }
+
+    private TokenBucket bucket(String publicKey) {
+        try {
+            return buckets.get(publicKey.trim(), TokenBucket::new);
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ResponseEntity<Object> tooManyRequests(String message, long retryAfterNanos) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.set(HttpHeaders.RETRY_AFTER, Long.toString(Math.max(1, (long) Math.ceil(retryAfterNanos / 1e9))));
+        return new ResponseEntity<>(message, headers, HttpStatus.TOO_MANY_REQUESTS);
+    }
+
+    private final class TokenBucket {
+        private double tokens = rateBurst;
+        private long refilled = System.nanoTime();
+
+        // 0 when a token was taken, otherwise how long until there is one
+        synchronized long take() {
+            long now = System.nanoTime();
+            tokens = Math.min(rateBurst, tokens + (now - refilled) / 1e9 * ratePerSecond);
+            refilled = now;
+            if (tokens >= 1) {
+                tokens--;
+                return 0;
+            }
+            return (long) ((1 - tokens) / ratePerSecond * 1e9);
+        }
+    }
+
+    /**
+     * The adaptive concurrency limit and wait queue of one kind of call.
+     */
+    private final class Limiter {
+        private final String name;
+        private final int maxLimit;
+        private final int maxQueue;
+        private final ArrayDeque<CompletableFuture<Long>> queue = new ArrayDeque<>();
+        private final AtomicLong rejected = new AtomicLong();
+
+        private double limit;
+        private int inFlight;
+        private double averageNanos;
+        private long minNanos = Long.MAX_VALUE;
+        private long previousMinNanos = Long.MAX_VALUE;
+        private long windowStart = System.nanoTime();
+        private long lastBackoff;
+
+        Limiter(String name, int initialLimit, int maxLimit, int maxQueue) {
+            this.name = name;
+            this.maxLimit = maxLimit;
+            this.maxQueue = maxQueue;
+            this.limit = Math.max(minLimit, Math.min(initialLimit, maxLimit));
+        }
+
+        // completes with the time the call was admitted, or exceptionally when it is turned away
+        CompletableFuture<Long> acquire() {
+            CompletableFuture<Long> admitted = new CompletableFuture<>();
+            synchronized (this) {
+                if (inFlight < (int) limit && queue.isEmpty()) {
+                    inFlight++;
+                } else if (queue.size() < maxQueue) {
+                    queue.add(admitted);
+                    timer.schedule(() -> expire(admitted), queueTimeoutMillis, TimeUnit.MILLISECONDS);
+                    return admitted;
+                } else {
+                    rejected.incrementAndGet();
+                    admitted.completeExceptionally(new IllegalStateException("Admission queue of " + name + " is full"));
+                    return admitted;
+                }
+            }
+            admitted.complete(System.nanoTime());
+            return admitted;
+        }
+
+        private void expire(CompletableFuture<Long> waiting) {
+            synchronized (this) {
+                if (!queue.remove(waiting)) {
+                    return;
+                }
+            }
+            rejected.incrementAndGet();
+            waiting.completeExceptionally(new IllegalStateException("Timed out in the admission queue of " + name));
+        }
+
+        void release(long nanos) {
+            ArrayDeque<CompletableFuture<Long>> admitted = new ArrayDeque<>();
+            synchronized (this) {
+                inFlight--;
+                adapt(nanos);
+                while (inFlight < (int) limit && !queue.isEmpty()) {
+                    admitted.add(queue.poll());
+                    inFlight++;
+                }
+            }
+            for (CompletableFuture<Long> waiting : admitted) {
+                waiting.complete(System.nanoTime());
+            }
+        }
+
+        private void adapt(long nanos) {
+            long now = System.nanoTime();
+            if (now - windowStart > TimeUnit.MILLISECONDS.toNanos(minLatencyWindowMillis)) {
+                previousMinNanos = minNanos;
+                minNanos = Long.MAX_VALUE;
+                windowStart = now;
+            }
+            minNanos = Math.min(minNanos, nanos);
+            averageNanos = averageNanos == 0 ? nanos : averageNanos + 0.1 * (nanos - averageNanos);
+            long baseline = Math.min(minNanos, previousMinNanos);
+            if (nanos > latencyTolerance * baseline) {
+                // the calls completing together all saw the same slowdown, so back off once per response time
+                if (now - lastBackoff > nanos) {
+                    limit = Math.max(minLimit, limit * backoffRatio);
+                    lastBackoff = now;
+                }
+            } else if (inFlight * 2 >= limit) {
+                limit = Math.min(maxLimit, limit + 1 / limit);
+            }
+        }
+
+        // how long until the queue ahead would have drained at the current limit and latency
+        synchronized long retryAfterNanos() {
+            return (long) ((queue.size() + 1) * averageNanos / limit);
+        }
+
+        synchronized double getLimit() {
+            return limit;
+        }
+
+        synchronized int getInFlight() {
+            return inFlight;
+        }
+
+        synchronized int getQueued() {
+            return queue.size();
+        }
+
+        synchronized Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("limit", (int) limit);
+            map.put("inFlight", inFlight);
+            map.put("queued", queue.size());
+            map.put("rejected", rejected.get());
+            map.put("averageLatencyMs", averageNanos / 1e6);
+            long baseline = Math.min(minNanos, previousMinNanos);
+            map.put("minLatencyMs", baseline == Long.MAX_VALUE ? 0 : baseline / 1e6);
+            return map;
+        }
+    }
+}
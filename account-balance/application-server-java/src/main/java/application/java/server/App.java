@@ -9,8 +9,10 @@ package application.java.server;
 // import org.hyperledger.fabric.gateway.Wallets;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class App {
 
 	static {
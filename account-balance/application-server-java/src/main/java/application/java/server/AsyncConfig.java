@@ -0,0 +1,67 @@
+package application.java.server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.web.servlet.config.annotation.AsyncSupportConfigurer;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
+
+/**
+ * Executor for the blocking Fabric calls behind the async endpoints.
+ *
+ * The controllers return CompletableFuture, so Tomcat threads are handed back
+ * while a request waits on the peer. With fabric.executor.type=virtual on a JDK
+ * that has virtual threads, every call gets its own virtual thread; otherwise a
+ * pool of fabric.executor.threads platform threads is used, with room for
+ * fabric.executor.queue-capacity waiting calls. A call submitted to a full
+ * queue is rejected with a RejectedExecutionException, which the controller
+ * answers 503 with Retry-After, so overload pushes back on the clients instead
+ * of queueing without limit.
+ */
+@Configuration
+public class AsyncConfig implements WebMvcConfigurer {
+
+    @Value("${fabric.executor.type:platform}")
+    private String executorType;
+
+    @Value("${fabric.executor.threads:200}")
+    private int threads;
+
+    @Value("${fabric.executor.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${fabric.executor.request-timeout-ms:30000}")
+    private long requestTimeoutMillis;
+
+    @Bean(destroyMethod = "shutdown")
+    public ExecutorService fabricExecutor() {
+        if ("virtual".equals(executorType)) {
+            try {
+                Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                System.out.println("Fabric calls run on virtual threads");
+                return (ExecutorService) factory.invoke(null);
+            } catch (ReflectiveOperationException e) {
+                System.err.println("Virtual threads are not available on this JDK, using " + threads + " platform threads");
+            }
+        }
+        AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "fabric-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    @Override
+    public void configureAsyncSupport(AsyncSupportConfigurer configurer) {
+        configurer.setDefaultTimeout(requestTimeoutMillis);
+    }
+}
@@ -0,0 +1,126 @@
+package application.java.server;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.PostConstruct;
+
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.cache.GuavaCacheMetrics;
+
+/**
+ * Read-through cache of GetBalance results keyed by account ID.
+ *
+ * Entries are dropped as soon as a committed block writes the account key or a
+ * delta credit to the account, so the TTL only bounds how long a value can
+ * survive a missed block event. A load is only cached when no block wrote
+ * its account while it ran; the writes are counted per stripe of accounts, so
+ * a block only keeps the loads of the accounts that share a stripe with the
+ * ones it wrote out of the cache, not every load in flight.
+ */
+@Component
+public class BalanceCache {
+
+    @Value("${balance.cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${balance.cache.max-size:100000}")
+    private long maxSize;
+
+    @Value("${balance.cache.ttl-ms:60000}")
+    private long ttlMillis;
+
+    @Value("${fabric.contract:account}")
+    private String contractName;
+
+    @Autowired
+    private FabricGatewayPool gatewayPool;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    private static final int VERSION_STRIPES = 4096;
+
+    private Cache<String, String> balances;
+
+    // bumped for the stripe of an account on every invalidation of it, so a load that raced a block is not cached
+    private final AtomicLongArray versions = new AtomicLongArray(VERSION_STRIPES);
+
+    // bumped when the whole cache is dropped
+    private final AtomicLong generation = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        balances = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(ttlMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+        GuavaCacheMetrics.monitor(registry, balances, "balance");
+        if (enabled) {
+            gatewayPool.addBlockListener(this::onBlock);
+        }
+    }
+
+    public String getBalance(String accountId, Callable<String> loader) throws Exception {
+        if (!enabled) {
+            return loader.call();
+        }
+        String balance = balances.getIfPresent(accountId);
+        if (balance != null) {
+            return balance;
+        }
+        int stripe = stripe(accountId);
+        long version = versions.get(stripe);
+        long before = generation.get();
+        balance = loader.call();
+        if (versions.get(stripe) == version && generation.get() == before) {
+            balances.put(accountId, balance);
+            // an invalidation between the check and the put would otherwise leave the stale balance cached
+            if (versions.get(stripe) != version || generation.get() != before) {
+                balances.invalidate(accountId);
+            }
+        }
+        return balance;
+    }
+
+    // the cached balance, or null when there is none or the cache is disabled
+    public String getIfPresent(String accountId) {
+        return enabled ? balances.getIfPresent(accountId) : null;
+    }
+
+    public void invalidate(String accountId) {
+        versions.incrementAndGet(stripe(accountId));
+        balances.invalidate(accountId);
+    }
+
+    private static int stripe(String accountId) {
+        int hash = accountId.hashCode();
+        return (hash ^ hash >>> 16) & (VERSION_STRIPES - 1);
+    }
+
+    private void onBlock(BlockEvent block) {
+        try {
+            LedgerWrites.forEachWrite(block, contractName, (tx, write) -> {
+                String accountId = AccountRecords.balanceAccount(write.getKey());
+                if (accountId != null) {
+                    invalidate(accountId);
+                }
+            });
+        } catch (IllegalStateException e) {
+            System.err.println(e);
+            generation.incrementAndGet();
+            balances.invalidateAll();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package application.java.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Shares one GetBalance query between the requests for the same account that
+ * arrive while it is running.
+ *
+ * The first request for an account starts a flight and the ones after it join
+ * that flight's result, whether it is a balance or a failure, until it
+ * finishes or balance.coalesce.max-waiters have joined, after which the next
+ * request starts a new flight. A committed block that writes the account, or a
+ * delta credit to it, also detaches its flight, so a request that comes in after a transfer committed
+ * never gets a balance read before it. This sits in front of the BalanceCache
+ * and works the same with it disabled.
+ */
+@Component
+public class BalanceQueryCoalescer {
+
+    @Value("${balance.coalesce.enabled:true}")
+    private boolean enabled;
+
+    @Value("${balance.coalesce.max-waiters:1000}")
+    private int maxWaiters;
+
+    @Value("${fabric.contract:account}")
+    private String contractName;
+
+    @Autowired
+    private FabricGatewayPool gatewayPool;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    // lookups never lock, and starting or detaching a flight locks only its bin
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong coalesced = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        Gauge.builder("balance.coalesce.flights", flights, Map::size).register(registry);
+        FunctionCounter.builder("balance.coalesce.requests", requests, AtomicLong::get).register(registry);
+        FunctionCounter.builder("balance.coalesce.started", started, AtomicLong::get).register(registry);
+        FunctionCounter.builder("balance.coalesce.coalesced", coalesced, AtomicLong::get).register(registry);
+        gatewayPool.addBlockListener(this::onBlock);
+    }
+
+    /**
+     * The balance of the account, from the flight already running for it or
+     * from query, which is then shared with the requests that follow.
+     */
+    public CompletableFuture<String> getBalance(String accountId, Supplier<CompletableFuture<String>> query) {
+        if (!enabled) {
+            return query.get();
+        }
+        requests.incrementAndGet();
+        while (true) {
+            Flight flight = flights.get(accountId);
+            if (flight == null) {
+                Flight leader = new Flight();
+                flight = flights.putIfAbsent(accountId, leader);
+                if (flight == null) {
+                    started.incrementAndGet();
+                    return leader.start(accountId, query);
+                }
+            }
+            if (flight.join()) {
+                coalesced.incrementAndGet();
+                // a waiter must not be able to complete or cancel the shared result
+                return flight.result.thenApply(balance -> balance);
+            }
+            flights.remove(accountId, flight);
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        long requestCount = requests.get();
+        long coalescedCount = coalesced.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("enabled", enabled);
+        stats.put("flights", flights.size());
+        stats.put("requests", requestCount);
+        stats.put("started", started.get());
+        stats.put("coalesced", coalescedCount);
+        stats.put("coalescingRatio", requestCount == 0 ? 0.0 : (double) coalescedCount / requestCount);
+        return stats;
+    }
+
+    private void onBlock(BlockEvent block) {
+        try {
+            LedgerWrites.forEachWrite(block, contractName, (tx, write) -> {
+                String accountId = AccountRecords.balanceAccount(write.getKey());
+                if (accountId != null) {
+                    flights.remove(accountId);
+                }
+            });
+        } catch (IllegalStateException e) {
+            System.err.println(e);
+            flights.clear();
+        }
+    }
+
+    private final class Flight {
+        private final CompletableFuture<String> result = new CompletableFuture<>();
+        // the request that started the flight is the first
+        private final AtomicInteger waiters = new AtomicInteger(1);
+
+        CompletableFuture<String> start(String accountId, Supplier<CompletableFuture<String>> query) {
+            CompletableFuture<String> balance;
+            try {
+                balance = query.get();
+            } catch (RuntimeException e) {
+                balance = new CompletableFuture<>();
+                balance.completeExceptionally(e);
+            }
+            balance.whenComplete((value, e) -> {
+                flights.remove(accountId, this);
+                if (e != null) {
+                    result.completeExceptionally(e);
+                } else {
+                    result.complete(value);
+                }
+            });
+            return result.thenApply(value -> value);
+        }
+
+        // false once the flight is full, and then for every later request
+        boolean join() {
+            return waiters.incrementAndGet() <= maxWaiters;
+        }
+    }
+}
@@ -0,0 +1,403 @@
+package application.java.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiConsumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Local copy of the balance of every account, built from the account writes of
+ * committed blocks.
+ *
+ * Balances are kept in minor units in primitive arrays, one slot per account in
+ * the order the accounts first appeared, found through an open-addressing table
+ * of slot numbers; the only object per account is its ID. Delta credits are
+ * summed per account and also kept by key until a transaction deletes them.
+ *
+ * The view is written to balance.view.file every balance.view.checkpoint-interval-ms
+ * with the number of the last block applied, and on restart it loads that file
+ * and asks the gateway pool for the blocks after it, so only the blocks
+ * committed since the checkpoint are replayed. Until it has caught up with the
+ * channel height it is not live and the app keeps asking the peers. A block
+ * that arrives after a gap is not applied: the view goes back to not live and
+ * asks for delivery again from the first block it is missing.
+ */
+@Component
+public class BalanceView {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(BalanceView.class);
+
+    private static final int FILE_VERSION = 1;
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    @Value("${balance.view.enabled:false}")
+    private boolean enabled;
+
+    @Value("${balance.view.file:balance-view.bin}")
+    private String file;
+
+    // decimal places of the balances, the chaincode's ACCOUNT_BALANCE_SCALE
+    @Value("${balance.view.scale:2}")
+    private int scale;
+
+    @Value("${fabric.contract:account}")
+    private String contractName;
+
+    @Autowired
+    private FabricGatewayPool gatewayPool;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    // request threads read while the block event thread writes
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private String[] accountIds = new String[INITIAL_CAPACITY];
+    private long[] balances = new long[INITIAL_CAPACITY];
+    private long[] credits = new long[INITIAL_CAPACITY];
+    // slot + 1 of each account at the position of its hash, 0 when free
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+    private int size;
+
+    // only the deltas not yet folded into their account by CompactDeltas or a debit
+    private final Map<String, Long> deltas = new HashMap<>();
+
+    private long blockNumber = -1;
+    // set by the block event thread, cleared when a checkpoint takes its copy
+    private volatile boolean dirty;
+    // set while delivery is restarting after a gap, so the blocks still arriving past it ask only once
+    private boolean replaying;
+    // set when a block could not be applied, the view then stays at the block before it
+    private volatile boolean stopped;
+    private volatile long appliedBlockNumber = -1;
+    private volatile boolean live;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        Gauge.builder("balance.view.block", this, BalanceView::getBlockNumber).register(registry);
+        Gauge.builder("balance.view.accounts", this, view -> view.size).register(registry);
+        load();
+        gatewayPool.addBlockListener(this::onBlock, blockNumber + 1);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (enabled) {
+            checkpoint();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // whether the view has applied every block the channel had when it was last checked
+    public boolean isLive() {
+        return live;
+    }
+
+    // the last block whose writes are in the view
+    public long getBlockNumber() {
+        return appliedBlockNumber;
+    }
+
+    // the balance as a decimal string, or null when the view has no such account
+    public String getBalance(String accountId) {
+        lock.readLock().lock();
+        try {
+            int slot = find(accountId);
+            return slot < 0 ? null : decimal(Math.addExact(balances[slot], credits[slot]));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Visits up to max accounts from slot from on, with their balances as
+     * decimal strings. Slots never move, so a scan resumed from the returned
+     * slot sees every account, including the ones created since it started.
+     *
+     * @return the slot to resume from, or -1 when there are no more accounts
+     */
+    public int forEachAccount(int from, int max, BiConsumer<String, String> visitor) {
+        lock.readLock().lock();
+        try {
+            int end = Math.min(size, from + max);
+            for (int slot = from; slot < end; slot++) {
+                visitor.accept(accountIds[slot], decimal(Math.addExact(balances[slot], credits[slot])));
+            }
+            return end < size ? end : -1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // the GetAccountStats result as of the block in asOfBlock
+    public Map<String, Object> getStats() {
+        lock.readLock().lock();
+        try {
+            long totalSupply = 0;
+            for (int slot = 0; slot < size; slot++) {
+                totalSupply = Math.addExact(totalSupply, Math.addExact(balances[slot], credits[slot]));
+            }
+            Map<String, Object> stats = new LinkedHashMap<>();
+            stats.put("accounts", size);
+            stats.put("totalSupply", decimal(totalSupply));
+            stats.put("asOfBlock", blockNumber);
+            return stats;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void onBlock(BlockEvent block) {
+        long number = block.getBlockNumber();
+        lock.writeLock().lock();
+        try {
+            // blocks the view already has come again when the pool restarts delivery for another listener
+            if (stopped || number <= blockNumber) {
+                return;
+            }
+            if (number != blockNumber + 1) {
+                // applying it would leave the writes of the blocks in between out of the view
+                live = false;
+                if (!replaying) {
+                    replaying = true;
+                    long from = blockNumber + 1;
+                    LOGGER.warn("Balance view expected block {} but received {}, replaying from block {}", from, number, from);
+                    // off the delivery thread, which the replay stops
+                    CompletableFuture.runAsync(() -> gatewayPool.replayBlocks(from));
+                }
+                return;
+            }
+            replaying = false;
+            LedgerWrites.forEachWrite(block, contractName, (tx, write) -> apply(write));
+            blockNumber = number;
+            appliedBlockNumber = number;
+            dirty = true;
+        } catch (IllegalStateException | ArithmeticException e) {
+            // the peers answer from then on; the writes are whole values, so a restart can apply the block again
+            LOGGER.error("Balance view stopped at block {}", blockNumber, e);
+            stopped = true;
+            live = false;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void apply(KvRwset.KVWrite write) {
+        String key = write.getKey();
+        if (AccountRecords.isAccountKey(key)) {
+            // the contract never deletes an account
+            if (write.getIsDelete()) {
+                return;
+            }
+            try {
+                balances[slot(key)] = AccountRecords.balance(write.getValue().toByteArray(), scale);
+            } catch (IOException | RuntimeException e) {
+                throw new IllegalStateException("Unreadable account record " + key, e);
+            }
+            return;
+        }
+        String accountId = AccountRecords.deltaAccount(key);
+        if (accountId == null) {
+            return;
+        }
+        long amount = write.getIsDelete() ? 0 : AccountRecords.delta(write.getValue().toByteArray(), scale);
+        Long previous = write.getIsDelete() ? deltas.remove(key) : deltas.put(key, amount);
+        int slot = slot(accountId);
+        credits[slot] = Math.addExact(credits[slot], amount - (previous == null ? 0 : previous));
+    }
+
+    private int find(String accountId) {
+        int mask = table.length - 1;
+        for (int i = accountId.hashCode() & mask; table[i] != 0; i = (i + 1) & mask) {
+            if (accountIds[table[i] - 1].equals(accountId)) {
+                return table[i] - 1;
+            }
+        }
+        return -1;
+    }
+
+    // the slot of the account, added with a zero balance when it is new
+    private int slot(String accountId) {
+        int slot = find(accountId);
+        if (slot >= 0) {
+            return slot;
+        }
+        if (size == accountIds.length) {
+            grow();
+        }
+        slot = size++;
+        accountIds[slot] = accountId;
+        index(slot);
+        return slot;
+    }
+
+    private void index(int slot) {
+        int mask = table.length - 1;
+        int i = accountIds[slot].hashCode() & mask;
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = slot + 1;
+    }
+
+    // the table stays at most half full
+    private void grow() {
+        int capacity = accountIds.length * 2;
+        accountIds = Arrays.copyOf(accountIds, capacity);
+        balances = Arrays.copyOf(balances, capacity);
+        credits = Arrays.copyOf(credits, capacity);
+        table = new int[capacity * 2];
+        for (int slot = 0; slot < size; slot++) {
+            index(slot);
+        }
+    }
+
+    private String decimal(long minorUnits) {
+        return BigDecimal.valueOf(minorUnits, scale).toPlainString();
+    }
+
+    /**
+     * Writes the view when blocks were applied since the last checkpoint, and
+     * checks whether it has caught up with the channel. The view is copied
+     * under the read lock and written after it is released, so block delivery
+     * only waits for the copy. The file is replaced in one move, so a crash
+     * while writing leaves the previous checkpoint.
+     */
+    @Scheduled(fixedDelayString = "${balance.view.checkpoint-interval-ms:10000}")
+    public void checkpoint() {
+        if (!enabled) {
+            return;
+        }
+        if (!live && !stopped) {
+            try {
+                long height = gatewayPool.getNetwork().getChannel().queryBlockchainInfo().getHeight();
+                if (appliedBlockNumber >= height - 1) {
+                    live = true;
+                    LOGGER.info("Balance view is live at block {}", appliedBlockNumber);
+                }
+            } catch (Exception e) {
+                LOGGER.warn("Balance view could not read the channel height", e);
+            }
+        }
+        String[] checkpointIds;
+        long[] checkpointBalances;
+        long[] checkpointCredits;
+        Map<String, Long> checkpointDeltas;
+        long checkpointBlock;
+        lock.readLock().lock();
+        try {
+            if (!dirty) {
+                return;
+            }
+            checkpointIds = Arrays.copyOf(accountIds, size);
+            checkpointBalances = Arrays.copyOf(balances, size);
+            checkpointCredits = Arrays.copyOf(credits, size);
+            checkpointDeltas = new HashMap<>(deltas);
+            checkpointBlock = blockNumber;
+            dirty = false;
+        } finally {
+            lock.readLock().unlock();
+        }
+        try {
+            write(checkpointBlock, checkpointIds, checkpointBalances, checkpointCredits, checkpointDeltas);
+        } catch (IOException e) {
+            // the next checkpoint tries again
+            dirty = true;
+            LOGGER.warn("Balance view checkpoint failed", e);
+        }
+    }
+
+    // the scheduled checkpoint and the one on shutdown may overlap, and share the temporary file
+    private synchronized void write(long checkpointBlock, String[] checkpointIds, long[] checkpointBalances,
+            long[] checkpointCredits, Map<String, Long> checkpointDeltas) throws IOException {
+        Path path = Paths.get(file).toAbsolutePath();
+        Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+            out.writeInt(FILE_VERSION);
+            out.writeInt(scale);
+            out.writeLong(checkpointBlock);
+            out.writeInt(checkpointIds.length);
+            for (int slot = 0; slot < checkpointIds.length; slot++) {
+                out.writeUTF(checkpointIds[slot]);
+                out.writeLong(checkpointBalances[slot]);
+                out.writeLong(checkpointCredits[slot]);
+            }
+            out.writeInt(checkpointDeltas.size());
+            for (Map.Entry<String, Long> delta : checkpointDeltas.entrySet()) {
+                out.writeUTF(delta.getKey());
+                out.writeLong(delta.getValue());
+            }
+        }
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    // a missing or unreadable checkpoint, or one at another scale, starts the view from the first block
+    private void load() {
+        Path path = Paths.get(file);
+        if (!Files.exists(path)) {
+            LOGGER.info("No balance view checkpoint at {}, replaying the channel from block 0", path);
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != FILE_VERSION || in.readInt() != scale) {
+                LOGGER.info("Balance view checkpoint {} has another version or scale, replaying the channel from block 0", path);
+                return;
+            }
+            long checkpointBlock = in.readLong();
+            int accounts = in.readInt();
+            for (int i = 0; i < accounts; i++) {
+                int slot = slot(in.readUTF());
+                balances[slot] = in.readLong();
+                credits[slot] = in.readLong();
+            }
+            int deltaCount = in.readInt();
+            for (int i = 0; i < deltaCount; i++) {
+                deltas.put(in.readUTF(), in.readLong());
+            }
+            blockNumber = checkpointBlock;
+            appliedBlockNumber = checkpointBlock;
+            LOGGER.info("Balance view loaded {} accounts as of block {}", size, blockNumber);
+        } catch (IOException e) {
+            LOGGER.warn("Balance view checkpoint {} is unreadable, replaying the channel from block 0", path, e);
+            Arrays.fill(table, 0);
+            size = 0;
+            deltas.clear();
+        }
+    }
+}
@@ -0,0 +1,284 @@
+package application.java.server;
+
+import java.util.Collection;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.hyperledger.fabric.gateway.ContractException;
+import org.hyperledger.fabric.gateway.DefaultCommitHandlers;
+import org.hyperledger.fabric.gateway.Network;
+import org.hyperledger.fabric.gateway.spi.CommitHandler;
+import org.hyperledger.fabric.gateway.spi.CommitHandlerFactory;
+import org.hyperledger.fabric.gateway.spi.CommitListener;
+import org.hyperledger.fabric.gateway.spi.PeerDisconnectEvent;
+import org.hyperledger.fabric.protos.peer.TransactionPackage.TxValidationCode;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.Peer;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Commit strategy for every submit made through the gateway pool.
+ *
+ * Each transaction gets a commit listener that records its validation code in
+ * a bounded status map. With fabric.commit.strategy=sync a submit still waits
+ * for the org's peers to commit as before; with async it returns as soon as the
+ * orderer has accepted the transaction and callers poll the status instead.
+ * A sync submit the peers invalidated for reading stale state fails with a
+ * ConflictException, which a caller can safely resubmit.
+ *
+ * A listener stays registered after a wait gave up, as the transaction may
+ * still commit. One that has heard nothing after fabric.commit.listener-ttl-ms,
+ * such as for a transaction the orderer dropped, is removed by a periodic
+ * sweep and its status becomes UNKNOWN.
+ */
+@Component
+public class CommitTracker implements CommitHandlerFactory {
+
+    public static final String PENDING = "PENDING";
+    public static final String NOT_SUBMITTED = "NOT_SUBMITTED";
+    public static final String UNKNOWN = "UNKNOWN";
+
+    @Value("${fabric.commit.strategy:sync}")
+    private String strategy;
+
+    @Value("${fabric.commit.status-max-size:100000}")
+    private long statusMaxSize;
+
+    @Value("${fabric.commit.status-ttl-ms:600000}")
+    private long statusTtlMillis;
+
+    @Value("${fabric.commit.listener-ttl-ms:300000}")
+    private long listenerTtlMillis;
+
+    @Autowired
+    private StageMetrics stageMetrics;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    private Cache<String, String> statuses;
+
+    // commit listeners still registered, by transaction ID
+    private final ConcurrentMap<String, TrackingCommitHandler> listening = new ConcurrentHashMap<>();
+    private final AtomicLong expired = new AtomicLong();
+
+    // transaction ID of the submit running on this thread, see submit()
+    private final ThreadLocal<String> currentTransactionId = new ThreadLocal<>();
+    private final ThreadLocal<Long> submitStart = new ThreadLocal<>();
+
+    @PostConstruct
+    public void init() {
+        statuses = CacheBuilder.newBuilder()
+                .maximumSize(statusMaxSize)
+                .expireAfterWrite(statusTtlMillis, TimeUnit.MILLISECONDS)
+                .build();
+        Gauge.builder("fabric.commit.listeners", listening, Map::size).register(registry);
+        FunctionCounter.builder("fabric.commit.listeners.expired", expired, AtomicLong::get).register(registry);
+    }
+
+    /**
+     * Removes the commit listeners that have waited longer than
+     * fabric.commit.listener-ttl-ms, leaving their transactions UNKNOWN.
+     */
+    @Scheduled(fixedDelayString = "${fabric.commit.listener-sweep-interval-ms:10000}")
+    public void expireListeners() {
+        long now = System.nanoTime();
+        long ttl = TimeUnit.MILLISECONDS.toNanos(listenerTtlMillis);
+        for (TrackingCommitHandler handler : listening.values()) {
+            if (now - handler.listenStart > ttl && listening.remove(handler.transactionId, handler)) {
+                handler.network.removeCommitListener(handler);
+                statuses.asMap().replace(handler.transactionId, PENDING, UNKNOWN);
+                expired.incrementAndGet();
+            }
+        }
+    }
+
+    public boolean isAsync() {
+        return "async".equals(strategy);
+    }
+
+    // runs a submit through the pool and returns its result together with the ID of the transaction it sent
+    public Submitted submit(Callable<byte[]> submit) throws Exception {
+        currentTransactionId.remove();
+        submitStart.set(System.nanoTime());
+        try {
+            byte[] result = submit.call();
+            return new Submitted(currentTransactionId.get(), result);
+        } finally {
+            currentTransactionId.remove();
+            submitStart.remove();
+        }
+    }
+
+    /**
+     * Whether the submit running on this thread has been endorsed. The
+     * gateway asks for a commit handler only after that, so a failure from
+     * then on came from peers or an orderer that were reached.
+     */
+    public boolean isEndorsed() {
+        return currentTransactionId.get() != null;
+    }
+
+    // null when the transaction is unknown or its status has been evicted
+    public String getStatus(String transactionId) {
+        return statuses.getIfPresent(transactionId);
+    }
+
+    @Override
+    public CommitHandler create(String transactionId, Network network) {
+        currentTransactionId.set(transactionId);
+        // the gateway asks for a commit handler once endorsement is done
+        Long start = submitStart.get();
+        if (start != null) {
+            stageMetrics.record(StageMetrics.ENDORSE, System.nanoTime() - start);
+        }
+        CommitHandler waiter = isAsync() ? null : DefaultCommitHandlers.MSPID_SCOPE_ALLFORTX.create(transactionId, network);
+        return new TrackingCommitHandler(transactionId, network, waiter);
+    }
+
+    /**
+     * A transaction the peers invalidated with MVCC_READ_CONFLICT or
+     * PHANTOM_READ_CONFLICT. It changed nothing, so the same call can be
+     * submitted again.
+     */
+    public static class ConflictException extends ContractException {
+        private static final long serialVersionUID = 1L;
+
+        private final String transactionId;
+        private final String validationCode;
+
+        public ConflictException(String transactionId, String validationCode, Throwable cause) {
+            super(String.format("Transaction %s was invalidated with %s", transactionId, validationCode), cause);
+            this.transactionId = transactionId;
+            this.validationCode = validationCode;
+        }
+
+        public String getTransactionId() {
+            return transactionId;
+        }
+
+        public String getValidationCode() {
+            return validationCode;
+        }
+    }
+
+    public static final class Submitted {
+        private final String transactionId;
+        private final byte[] result;
+
+        Submitted(String transactionId, byte[] result) {
+            this.transactionId = transactionId;
+            this.result = result;
+        }
+
+        public String getTransactionId() {
+            return transactionId;
+        }
+
+        public byte[] getResult() {
+            return result;
+        }
+    }
+
+    private final class TrackingCommitHandler implements CommitHandler, CommitListener {
+        private final String transactionId;
+        private final Network network;
+        private final CommitHandler waiter;
+        private final CountDownLatch committed = new CountDownLatch(1);
+        private volatile TxValidationCode code;
+        private volatile boolean sent;
+        private volatile long listenStart;
+
+        TrackingCommitHandler(String transactionId, Network network, CommitHandler waiter) {
+            this.transactionId = transactionId;
+            this.network = network;
+            this.waiter = waiter;
+        }
+
+        @Override
+        public void startListening() {
+            listenStart = System.nanoTime();
+            statuses.put(transactionId, PENDING);
+            Collection<Peer> peers = network.getChannel().getPeers(EnumSet.of(Peer.PeerRole.EVENT_SOURCE));
+            listening.put(transactionId, this);
+            network.addCommitListener(this, peers, transactionId);
+            if (waiter != null) {
+                waiter.startListening();
+            }
+        }
+
+        @Override
+        public void waitForEvents(long timeout, TimeUnit timeUnit) throws ContractException, TimeoutException, InterruptedException {
+            sent = true;
+            long orderedAt = System.nanoTime();
+            stageMetrics.record(StageMetrics.ORDER, orderedAt - listenStart);
+            if (waiter != null) {
+                try {
+                    waiter.waitForEvents(timeout, timeUnit);
+                } catch (ContractException e) {
+                    throw conflictOr(e);
+                } finally {
+                    stageMetrics.record(StageMetrics.COMMIT, System.nanoTime() - orderedAt);
+                }
+            }
+        }
+
+        // the waiter may see the rejecting event before this listener does, it is the same delivery
+        private ContractException conflictOr(ContractException e) throws InterruptedException {
+            committed.await(100, TimeUnit.MILLISECONDS);
+            if (code == TxValidationCode.MVCC_READ_CONFLICT || code == TxValidationCode.PHANTOM_READ_CONFLICT) {
+                return new ConflictException(transactionId, code.name(), e);
+            }
+            return e;
+        }
+
+        @Override
+        public void cancelListening() {
+            // once the orderer has the transaction keep listening, it may still commit after a wait timed out
+            if (!sent) {
+                stopListening();
+                statuses.put(transactionId, NOT_SUBMITTED);
+            }
+            if (waiter != null) {
+                waiter.cancelListening();
+            }
+        }
+
+        @Override
+        public void acceptCommit(BlockEvent.TransactionEvent transactionEvent) {
+            stopListening();
+            code = TxValidationCode.forNumber(transactionEvent.getValidationCode());
+            statuses.put(transactionId, code != null ? code.name() : String.valueOf(transactionEvent.getValidationCode()));
+            committed.countDown();
+        }
+
+        private void stopListening() {
+            listening.remove(transactionId, this);
+            network.removeCommitListener(this);
+        }
+
+        @Override
+        public void acceptDisconnect(PeerDisconnectEvent disconnectEvent) {
+            // another event source peer can still report the commit
+        }
+    }
+}
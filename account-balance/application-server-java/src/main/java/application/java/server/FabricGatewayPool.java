@@ -0,0 +1,421 @@
+package application.java.server;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.hyperledger.fabric.gateway.Contract;
+import org.hyperledger.fabric.gateway.ContractException;
+import org.hyperledger.fabric.gateway.Gateway;
+import org.hyperledger.fabric.gateway.Network;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Long-lived pool of connected gateways shared by all requests.
+ *
+ * Gateway, Network and Contract are thread-safe, so a slot is never checked
+ * out exclusively; the pool only spreads calls round-robin over a few gRPC
+ * connections and replaces a slot when it stops working.
+ *
+ * Only failures that reached no peer count against a slot. An endorsed submit
+ * that the orderer or the committing peers turned down, MVCC conflicts
+ * included, says nothing about the connection. A replaced gateway is closed
+ * once the calls still running on it have finished.
+ */
+@Component
+public class FabricGatewayPool {
+
+    @Value("${fabric.gateway.pool-size:2}")
+    private int poolSize;
+
+    @Value("${fabric.channel:mychannel}")
+    private String channelName;
+
+    @Value("${fabric.contract:account}")
+    private String contractName;
+
+    // consecutive connectivity failures before a slot is dropped and reconnected
+    @Value("${fabric.gateway.max-failures:3}")
+    private int maxFailures;
+
+    @Autowired
+    private CommitTracker commitTracker;
+
+    @Autowired
+    private LatencyAwareQueryHandler queryHandler;
+
+    @Autowired
+    private StageMetrics stageMetrics;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    @Autowired(required = false)
+    private GatewayBuilderFactory gatewayBuilderFactory = FabricNetwork::builder;
+
+    private Slot[] slots;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private final AtomicLong connects = new AtomicLong();
+    private final AtomicLong connectFailures = new AtomicLong();
+    private final AtomicLong reconnects = new AtomicLong();
+    private final AtomicLong callFailures = new AtomicLong();
+
+    // block listeners ride on slot 0 and are moved over when it reconnects
+    private final List<Consumer<BlockEvent>> blockListeners = new CopyOnWriteArrayList<>();
+    private final Consumer<BlockEvent> blockDispatcher = this::dispatchBlock;
+    private volatile long lastBlockNumber = -1;
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("fabric.gateway.healthy", this, FabricGatewayPool::getHealthyCount).register(registry);
+        FunctionCounter.builder("fabric.gateway.connects", connects, AtomicLong::get).register(registry);
+        FunctionCounter.builder("fabric.gateway.connect.failures", connectFailures, AtomicLong::get).register(registry);
+        FunctionCounter.builder("fabric.gateway.reconnects", reconnects, AtomicLong::get).register(registry);
+        FunctionCounter.builder("fabric.gateway.call.failures", callFailures, AtomicLong::get).register(registry);
+
+        slots = new Slot[Math.max(1, poolSize)];
+        for (int i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(i);
+            try {
+                slots[i].connect();
+            } catch (Exception e) {
+                // the peer may not be up yet, the health check keeps retrying
+                System.err.println(e);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        for (Slot slot : slots) {
+            slot.disconnect();
+        }
+    }
+
+    public byte[] evaluateTransaction(String name, String... args) throws Exception {
+        Slot slot = acquire();
+        Connection connection = slot.lease();
+        try {
+            byte[] result = stageMetrics.time(StageMetrics.EVALUATE, () -> connection.contract.evaluateTransaction(name, args));
+            slot.failures.set(0);
+            return result;
+        } catch (Exception e) {
+            stageMetrics.recordError(e);
+            slot.failed(e);
+            throw e;
+        } finally {
+            connection.release();
+        }
+    }
+
+    // every submit runs inside CommitTracker.submit, which knows whether this one got as far as the orderer
+    public byte[] submitTransaction(String name, String... args) throws Exception {
+        Slot slot = acquire();
+        Connection connection = slot.lease();
+        try {
+            byte[] result = connection.contract.submitTransaction(name, args);
+            slot.failures.set(0);
+            return result;
+        } catch (Exception e) {
+            stageMetrics.recordError(e);
+            if (!commitTracker.isEndorsed()) {
+                slot.failed(e);
+            }
+            throw e;
+        } finally {
+            connection.release();
+        }
+    }
+
+    public Network getNetwork() throws Exception {
+        Network network = acquire().network;
+        if (network == null) {
+            throw new ContractException("No gateway slot is connected");
+        }
+        return network;
+    }
+
+    /**
+     * Registers a listener for committed blocks on the channel. The listener
+     * survives reconnects; a reconnect resumes from the block after the last
+     * one delivered, so no block is skipped.
+     */
+    public void addBlockListener(Consumer<BlockEvent> listener) {
+        blockListeners.add(listener);
+        slots[0].listen();
+    }
+
+    /**
+     * Like addBlockListener, for a listener that has applied every block before
+     * fromBlock and needs all of the blocks from there on. When the pool is
+     * already delivering later blocks, delivery restarts from fromBlock, so the
+     * other listeners see those blocks again.
+     */
+    public void addBlockListener(Consumer<BlockEvent> listener, long fromBlock) {
+        blockListeners.add(listener);
+        slots[0].replay(fromBlock);
+    }
+
+    /**
+     * Restarts block delivery from fromBlock, for a listener that found blocks
+     * missing after it. The other listeners see the blocks from there again.
+     */
+    public void replayBlocks(long fromBlock) {
+        slots[0].replay(fromBlock);
+    }
+
+    public long getLastBlockNumber() {
+        return lastBlockNumber;
+    }
+
+    private void dispatchBlock(BlockEvent block) {
+        lastBlockNumber = block.getBlockNumber();
+        for (Consumer<BlockEvent> listener : blockListeners) {
+            try {
+                listener.accept(block);
+            } catch (RuntimeException e) {
+                System.err.println(e);
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${fabric.gateway.health-check-interval-ms:30000}")
+    public void healthCheck() {
+        for (Slot slot : slots) {
+            if (slot.isHealthy()) {
+                continue;
+            }
+            try {
+                slot.reconnect();
+            } catch (Exception e) {
+                System.err.println(e);
+            }
+        }
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("size", slots.length);
+        stats.put("healthy", getHealthyCount());
+        stats.put("connects", connects.get());
+        stats.put("connectFailures", connectFailures.get());
+        stats.put("reconnects", reconnects.get());
+        stats.put("callFailures", callFailures.get());
+        return stats;
+    }
+
+    public int getHealthyCount() {
+        int healthy = 0;
+        for (Slot slot : slots) {
+            if (slot.isHealthy()) {
+                healthy++;
+            }
+        }
+        return healthy;
+    }
+
+    private Slot acquire() throws Exception {
+        int start = Math.floorMod(next.getAndIncrement(), slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            Slot slot = slots[(start + i) % slots.length];
+            if (slot.isHealthy()) {
+                return slot;
+            }
+        }
+        // nothing healthy, try to bring the first choice back on the request path
+        Slot slot = slots[start];
+        slot.reconnect();
+        return slot;
+    }
+
+    // a peer that answered the proposal is reachable, only errors without responses count against the slot
+    private static boolean isConnectivityFailure(Exception e) {
+        if (e instanceof CommitTracker.ConflictException) {
+            return false;
+        }
+        if (e instanceof ContractException) {
+            Collection<ProposalResponse> responses = ((ContractException) e).getProposalResponses();
+            return responses == null || responses.isEmpty();
+        }
+        return !(e instanceof TimeoutException) && !(e instanceof InterruptedException);
+    }
+
+    /**
+     * One connected gateway. Calls lease it for their duration, so that a
+     * slot that reconnects closes it only after the last call on it is done.
+     */
+    private static final class Connection {
+        private final Gateway gateway;
+        private final Network network;
+        private final Contract contract;
+        private final AtomicInteger leases = new AtomicInteger();
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private volatile boolean retired;
+
+        Connection(Gateway gateway, Network network, Contract contract) {
+            this.gateway = gateway;
+            this.network = network;
+            this.contract = contract;
+        }
+
+        // false when the connection was retired meanwhile, the caller takes the slot's new one
+        boolean lease() {
+            leases.incrementAndGet();
+            if (retired) {
+                release();
+                return false;
+            }
+            return true;
+        }
+
+        void release() {
+            if (leases.decrementAndGet() == 0 && retired) {
+                close();
+            }
+        }
+
+        void retire() {
+            retired = true;
+            if (leases.get() == 0) {
+                close();
+            }
+        }
+
+        private void close() {
+            if (closed.compareAndSet(false, true)) {
+                gateway.close();
+            }
+        }
+    }
+
+    private final class Slot {
+        private final int index;
+        private volatile Connection connection;
+        private volatile Network network;
+        private boolean listening;
+        // the block delivery started from, -1 for the newest
+        private long listeningFrom = -1;
+        // the lowest block a listener asked for that delivery has not started from yet
+        private long replayFrom = -1;
+        private final AtomicInteger failures = new AtomicInteger();
+
+        Slot(int index) {
+            this.index = index;
+        }
+
+        synchronized void connect() throws Exception {
+            try {
+                Gateway.Builder builder = stageMetrics.time(StageMetrics.WALLET, gatewayBuilderFactory::builder);
+                Gateway newGateway = stageMetrics.time(StageMetrics.CONNECT, () -> builder.commitHandler(commitTracker).queryHandler(queryHandler).connect());
+                Network newNetwork = stageMetrics.time(StageMetrics.DISCOVERY, () -> newGateway.getNetwork(channelName));
+                connection = new Connection(newGateway, newNetwork, newNetwork.getContract(contractName));
+                network = newNetwork;
+                failures.set(0);
+                connects.incrementAndGet();
+                System.out.println("Gateway slot " + index + " connected to " + channelName);
+                listen();
+            } catch (Exception e) {
+                connectFailures.incrementAndGet();
+                throw e;
+            }
+        }
+
+        synchronized void reconnect() throws Exception {
+            if (isHealthy()) {
+                return;
+            }
+            if (connection != null) {
+                reconnects.incrementAndGet();
+            }
+            disconnect();
+            connect();
+        }
+
+        Connection lease() throws ContractException {
+            while (true) {
+                Connection current = connection;
+                if (current == null) {
+                    throw new ContractException("Gateway slot " + index + " is not connected");
+                }
+                if (current.lease()) {
+                    return current;
+                }
+            }
+        }
+
+        synchronized void listen() {
+            if (index != 0 || listening || network == null || blockListeners.isEmpty()) {
+                return;
+            }
+            long from = lastBlockNumber >= 0 ? lastBlockNumber + 1 : -1;
+            if (replayFrom >= 0 && (from < 0 || replayFrom < from)) {
+                from = replayFrom;
+            }
+            if (from >= 0) {
+                network.addBlockListener(from, blockDispatcher);
+            } else {
+                network.addBlockListener(blockDispatcher);
+            }
+            listeningFrom = from;
+            replayFrom = -1;
+            listening = true;
+        }
+
+        synchronized void replay(long fromBlock) {
+            replayFrom = replayFrom < 0 ? fromBlock : Math.min(replayFrom, fromBlock);
+            long nextBlock = lastBlockNumber >= 0 ? lastBlockNumber + 1 : listeningFrom;
+            if (listening && (nextBlock < 0 || nextBlock > fromBlock)) {
+                network.removeBlockListener(blockDispatcher);
+                listening = false;
+            }
+            listen();
+        }
+
+        synchronized void disconnect() {
+            Connection old = connection;
+            if (listening) {
+                // the calls left on the old gateway must not deliver blocks twice
+                network.removeBlockListener(blockDispatcher);
+                listening = false;
+            }
+            connection = null;
+            network = null;
+            if (old != null) {
+                old.retire();
+            }
+        }
+
+        boolean isHealthy() {
+            Network current = network;
+            return connection != null && current != null && !current.getChannel().isShutdown()
+                    && failures.get() < maxFailures;
+        }
+
+        void failed(Exception e) {
+            if (isConnectivityFailure(e)) {
+                callFailures.incrementAndGet();
+                failures.incrementAndGet();
+            }
+        }
+    }
+}
@@ -10,6 +10,12 @@ public enum FabricNetwork {
     INSTANCE;
     	// helper function for getting connected to the gateway
 	public static Gateway connect() throws Exception{
+		return builder().connect();
+	}
+
+	// helper function for a gateway builder with the wallet identity and connection profile loaded,
+	// so long-lived callers can add their own handlers before connecting
+	public static Gateway.Builder builder() throws Exception{
 		// Load a file system based wallet for managing identities.
 		Path walletPath = Paths.get("wallet");
 		Wallet wallet = Wallets.newFileSystemWallet(walletPath);
@@ -18,6 +24,6 @@ public enum FabricNetwork {
 
 		Gateway.Builder builder = Gateway.createBuilder();
 		builder.identity(wallet, "appUser").networkConfig(networkConfigPath).discovery(true);
-		return builder.connect();
+		return builder;
 	}
 }
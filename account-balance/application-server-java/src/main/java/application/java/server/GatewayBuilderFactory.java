@@ -0,0 +1,13 @@
+package application.java.server;
+
+import org.hyperledger.fabric.gateway.Gateway;
+
+/**
+ * Where FabricGatewayPool gets its gateways from. The pool uses
+ * FabricNetwork.builder() unless a bean of this type is defined, which is how
+ * the load test runs the app against an in-process fake.
+ */
+@FunctionalInterface
+public interface GatewayBuilderFactory {
+    Gateway.Builder builder() throws Exception;
+}
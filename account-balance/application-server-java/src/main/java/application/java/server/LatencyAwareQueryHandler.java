@@ -0,0 +1,453 @@
+package application.java.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.hyperledger.fabric.gateway.ContractException;
+import org.hyperledger.fabric.gateway.DefaultQueryHandlers;
+import org.hyperledger.fabric.gateway.Network;
+import org.hyperledger.fabric.gateway.spi.Query;
+import org.hyperledger.fabric.gateway.spi.QueryHandler;
+import org.hyperledger.fabric.gateway.spi.QueryHandlerFactory;
+import org.hyperledger.fabric.sdk.ChaincodeResponse;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Query handler for every evaluate made through the gateway pool.
+ *
+ * With fabric.query.strategy=latency each evaluate goes to the org's query
+ * peers in order of their expected latency: an EWMA of their response times
+ * divided by their EWMA success rate, so a slow or failing peer drops to the
+ * back. A small share of evaluates goes to another peer first so that a peer
+ * that recovered is measured again. With hedging on, a second peer is asked
+ * when the first has not answered within the fabric.query.hedge.percentile of
+ * recent response times, and the first successful answer wins. The calls run
+ * on fabric.query.hedge.threads threads with room for as many waiting, and a
+ * hedge is skipped while every thread is busy, so slow peers, when hedges
+ * fire most, cannot pile up threads; an evaluate that finds the queue full
+ * asks its peers in order on its own thread. The calls still running when an
+ * evaluate has its answer are cancelled, so a slow peer does not hold a thread
+ * for its whole latency. A chaincode error is an answer;
+ * only peers that give no response are skipped, as the gateway's own handlers
+ * do.
+ *
+ * The default strategies single and round-robin use the gateway's handlers.
+ */
+@Component
+public class LatencyAwareQueryHandler implements QueryHandlerFactory {
+
+    private static final int SAMPLES = 1024;
+
+    // the hedge delay is recomputed after this many samples
+    private static final int RECOMPUTE_EVERY = 128;
+
+    @Value("${fabric.query.strategy:single}")
+    private String strategy;
+
+    // weight of the newest response time and outcome in the averages
+    @Value("${fabric.query.ewma-alpha:0.2}")
+    private double alpha;
+
+    @Value("${fabric.query.explore-rate:0.02}")
+    private double exploreRate;
+
+    @Value("${fabric.query.hedge.enabled:false}")
+    private boolean hedgeEnabled;
+
+    @Value("${fabric.query.hedge.percentile:0.95}")
+    private double hedgePercentile;
+
+    @Value("${fabric.query.hedge.min-delay-ms:10}")
+    private long hedgeMinDelayMillis;
+
+    @Value("${fabric.query.hedge.threads:16}")
+    private int hedgeThreads;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    private final ConcurrentMap<String, PeerStats> peers = new ConcurrentHashMap<>();
+
+    // recent response times of successful evaluates over all peers, for the hedge delay; guarded by itself
+    private final long[] samples = new long[SAMPLES];
+    private long sampleCount;
+    private volatile long hedgeDelayNanos;
+
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong hedgesSkipped = new AtomicLong();
+    private ThreadPoolExecutor hedgeExecutor;
+
+    @PostConstruct
+    public void init() {
+        hedgeDelayNanos = TimeUnit.MILLISECONDS.toNanos(hedgeMinDelayMillis);
+        if (!isLatencyAware()) {
+            return;
+        }
+        if (hedgeEnabled) {
+            // not the fabric executor, whose threads would wait here on tasks queued behind them
+            AtomicInteger count = new AtomicInteger();
+            hedgeExecutor = new ThreadPoolExecutor(hedgeThreads, hedgeThreads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(hedgeThreads), runnable -> {
+                    Thread thread = new Thread(runnable, "fabric-query-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        }
+        FunctionCounter.builder("fabric.query.hedges", hedges, AtomicLong::get).register(registry);
+        FunctionCounter.builder("fabric.query.hedge.wins", hedgeWins, AtomicLong::get).register(registry);
+        FunctionCounter.builder("fabric.query.hedges.skipped", hedgesSkipped, AtomicLong::get).register(registry);
+        Gauge.builder("fabric.query.hedge.delay", this, handler -> handler.hedgeDelayNanos / 1e6).baseUnit("milliseconds").register(registry);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (hedgeExecutor != null) {
+            hedgeExecutor.shutdownNow();
+        }
+    }
+
+    public boolean isLatencyAware() {
+        return "latency".equals(strategy);
+    }
+
+    @Override
+    public QueryHandler create(Network network) {
+        if ("round-robin".equals(strategy)) {
+            return DefaultQueryHandlers.MSPID_SCOPE_ROUND_ROBIN.create(network);
+        }
+        if (!isLatencyAware()) {
+            return DefaultQueryHandlers.MSPID_SCOPE_SINGLE.create(network);
+        }
+        // the same peers as the gateway's handlers: the org's peers with the chaincode query role
+        Collection<Peer> queryPeers = network.getChannel().getPeers(EnumSet.of(Peer.PeerRole.CHAINCODE_QUERY));
+        String mspId = network.getGateway().getIdentity().getMspId();
+        List<Peer> orgPeers;
+        try {
+            orgPeers = new ArrayList<>(network.getChannel().getPeersForOrganization(mspId));
+        } catch (Exception e) {
+            throw new IllegalStateException("Could not get the peers of " + mspId, e);
+        }
+        orgPeers.retainAll(queryPeers);
+        if (orgPeers.isEmpty()) {
+            throw new IllegalStateException("No query peers for " + mspId);
+        }
+        return new Handler(orgPeers);
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("strategy", strategy);
+        stats.put("hedgeEnabled", hedgeEnabled);
+        stats.put("hedgeDelayMs", hedgeDelayNanos / 1e6);
+        stats.put("hedges", hedges.get());
+        stats.put("hedgeWins", hedgeWins.get());
+        stats.put("hedgesSkipped", hedgesSkipped.get());
+        Map<String, Object> peerStats = new LinkedHashMap<>();
+        for (Map.Entry<String, PeerStats> peer : peers.entrySet()) {
+            peerStats.put(peer.getKey(), peer.getValue().toMap());
+        }
+        stats.put("peers", peerStats);
+        return stats;
+    }
+
+    private PeerStats stats(Peer peer) {
+        return peers.computeIfAbsent(peer.getName(), name -> {
+            PeerStats stats = new PeerStats();
+            Gauge.builder("fabric.query.peer.latency", stats, PeerStats::getLatencyMillis)
+                    .tag("peer", name).baseUnit("milliseconds").register(registry);
+            Gauge.builder("fabric.query.peer.error.rate", stats, PeerStats::getErrorRate).tag("peer", name).register(registry);
+            return stats;
+        });
+    }
+
+    // the samples are copied under the lock and sorted outside it
+    private void sample(long nanos) {
+        long[] sorted;
+        synchronized (samples) {
+            samples[(int) (sampleCount % SAMPLES)] = nanos;
+            sampleCount++;
+            if (sampleCount % RECOMPUTE_EVERY != 0) {
+                return;
+            }
+            sorted = Arrays.copyOf(samples, (int) Math.min(sampleCount, SAMPLES));
+        }
+        Arrays.sort(sorted);
+        long percentile = sorted[(int) Math.min(sorted.length - 1, Math.floor(hedgePercentile * sorted.length))];
+        hedgeDelayNanos = Math.max(TimeUnit.MILLISECONDS.toNanos(hedgeMinDelayMillis), percentile);
+    }
+
+    private static boolean isSuccess(ProposalResponse response) {
+        return response != null && response.getStatus() == ChaincodeResponse.Status.SUCCESS;
+    }
+
+    // a peer that answered with a chaincode error has answered, like SingleQueryHandler treats it
+    private static boolean isAnswer(ProposalResponse response) {
+        return isSuccess(response) || response != null && response.getProposalResponse() != null;
+    }
+
+    /**
+     * The response times and outcomes of one peer, shared by the handlers of
+     * every gateway slot.
+     */
+    private final class PeerStats {
+        private double latencyNanos = Double.NaN;
+        private double errorRate;
+        private long calls;
+        private long errors;
+
+        // a peer that has only failed so far is measured by the time its failures took, or it would keep ranking first
+        synchronized void record(long nanos, boolean answered) {
+            calls++;
+            if (answered || Double.isNaN(latencyNanos)) {
+                latencyNanos = Double.isNaN(latencyNanos) ? nanos : latencyNanos + alpha * (nanos - latencyNanos);
+            }
+            if (!answered) {
+                errors++;
+            }
+            errorRate += alpha * ((answered ? 0 : 1) - errorRate);
+        }
+
+        // a call cancelled after nanos took at least that long, which is all that is known of it
+        synchronized void recordCancelled(long nanos) {
+            calls++;
+            if (Double.isNaN(latencyNanos) || nanos > latencyNanos) {
+                latencyNanos = Double.isNaN(latencyNanos) ? nanos : latencyNanos + alpha * (nanos - latencyNanos);
+            }
+        }
+
+        // the expected time to an answer; peers not measured yet come first
+        synchronized double score() {
+            double latency = Double.isNaN(latencyNanos) ? 0 : latencyNanos;
+            return latency / (1 - Math.min(errorRate, 0.99));
+        }
+
+        synchronized double getLatencyMillis() {
+            return Double.isNaN(latencyNanos) ? 0 : latencyNanos / 1e6;
+        }
+
+        synchronized double getErrorRate() {
+            return errorRate;
+        }
+
+        synchronized Map<String, Object> toMap() {
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("latencyMs", getLatencyMillis());
+            map.put("errorRate", errorRate);
+            map.put("calls", calls);
+            map.put("errors", errors);
+            return map;
+        }
+    }
+
+    /**
+     * A call of a hedged evaluate on the query pool.
+     */
+    private static final class Call {
+        private Future<ProposalResponse> future;
+        // set before the call is interrupted, so that it is not counted as the peer failing
+        private volatile boolean cancelled;
+
+        void cancel() {
+            if (!future.isDone()) {
+                cancelled = true;
+                future.cancel(true);
+            }
+        }
+    }
+
+    private final class Handler implements QueryHandler {
+        private final List<Peer> peers;
+
+        Handler(List<Peer> peers) {
+            this.peers = peers;
+        }
+
+        @Override
+        public ProposalResponse evaluate(Query query) throws ContractException {
+            List<Peer> ranked = rank();
+            return hedgeExecutor != null && ranked.size() > 1 ? evaluateHedged(query, ranked) : evaluateInOrder(query, ranked);
+        }
+
+        private List<Peer> rank() {
+            List<Peer> ranked = new ArrayList<>(peers);
+            Map<Peer, Double> scores = new HashMap<>();
+            for (Peer peer : ranked) {
+                scores.put(peer, stats(peer).score());
+            }
+            ranked.sort((a, b) -> Double.compare(scores.get(a), scores.get(b)));
+            if (ranked.size() > 1 && ThreadLocalRandom.current().nextDouble() < exploreRate) {
+                Peer explored = ranked.remove(1 + ThreadLocalRandom.current().nextInt(ranked.size() - 1));
+                ranked.add(0, explored);
+            }
+            return ranked;
+        }
+
+        private ProposalResponse evaluateInOrder(Query query, List<Peer> ranked) throws ContractException {
+            return evaluateInOrder(query, ranked, new ArrayList<>());
+        }
+
+        private ProposalResponse evaluateInOrder(Query query, List<Peer> ranked, List<ProposalResponse> failures) throws ContractException {
+            for (Peer peer : ranked) {
+                ProposalResponse response = call(query, peer);
+                if (isAnswer(response)) {
+                    return answer(response);
+                }
+                if (response != null) {
+                    failures.add(response);
+                }
+            }
+            throw noAnswer(failures);
+        }
+
+        // the next peer is asked when the ones in flight have not answered within the hedge delay, or have failed
+        private ProposalResponse evaluateHedged(Query query, List<Peer> ranked) throws ContractException {
+            CompletionService<ProposalResponse> calls = new ExecutorCompletionService<>(hedgeExecutor);
+            List<Call> started = new ArrayList<>();
+            List<ProposalResponse> failures = new ArrayList<>();
+            Call first = submit(calls, query, ranked.get(0));
+            if (first == null) {
+                hedgesSkipped.incrementAndGet();
+                return evaluateInOrder(query, ranked);
+            }
+            started.add(first);
+            boolean hedged = false;
+            boolean skipped = false;
+            int pending = 1;
+            try {
+                while (pending > 0) {
+                    Future<ProposalResponse> done = !skipped && started.size() < ranked.size() && started.size() < 2
+                            ? calls.poll(hedgeDelayNanos, TimeUnit.NANOSECONDS) : calls.take();
+                    if (done == null) {
+                        Call hedge = hedgeExecutor.getActiveCount() < hedgeThreads
+                                ? submit(calls, query, ranked.get(started.size())) : null;
+                        if (hedge == null) {
+                            hedgesSkipped.incrementAndGet();
+                            skipped = true;
+                            continue;
+                        }
+                        hedges.incrementAndGet();
+                        hedged = true;
+                        started.add(hedge);
+                        pending++;
+                        continue;
+                    }
+                    pending--;
+                    ProposalResponse response = done.get();
+                    if (isAnswer(response)) {
+                        if (hedged && done != first.future) {
+                            hedgeWins.incrementAndGet();
+                        }
+                        return answer(response);
+                    }
+                    if (response != null) {
+                        failures.add(response);
+                    }
+                    if (started.size() < ranked.size()) {
+                        Call next = submit(calls, query, ranked.get(started.size()));
+                        if (next != null) {
+                            started.add(next);
+                            pending++;
+                        } else if (pending == 0) {
+                            // the pool is full, the peers left are asked on this thread
+                            return evaluateInOrder(query, ranked.subList(started.size(), ranked.size()), failures);
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ContractException("Interrupted while waiting for query responses");
+            } catch (ExecutionException e) {
+                throw new ContractException("Query failed: " + e.getCause());
+            } finally {
+                for (Call call : started) {
+                    call.cancel();
+                }
+            }
+            throw noAnswer(failures);
+        }
+
+        // null when the pool has no room for the call
+        private Call submit(CompletionService<ProposalResponse> calls, Query query, Peer peer) {
+            Call call = new Call();
+            try {
+                call.future = calls.submit(() -> call(query, peer, call));
+                return call;
+            } catch (RejectedExecutionException e) {
+                return null;
+            }
+        }
+
+        private ProposalResponse call(Query query, Peer peer) {
+            return call(query, peer, null);
+        }
+
+        // the losing call of a hedge records the time until it was cancelled, which is how a slow peer is found out
+        private ProposalResponse call(Query query, Peer peer, Call call) {
+            PeerStats stats = stats(peer);
+            long start = System.nanoTime();
+            ProposalResponse response = null;
+            try {
+                response = query.evaluate(peer);
+                return response;
+            } finally {
+                long nanos = System.nanoTime() - start;
+                boolean answered = isAnswer(response);
+                if (call != null && call.cancelled && !answered) {
+                    stats.recordCancelled(nanos);
+                } else {
+                    stats.record(nanos, answered);
+                }
+                if (answered) {
+                    sample(nanos);
+                }
+            }
+        }
+
+        private ProposalResponse answer(ProposalResponse response) throws ContractException {
+            if (isSuccess(response)) {
+                return response;
+            }
+            throw new ContractException(response.getMessage(), Collections.singletonList(response));
+        }
+
+        private ContractException noAnswer(List<ProposalResponse> failures) {
+            StringBuilder message = new StringBuilder("No successful responses received. Errors: ");
+            for (int i = 0; i < failures.size(); i++) {
+                message.append(i > 0 ? "; " : "").append(failures.get(i).getMessage());
+            }
+            return new ContractException(message.toString(), failures);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package application.java.server;
+
+import java.util.function.BiConsumer;
+
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+
+import com.google.protobuf.InvalidProtocolBufferException;
+
+/**
+ * Walks the committed key writes of a block for one chaincode namespace.
+ */
+public final class LedgerWrites {
+
+    private LedgerWrites() {
+    }
+
+    // visits the writes of every valid transaction in the block, in block order;
+    // throws IllegalStateException when a write set cannot be decoded
+    public static void forEachWrite(BlockEvent block, String namespace,
+            BiConsumer<BlockEvent.TransactionEvent, KvRwset.KVWrite> visitor) {
+        for (BlockEvent.TransactionEvent tx : block.getTransactionEvents()) {
+            if (!tx.isValid()) {
+                continue;
+            }
+            for (BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo action : tx.getTransactionActionInfos()) {
+                TxReadWriteSetInfo rwSet = action.getTxReadWriteSet();
+                if (rwSet == null) {
+                    continue;
+                }
+                for (TxReadWriteSetInfo.NsRwsetInfo nsRwSet : rwSet.getNsRwsetInfos()) {
+                    if (!namespace.equals(nsRwSet.getNamespace())) {
+                        continue;
+                    }
+                    try {
+                        for (KvRwset.KVWrite write : nsRwSet.getRwset().getWritesList()) {
+                            visitor.accept(tx, write);
+                        }
+                    } catch (InvalidProtocolBufferException e) {
+                        throw new IllegalStateException("Unreadable write set in block " + block.getBlockNumber(), e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -7,6 +7,7 @@ public class Request {
     private String timestamp;
     private Map<String, Object> params;
     private String publicKey;
+    private String signature;
 
     public int getId() {
         return this.id;
@@ -40,8 +41,12 @@ public class Request {
          this.publicKey = publicKey;
      }
 
+     // base64 signature over SignatureVerifier.signedPayload(this) made with publicKey
      public String getSignature() {
-        String sig = "";
-        return sig;
+        return this.signature;
+     }
+
+     public void setSignature(String signature) {
+         this.signature = signature;
      }
 }
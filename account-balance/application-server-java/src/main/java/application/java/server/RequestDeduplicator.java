@@ -0,0 +1,170 @@
+package application.java.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.hash.Hashing;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Makes retried requests idempotent within a time window.
+ *
+ * Requests are keyed on endpoint, publicKey and Request.id, and remember a
+ * SHA-256 of their params. A repeat of a request that is still running joins
+ * its future, and a repeat of a finished one gets the same response, so a
+ * client retrying /send after a timeout never submits the transfer twice. A
+ * request reusing a key with different params is answered 409 rather than
+ * getting another transfer's outcome. Only an outcome that stands is kept:
+ * a success, a rejection by the chaincode or of the request itself (400), and
+ * a commit that timed out and may still happen (504). A request that failed
+ * with an exception, or whose answer says the transfer certainly did not
+ * happen, is run again: an MVCC conflict (409), a request turned away (429,
+ * 503), or Fabric unreachable or the commit rejected (502). An id of 0 means
+ * the client did not supply one, and without request.signature.enabled the
+ * publicKey is only a claim that anyone could use to take another client's
+ * ids, so neither kind of request is deduplicated.
+ */
+@Component
+public class RequestDeduplicator {
+
+    @Value("${request.dedup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${request.dedup.window-ms:600000}")
+    private long windowMillis;
+
+    @Value("${request.dedup.max-entries:100000}")
+    private long maxEntries;
+
+    @Autowired
+    private SignatureVerifier signatureVerifier;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    private ObjectMapper canonicalMapper;
+    private Cache<String, Outcome> outcomes;
+
+    private final AtomicLong duplicates = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    private final AtomicLong evicted = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        canonicalMapper = objectMapper.copy().enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+        outcomes = CacheBuilder.newBuilder()
+                .maximumSize(maxEntries)
+                .expireAfterWrite(windowMillis, TimeUnit.MILLISECONDS)
+                .<String, Outcome>removalListener(removal -> {
+                    if (removal.getCause() == RemovalCause.EXPIRED) {
+                        expired.incrementAndGet();
+                    } else if (removal.getCause() == RemovalCause.SIZE) {
+                        evicted.incrementAndGet();
+                    }
+                })
+                .build();
+        Gauge.builder("request.dedup.entries", outcomes, Cache::size).register(registry);
+        FunctionCounter.builder("request.dedup.duplicates", duplicates, AtomicLong::get).register(registry);
+        FunctionCounter.builder("request.dedup.conflicts", conflicts, AtomicLong::get).register(registry);
+        FunctionCounter.builder("request.dedup.expired", expired, AtomicLong::get).register(registry);
+        FunctionCounter.builder("request.dedup.evicted", evicted, AtomicLong::get).register(registry);
+    }
+
+    /**
+     * Runs handler, or answers with the outcome of the earlier request with the
+     * same key. Call only once the request signature has been verified.
+     */
+    public CompletableFuture<ResponseEntity<Object>> deduplicate(String endpoint, Request req,
+            Supplier<CompletableFuture<ResponseEntity<Object>>> handler) {
+        if (!enabled || req.getId() == 0 || !signatureVerifier.isEnabled()) {
+            return handler.get();
+        }
+        String key = endpoint + ":" + req.getPublicKey() + ":" + req.getId();
+        String paramsHash;
+        try {
+            paramsHash = Hashing.sha256().hashBytes(canonicalMapper.writeValueAsBytes(req.getParams())).toString();
+        } catch (JsonProcessingException e) {
+            System.err.println(e);
+            return handler.get();
+        }
+        Outcome entry = new Outcome(paramsHash);
+        CompletableFuture<ResponseEntity<Object>> outcome = entry.response;
+        Outcome existing = outcomes.asMap().putIfAbsent(key, entry);
+        if (existing != null) {
+            if (!existing.paramsHash.equals(paramsHash)) {
+                conflicts.incrementAndGet();
+                return CompletableFuture.completedFuture(new ResponseEntity<>(
+                    String.format("Request id %d was already used with different params", req.getId()), HttpStatus.CONFLICT));
+            }
+            duplicates.incrementAndGet();
+            return existing.response;
+        }
+        CompletableFuture<ResponseEntity<Object>> result;
+        try {
+            result = handler.get();
+        } catch (RuntimeException e) {
+            result = new CompletableFuture<>();
+            result.completeExceptionally(e);
+        }
+        result.whenComplete((response, e) -> {
+            if (e != null || !isFinal(response)) {
+                outcomes.asMap().remove(key, entry);
+            }
+            if (e != null) {
+                outcome.completeExceptionally(e);
+            } else {
+                outcome.complete(response);
+            }
+        });
+        return outcome;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("entries", outcomes.size());
+        stats.put("duplicates", duplicates.get());
+        stats.put("conflicts", conflicts.get());
+        stats.put("expired", expired.get());
+        stats.put("evicted", evicted.get());
+        return stats;
+    }
+
+    private static boolean isFinal(ResponseEntity<Object> response) {
+        HttpStatus status = response.getStatusCode();
+        return status.is2xxSuccessful() || status == HttpStatus.BAD_REQUEST || status == HttpStatus.GATEWAY_TIMEOUT;
+    }
+
+    private static final class Outcome {
+        private final String paramsHash;
+        private final CompletableFuture<ResponseEntity<Object>> response = new CompletableFuture<>();
+
+        Outcome(String paramsHash) {
+            this.paramsHash = paramsHash;
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package application.java.server;
+
+import java.nio.charset.StandardCharsets;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.X509EncodedKeySpec;
+import java.time.OffsetDateTime;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Checks that a Request is signed with Request.publicKey and that the key is
+ * the one stored on every account it acts on, or one of
+ * request.signature.admin-keys for the endpoints that read all accounts.
+ *
+ * The signed payload is id, timestamp and the params as JSON with sorted keys,
+ * separated by newlines, signed with SHA256withECDSA or SHA256withRSA depending
+ * on the key. The timestamp, epoch milliseconds or ISO-8601 with an offset,
+ * must be within request.signature.max-skew-ms of the server clock, so a
+ * captured request cannot be replayed after that; a /send replayed within it
+ * gets the deduplicated outcome of the original. Decoded keys and account owner
+ * keys are cached, and signatures are verified on a small CPU-sized pool
+ * rather than on the request threads.
+ */
+@Component
+public class SignatureVerifier {
+
+    @Value("${request.signature.enabled:false}")
+    private boolean enabled;
+
+    @Value("${request.signature.key-cache-size:10000}")
+    private long keyCacheSize;
+
+    @Value("${request.signature.threads:0}")
+    private int threads;
+
+    @Value("${request.signature.max-skew-ms:300000}")
+    private long maxSkewMillis;
+
+    @Value("${request.signature.admin-keys:}")
+    private String[] adminKeys;
+
+    @Autowired
+    private FabricGatewayPool gatewayPool;
+
+    @Autowired
+    private ExecutorService fabricExecutor;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private ObjectMapper canonicalMapper;
+    private ExecutorService verifyExecutor;
+    private Cache<String, PublicKey> publicKeys;
+    // account keys, normalized, are set by CreateAccount and never change, so they can be kept until evicted
+    private Cache<String, String> ownerKeys;
+    private Set<String> admins;
+
+    @PostConstruct
+    public void init() {
+        canonicalMapper = objectMapper.copy().enable(SerializationFeature.ORDER_MAP_ENTRIES_BY_KEYS);
+        publicKeys = CacheBuilder.newBuilder().maximumSize(keyCacheSize).build();
+        ownerKeys = CacheBuilder.newBuilder().maximumSize(keyCacheSize).expireAfterAccess(1, TimeUnit.HOURS).build();
+        admins = new HashSet<>();
+        for (String adminKey : adminKeys) {
+            if (!adminKey.trim().isEmpty()) {
+                admins.add(normalize(adminKey));
+            }
+        }
+        if (enabled) {
+            AtomicInteger count = new AtomicInteger();
+            verifyExecutor = Executors.newFixedThreadPool(threads > 0 ? threads : Runtime.getRuntime().availableProcessors(),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "verify-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        if (verifyExecutor != null) {
+            verifyExecutor.shutdown();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Completes with true when verification is disabled, or when the signature
+     * is valid and recent and, if accountParam is given, the signer owns that
+     * account, or every account when the param is a list.
+     */
+    public CompletableFuture<Boolean> verify(Request req, String accountParam) {
+        if (!enabled) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (req.getPublicKey() == null || req.getSignature() == null || !isRecent(req)) {
+            return CompletableFuture.completedFuture(false);
+        }
+        CompletableFuture<Boolean> signed = CompletableFuture.supplyAsync(() -> isSignatureValid(req), verifyExecutor);
+        if (accountParam == null) {
+            return signed;
+        }
+        CompletableFuture<Boolean> owned = CompletableFuture.supplyAsync(() -> isOwner(req, accountParam), fabricExecutor);
+        return signed.thenCombine(owned, (validSignature, owner) -> validSignature && owner);
+    }
+
+    /**
+     * Completes with true when verification is disabled, or when the signature
+     * is valid and recent and made with one of the admin keys.
+     */
+    public CompletableFuture<Boolean> verifyAdmin(Request req) {
+        if (enabled && (req.getPublicKey() == null || !admins.contains(normalize(req.getPublicKey())))) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return verify(req, null);
+    }
+
+    public byte[] signedPayload(Request req) throws Exception {
+        String params = canonicalMapper.writeValueAsString(req.getParams());
+        return (req.getId() + "\n" + req.getTimestamp() + "\n" + params).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private boolean isSignatureValid(Request req) {
+        try {
+            PublicKey key = publicKeys.get(req.getPublicKey(), () -> decodePublicKey(req.getPublicKey()));
+            Signature signature = Signature.getInstance("EC".equals(key.getAlgorithm()) ? "SHA256withECDSA" : "SHA256withRSA");
+            signature.initVerify(key);
+            signature.update(signedPayload(req));
+            return signature.verify(Base64.getDecoder().decode(req.getSignature()));
+        } catch (Exception e) {
+            System.err.println(e);
+            return false;
+        }
+    }
+
+    private boolean isRecent(Request req) {
+        if (maxSkewMillis <= 0) {
+            return true;
+        }
+        try {
+            String timestamp = req.getTimestamp().trim();
+            long millis = timestamp.chars().allMatch(Character::isDigit)
+                ? Long.parseLong(timestamp) : OffsetDateTime.parse(timestamp).toInstant().toEpochMilli();
+            return Math.abs(System.currentTimeMillis() - millis) <= maxSkewMillis;
+        } catch (Exception e) {
+            System.err.println(e);
+            return false;
+        }
+    }
+
+    private boolean isOwner(Request req, String accountParam) {
+        try {
+            Object accountIds = req.getParams() != null ? req.getParams().get(accountParam) : null;
+            if (accountIds == null) {
+                return false;
+            }
+            // the account may hold its key as PEM while the request sends it bare, or the other way round
+            String publicKey = normalize(req.getPublicKey());
+            for (Object accountId : accountIds instanceof Collection ? (Collection<?>) accountIds : Collections.singleton(accountIds)) {
+                String ownerKey = ownerKeys.get(accountId.toString(), () -> {
+                    byte[] account = gatewayPool.evaluateTransaction("ReadAccount", accountId.toString());
+                    return normalize(objectMapper.readTree(account).get("publicKey").asText());
+                });
+                if (!ownerKey.equals(publicKey)) {
+                    return false;
+                }
+            }
+            return true;
+        } catch (Exception e) {
+            System.err.println(e);
+            return false;
+        }
+    }
+
+    // the base64 DER of a key, whether given as PEM or bare
+    private static String normalize(String publicKey) {
+        return publicKey.replaceAll("-----(BEGIN|END) PUBLIC KEY-----", "").replaceAll("\\s", "");
+    }
+
+    // accepts a PEM "PUBLIC KEY" block or the bare base64 DER SubjectPublicKeyInfo
+    private static PublicKey decodePublicKey(String publicKey) throws Exception {
+        X509EncodedKeySpec spec = new X509EncodedKeySpec(Base64.getDecoder().decode(normalize(publicKey)));
+        try {
+            return KeyFactory.getInstance("EC").generatePublic(spec);
+        } catch (Exception e) {
+            return KeyFactory.getInstance("RSA").generatePublic(spec);
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package application.java.server;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+import org.hyperledger.fabric.gateway.ContractException;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Per-stage latency histograms, chaincode error counters and in-flight gauges.
+ *
+ * Stages are the steps of a request that can each dominate its latency: wallet
+ * and connection profile loading, gateway connect, channel discovery,
+ * evaluate, endorse, order, commit wait and JSON handling. With
+ * metrics.stages.enabled=false every call goes straight to the wrapped code.
+ */
+@Component
+public class StageMetrics {
+
+    public static final String WALLET = "wallet";
+    public static final String CONNECT = "connect";
+    public static final String DISCOVERY = "discovery";
+    public static final String EVALUATE = "evaluate";
+    public static final String ENDORSE = "endorse";
+    public static final String ORDER = "order";
+    public static final String COMMIT = "commit";
+    public static final String JSON = "json";
+
+    private static final Pattern ERROR_CODE = Pattern.compile("[A-Z][A-Z_]+");
+
+    @Value("${metrics.stages.enabled:true}")
+    private boolean enabled;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    private final ConcurrentMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Counter> errors = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, AtomicInteger> inFlight = new ConcurrentHashMap<>();
+
+    public <T> T time(String stage, Callable<T> call) throws Exception {
+        if (!enabled) {
+            return call.call();
+        }
+        long start = System.nanoTime();
+        try {
+            return call.call();
+        } finally {
+            record(stage, System.nanoTime() - start);
+        }
+    }
+
+    public void record(String stage, long nanos) {
+        if (enabled) {
+            timers.computeIfAbsent(stage, name -> Timer.builder("fabric.stage")
+                    .tag("stage", name)
+                    .publishPercentileHistogram()
+                    .register(registry))
+                .record(nanos, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    public void recordError(Throwable e) {
+        if (enabled) {
+            errors.computeIfAbsent(errorCode(e), code -> Counter.builder("fabric.chaincode.errors")
+                    .tag("code", code)
+                    .register(registry))
+                .increment();
+        }
+    }
+
+    // counts the request as in flight on the endpoint until the returned future completes
+    public <T> CompletableFuture<T> inFlight(String endpoint, Supplier<CompletableFuture<T>> request) {
+        if (!enabled) {
+            return request.get();
+        }
+        AtomicInteger gauge = inFlight.computeIfAbsent(endpoint, name -> {
+            AtomicInteger count = new AtomicInteger();
+            Gauge.builder("http.inflight", count, AtomicInteger::get).tag("endpoint", name).register(registry);
+            return count;
+        });
+        gauge.incrementAndGet();
+        try {
+            return request.get().whenComplete((result, e) -> gauge.decrementAndGet());
+        } catch (RuntimeException e) {
+            gauge.decrementAndGet();
+            throw e;
+        }
+    }
+
+    /**
+     * The chaincode error code (ACCOUNT_NOT_FOUND, INSUFFICIENT_BALANCE, ...)
+     * carried by the peer responses, or the exception type when the failure did
+     * not come from the chaincode.
+     */
+    public static String errorCode(Throwable e) {
+        while ((e instanceof CompletionException || e instanceof ExecutionException) && e.getCause() != null) {
+            e = e.getCause();
+        }
+        if (e instanceof CommitTracker.ConflictException) {
+            return ((CommitTracker.ConflictException) e).getValidationCode();
+        }
+        if (e instanceof TransferBatcher.TransferRejectedException) {
+            return ((TransferBatcher.TransferRejectedException) e).getErrorCode();
+        }
+        if (e instanceof ContractException && ((ContractException) e).getProposalResponses() != null) {
+            for (ProposalResponse response : ((ContractException) e).getProposalResponses()) {
+                String payload = response.getProposalResponse().getResponse().getPayload().toString(StandardCharsets.UTF_8);
+                if (ERROR_CODE.matcher(payload).matches()) {
+                    return payload;
+                }
+            }
+        }
+        return e.getClass().getSimpleName();
+    }
+}
@@ -0,0 +1,184 @@
+package application.java.server;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.hyperledger.fabric.gateway.ContractException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Collects concurrent transfers into micro-batches and submits each batch as a
+ * single BatchTransfer transaction.
+ *
+ * One batch is in flight at a time: transfers that arrive while it is being
+ * endorsed and committed form the next batch, so the batch size grows with the
+ * load instead of every transfer paying its own orderer round-trip. At most
+ * transfer.batch.max-queue transfers wait for a batch; the ones over it fail at
+ * once with a RejectedExecutionException, answered 503, so a burst pushes back
+ * on the clients instead of growing the queue and every transfer's latency.
+ */
+@Component
+public class TransferBatcher {
+
+    @Value("${transfer.batch.enabled:false}")
+    private boolean enabled;
+
+    @Value("${transfer.batch.max-size:100}")
+    private int maxSize;
+
+    @Value("${transfer.batch.max-wait-ms:20}")
+    private long maxWaitMillis;
+
+    @Value("${transfer.batch.max-queue:10000}")
+    private int maxQueue;
+
+    @Autowired
+    private FabricGatewayPool gatewayPool;
+
+    @Autowired
+    private CommitTracker commitTracker;
+
+    @Autowired
+    private StageMetrics stageMetrics;
+
+    @Autowired
+    private ObjectMapper objectMapper;
+
+    private BlockingQueue<Leg> queue;
+    private Thread flusher;
+
+    @PostConstruct
+    public void start() {
+        queue = new LinkedBlockingQueue<>(maxQueue);
+        if (!enabled) {
+            return;
+        }
+        flusher = new Thread(this::run, "transfer-batcher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (flusher != null) {
+            flusher.interrupt();
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // completes with the remaining balance of the debited account and the batch transaction ID,
+    // or exceptionally with a RejectedExecutionException when the queue is full
+    public CompletableFuture<TransferReceipt> transfer(String fromAccountId, String toAccountId, BigDecimal amount) {
+        Leg leg = new Leg(fromAccountId, toAccountId, amount);
+        if (!queue.offer(leg)) {
+            leg.result.completeExceptionally(new RejectedExecutionException("Transfer batch queue is full"));
+        }
+        return leg.result;
+    }
+
+    private void run() {
+        List<Leg> batch = new ArrayList<>(maxSize);
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+                while (batch.size() < maxSize) {
+                    Leg leg = queue.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (leg == null) {
+                        break;
+                    }
+                    batch.add(leg);
+                }
+                submit(batch);
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        queue.drainTo(batch);
+        for (Leg leg : batch) {
+            leg.result.completeExceptionally(new IllegalStateException("Transfer batcher stopped"));
+        }
+    }
+
+    private void submit(List<Leg> batch) {
+        try {
+            List<Map<String, Object>> transfers = new ArrayList<>(batch.size());
+            for (Leg leg : batch) {
+                Map<String, Object> transfer = new LinkedHashMap<>();
+                transfer.put("from", leg.fromAccountId);
+                transfer.put("to", leg.toAccountId);
+                transfer.put("amount", leg.amount.toPlainString());
+                transfers.add(transfer);
+            }
+            String payload = stageMetrics.time(StageMetrics.JSON, () -> objectMapper.writeValueAsString(transfers));
+            CommitTracker.Submitted submitted = commitTracker.submit(() -> gatewayPool.submitTransaction("BatchTransfer", payload));
+            JsonNode results = stageMetrics.time(StageMetrics.JSON, () -> objectMapper.readTree(submitted.getResult()));
+            for (int i = 0; i < batch.size(); i++) {
+                JsonNode result = results.get(i);
+                if (result.get("error").isNull()) {
+                    batch.get(i).result.complete(new TransferReceipt(submitted.getTransactionId(), result.get("balance").asText()));
+                } else {
+                    TransferRejectedException rejected = new TransferRejectedException(result.get("error").asText(), result.get("message").asText());
+                    stageMetrics.recordError(rejected);
+                    batch.get(i).result.completeExceptionally(rejected);
+                }
+            }
+        } catch (Exception e) {
+            System.err.println(e);
+            for (Leg leg : batch) {
+                leg.result.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * A single leg the chaincode rejected while the rest of its batch committed.
+     */
+    public static class TransferRejectedException extends ContractException {
+        private static final long serialVersionUID = 1L;
+
+        private final String errorCode;
+
+        public TransferRejectedException(String errorCode, String message) {
+            super(message);
+            this.errorCode = errorCode;
+        }
+
+        public String getErrorCode() {
+            return errorCode;
+        }
+    }
+
+    private static final class Leg {
+        private final String fromAccountId;
+        private final String toAccountId;
+        private final BigDecimal amount;
+        private final CompletableFuture<TransferReceipt> result = new CompletableFuture<>();
+
+        Leg(String fromAccountId, String toAccountId, BigDecimal amount) {
+            this.fromAccountId = fromAccountId;
+            this.toAccountId = toAccountId;
+            this.amount = amount;
+        }
+    }
+}
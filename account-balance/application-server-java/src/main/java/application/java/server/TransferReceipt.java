@@ -0,0 +1,23 @@
+package application.java.server;
+
+/**
+ * Result of a transfer submit: the remaining balance of the debited account as
+ * endorsed, and the transaction that carries it.
+ */
+public class TransferReceipt {
+    private final String transactionId;
+    private final String remainingBalance;
+
+    public TransferReceipt(String transactionId, String remainingBalance) {
+        this.transactionId = transactionId;
+        this.remainingBalance = remainingBalance;
+    }
+
+    public String getTransactionId() {
+        return transactionId;
+    }
+
+    public String getRemainingBalance() {
+        return remainingBalance;
+    }
+}
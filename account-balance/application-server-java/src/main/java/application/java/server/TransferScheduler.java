@@ -0,0 +1,280 @@
+package application.java.server;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Runs the unbatched transfers of each account one after another, and submits
+ * again the ones the peers invalidated for reading stale state.
+ *
+ * Every account has a lane, the chain of transfers touching it. A transfer
+ * joins the lanes of both of its accounts, or only of the debited one with
+ * transfer.lanes.serialize-receiver=false for a chaincode that writes delta
+ * credits and never reads the receiver, and starts once the transfers ahead of
+ * it in each lane have finished. The two lanes are joined together under their
+ * stripe locks, taken in one fixed order, so two transfers can never each wait
+ * for the other. A lane only orders the transfers of this server up to their
+ * commit, so it needs fabric.commit.strategy=sync.
+ *
+ * A transfer that fails with a CommitTracker.ConflictException is submitted
+ * again after a jittered exponential backoff, up to transfer.retry.max-attempts
+ * in all, while the retry budget lasts: every first attempt adds
+ * transfer.retry.budget-ratio of a retry to it, so retries stay a bounded share
+ * of the load when conflicts come from elsewhere. Conflicts and retries are
+ * counted per account for the stats.
+ */
+@Component
+public class TransferScheduler {
+
+    @Value("${transfer.lanes.enabled:false}")
+    private boolean lanesEnabled;
+
+    @Value("${transfer.lanes.serialize-receiver:true}")
+    private boolean serializeReceiver;
+
+    @Value("${transfer.lanes.stripes:1024}")
+    private int stripes;
+
+    @Value("${transfer.retry.enabled:false}")
+    private boolean retryEnabled;
+
+    @Value("${transfer.retry.max-attempts:5}")
+    private int maxAttempts;
+
+    @Value("${transfer.retry.backoff-ms:20}")
+    private long backoffMillis;
+
+    @Value("${transfer.retry.max-backoff-ms:1000}")
+    private long maxBackoffMillis;
+
+    @Value("${transfer.retry.budget-ratio:0.2}")
+    private double budgetRatio;
+
+    @Value("${transfer.retry.budget-max:100}")
+    private double budgetMax;
+
+    // accounts with the most recent activity kept in the per-account stats
+    @Value("${transfer.stats.max-accounts:10000}")
+    private long statsMaxAccounts;
+
+    @Autowired
+    private ExecutorService fabricExecutor;
+
+    @Autowired
+    private MeterRegistry registry;
+
+    private Striped<Lock> locks;
+    // the transfer last to join each lane, removed when it finishes as the last one
+    private final ConcurrentMap<String, CompletableFuture<Void>> tails = new ConcurrentHashMap<>();
+    private Cache<String, AccountStats> accounts;
+    private ScheduledExecutorService timer;
+
+    private double budget;
+    private final AtomicLong transfers = new AtomicLong();
+    private final AtomicLong conflicts = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong exhausted = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        locks = Striped.lock(stripes);
+        accounts = CacheBuilder.newBuilder().maximumSize(statsMaxAccounts).build();
+        budget = budgetMax;
+        timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "transfer-retry");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // per account only in getStats, an account tag would give a time series per account
+        Gauge.builder("transfer.lanes.active", tails, Map::size).register(registry);
+        FunctionCounter.builder("transfer.scheduled", transfers, AtomicLong::get).register(registry);
+        FunctionCounter.builder("transfer.conflicts", conflicts, AtomicLong::get).register(registry);
+        FunctionCounter.builder("transfer.retries", retries, AtomicLong::get).register(registry);
+        FunctionCounter.builder("transfer.retries.exhausted", exhausted, AtomicLong::get).register(registry);
+    }
+
+    @PreDestroy
+    public void close() {
+        timer.shutdownNow();
+    }
+
+    /**
+     * Runs transfer on the Fabric executor once the lanes of its accounts
+     * reach it. The returned future fails with the exception of the last
+     * attempt, unwrapped.
+     */
+    public <T> CompletableFuture<T> schedule(String fromAccountId, String toAccountId, Callable<T> transfer) {
+        transfers.incrementAndGet();
+        depositRetry();
+        List<String> accountIds = fromAccountId.equals(toAccountId) || !serializeReceiver
+                ? Collections.singletonList(fromAccountId) : Arrays.asList(fromAccountId, toAccountId);
+        for (String accountId : accountIds) {
+            stats(accountId).transfers.incrementAndGet();
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        if (!lanesEnabled) {
+            execute(() -> attempt(accountIds, transfer, 1, result), result);
+            return result;
+        }
+        CompletableFuture<Void> done = new CompletableFuture<>();
+        List<CompletableFuture<Void>> ahead = new ArrayList<>(2);
+        Iterable<Lock> held = locks.bulkGet(accountIds);
+        for (Lock lock : held) {
+            lock.lock();
+        }
+        try {
+            for (String accountId : accountIds) {
+                CompletableFuture<Void> previous = tails.put(accountId, done);
+                if (previous != null) {
+                    ahead.add(previous);
+                }
+            }
+        } finally {
+            for (Lock lock : held) {
+                lock.unlock();
+            }
+        }
+        result.whenComplete((value, e) -> {
+            for (String accountId : accountIds) {
+                tails.remove(accountId, done);
+            }
+            done.complete(null);
+        });
+        // a lane future only ever completes normally
+        CompletableFuture.allOf(ahead.toArray(new CompletableFuture<?>[0]))
+            .thenRun(() -> execute(() -> attempt(accountIds, transfer, 1, result), result));
+        return result;
+    }
+
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("lanesEnabled", lanesEnabled);
+        stats.put("retryEnabled", retryEnabled);
+        stats.put("activeLanes", tails.size());
+        stats.put("transfers", transfers.get());
+        stats.put("conflicts", conflicts.get());
+        stats.put("retries", retries.get());
+        stats.put("exhausted", exhausted.get());
+        synchronized (this) {
+            stats.put("retryBudget", budget);
+        }
+        // the accounts with the most conflicts first
+        List<Map.Entry<String, AccountStats>> ranked = new ArrayList<>(accounts.asMap().entrySet());
+        ranked.sort(Comparator.comparingLong(entry -> -entry.getValue().conflicts.get()));
+        Map<String, Object> byAccount = new LinkedHashMap<>();
+        for (Map.Entry<String, AccountStats> entry : ranked.subList(0, Math.min(20, ranked.size()))) {
+            byAccount.put(entry.getKey(), entry.getValue().toMap());
+        }
+        stats.put("accounts", byAccount);
+        return stats;
+    }
+
+    private <T> void attempt(List<String> accountIds, Callable<T> transfer, int attempt, CompletableFuture<T> result) {
+        try {
+            result.complete(transfer.call());
+        } catch (CommitTracker.ConflictException e) {
+            conflicts.incrementAndGet();
+            for (String accountId : accountIds) {
+                stats(accountId).conflicts.incrementAndGet();
+            }
+            if (!retryEnabled || attempt >= maxAttempts || !withdrawRetry()) {
+                if (retryEnabled) {
+                    exhausted.incrementAndGet();
+                }
+                result.completeExceptionally(e);
+                return;
+            }
+            retries.incrementAndGet();
+            for (String accountId : accountIds) {
+                stats(accountId).retries.incrementAndGet();
+            }
+            long ceiling = Math.min(maxBackoffMillis, backoffMillis << Math.min(attempt - 1, 20));
+            long delay = ThreadLocalRandom.current().nextLong(ceiling / 2, ceiling + 1);
+            timer.schedule(() -> execute(() -> attempt(accountIds, transfer, attempt + 1, result), result),
+                delay, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    // a full executor fails the transfer, which also moves its lanes on, rather than leaving it pending
+    private void execute(Runnable task, CompletableFuture<?> result) {
+        try {
+            fabricExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private synchronized void depositRetry() {
+        budget = Math.min(budgetMax, budget + budgetRatio);
+    }
+
+    private synchronized boolean withdrawRetry() {
+        if (budget < 1) {
+            return false;
+        }
+        budget--;
+        return true;
+    }
+
+    private AccountStats stats(String accountId) {
+        AccountStats stats = accounts.getIfPresent(accountId);
+        if (stats == null) {
+            stats = accounts.asMap().computeIfAbsent(accountId, id -> new AccountStats());
+        }
+        return stats;
+    }
+
+    private static final class AccountStats {
+        private final AtomicLong transfers = new AtomicLong();
+        private final AtomicLong conflicts = new AtomicLong();
+        private final AtomicLong retries = new AtomicLong();
+
+        Map<String, Object> toMap() {
+            long transferCount = transfers.get();
+            long conflictCount = conflicts.get();
+            long retryCount = retries.get();
+            Map<String, Object> map = new LinkedHashMap<>();
+            map.put("transfers", transferCount);
+            map.put("conflicts", conflictCount);
+            map.put("retries", retryCount);
+            // share of the submits, first attempts and retries, that were invalidated
+            map.put("conflictRate", conflictCount == 0 ? 0.0 : (double) conflictCount / (transferCount + retryCount));
+            map.put("retryRate", transferCount == 0 ? 0.0 : (double) retryCount / transferCount);
+            return map;
+        }
+    }
+}
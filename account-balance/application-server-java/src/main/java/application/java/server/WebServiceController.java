@@ -1,61 +1,570 @@
 package application.java.server;
 
-import java.util.HashMap;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Supplier;
 
-import org.hyperledger.fabric.gateway.Contract;
-import org.hyperledger.fabric.gateway.Gateway;
-import org.hyperledger.fabric.gateway.Network;
-import org.hyperledger.fabric.gateway.Wallet;
-import org.hyperledger.fabric.gateway.Wallets;
-
+import org.hyperledger.fabric.gateway.ContractException;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestMethod;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
 
 @RestController
 public class WebServiceController {
+   private static final MediaType NDJSON = MediaType.parseMediaType("application/x-ndjson");
+
+   // the last block in the balance view when a response was served from it
+   private static final String AS_OF_BLOCK = "X-As-Of-Block";
+
+   @Autowired
+   private FabricGatewayPool gatewayPool;
+
+   @Autowired
+   private BalanceCache balanceCache;
+
+   @Autowired
+   private BalanceView balanceView;
+
+   @Autowired
+   private BalanceQueryCoalescer balanceQueries;
+
+   @Autowired
+   private TransferBatcher transferBatcher;
+
+   @Autowired
+   private CommitTracker commitTracker;
+
+   @Autowired
+   private TransferScheduler transferScheduler;
+
+   @Autowired
+   private SignatureVerifier signatureVerifier;
+
+   @Autowired
+   private RequestDeduplicator requestDeduplicator;
+
+   @Autowired
+   private StageMetrics stageMetrics;
+
+   @Autowired
+   private AdmissionControl admissionControl;
+
+   @Autowired
+   private LatencyAwareQueryHandler queryHandler;
+
+   @Autowired
+   private AccountUploader accountUploader;
+
+   @Autowired
+   private ExecutorService fabricExecutor;
+
+   @Autowired
+   private ObjectMapper objectMapper;
+
+   @Value("${balance.bulk.chunk-size:200}")
+   private int bulkChunkSize;
+
+   @Value("${accounts.lookup.page-size:100}")
+   private int lookupPageSize;
+
+   @Value("${balance.history.page-size:500}")
+   private int historyPageSize;
+
    @RequestMapping(value = "/get-balance", method = RequestMethod.POST)
-   public ResponseEntity<Object> getBalance(@RequestBody Request req) {
-      try (Gateway gateway = FabricNetwork.connect()) {
+   public CompletableFuture<ResponseEntity<Object>> getBalance(@RequestBody Request req) {
+      return stageMetrics.inFlight("get-balance", () -> authorized(req, "accountId", () -> {
+         ResponseEntity<Object> rateLimited = admissionControl.rateLimit(req.getPublicKey());
+         if (rateLimited != null) {
+            return CompletableFuture.completedFuture(rateLimited);
+         }
+         String accountId;
+         try {
+            accountId = req.getParams().get("accountId").toString();
+         } catch(Exception e){
+            System.err.println(e);
+            return CompletableFuture.completedFuture(new ResponseEntity<>("Error", HttpStatus.BAD_REQUEST));
+         }
+         if (balanceView.isLive()) {
+            // unknown accounts still go to the peers, for the chaincode's error
+            long asOfBlock = balanceView.getBlockNumber();
+            String balance = balanceView.getBalance(accountId);
+            if (balance != null) {
+               return CompletableFuture.completedFuture(
+                  new ResponseEntity<>(String.format("Balance is %s", balance), asOfBlock(asOfBlock), HttpStatus.OK));
+            }
+         }
+         String cached = balanceCache.getIfPresent(accountId);
+         if (cached != null) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>(String.format("Balance is %s", cached), HttpStatus.OK));
+         }
+         // only the query that goes to the peers is admitted, the requests sharing it are not Fabric calls
+         return balanceQueries.getBalance(accountId, () -> admissionControl.limit(AdmissionControl.EVALUATE,
+            () -> CompletableFuture.supplyAsync(() -> {
+            try {
+               return balanceCache.getBalance(accountId,
+                  () -> new String(gatewayPool.evaluateTransaction("GetBalance", accountId)));
+            } catch(Exception e){
+               throw new CompletionException(e);
+            }
+         }, fabricExecutor))).handle((result, e) -> {
+            if (e != null) {
+               System.err.println(e);
+               return isOverloaded(e) ? overloaded(e) : new ResponseEntity<>("Error", HttpStatus.BAD_REQUEST);
+            }
+            System.out.println("result: " + result);
+            return new ResponseEntity<>(String.format("Balance is %s", result), HttpStatus.OK);
+         });
+      }));
+   }
 
-			// get the network and contract
-			Network network = gateway.getNetwork("mychannel");
-			Contract contract = network.getContract("account");
-         byte[] result;
-         result = contract.evaluateTransaction("GetBalance", req.getParams().get("accountId").toString());
-			System.out.println("result: " + new String(result));
-         return new ResponseEntity<>(String.format("Balance is %s", new String(result)), HttpStatus.OK);
+   @RequestMapping(value = "/get-balances", method = RequestMethod.POST)
+   public CompletableFuture<ResponseEntity<Object>> getBalances(@RequestBody Request req) {
+      return stageMetrics.inFlight("get-balances", () -> authorized(req, "accountIds", () -> getBalancesChunked(req)));
+   }
 
+   private CompletableFuture<ResponseEntity<Object>> getBalancesChunked(Request req) {
+      List<String> accountIds = new ArrayList<>();
+      try {
+         for (Object accountId : (List<?>) req.getParams().get("accountIds")) {
+            accountIds.add(accountId.toString());
+         }
       } catch(Exception e){
-			System.err.println(e);
-         return new ResponseEntity<>("Error", HttpStatus.BAD_REQUEST);
+         System.err.println(e);
+         return CompletableFuture.completedFuture(new ResponseEntity<>("Error", HttpStatus.BAD_REQUEST));
+      }
+
+      // large lists are split so the chunks are evaluated in parallel, each in one proposal
+      List<CompletableFuture<Map<String, Object>>> chunks = new ArrayList<>();
+      for (int from = 0; from < accountIds.size(); from += bulkChunkSize) {
+         List<String> chunk = accountIds.subList(from, Math.min(from + bulkChunkSize, accountIds.size()));
+         chunks.add(CompletableFuture.supplyAsync(() -> getBalanceChunk(chunk), fabricExecutor));
+      }
+      return CompletableFuture.allOf(chunks.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+         Map<String, Object> balances = new LinkedHashMap<>();
+         for (CompletableFuture<Map<String, Object>> chunk : chunks) {
+            balances.putAll(chunk.join());
+         }
+         return new ResponseEntity<>(balances, HttpStatus.OK);
+      });
+   }
+
+   // a chunk that cannot be evaluated reports the failure on each of its entries
+   private Map<String, Object> getBalanceChunk(List<String> accountIds) {
+      Map<String, Object> balances = new LinkedHashMap<>();
+      try {
+         String payload = stageMetrics.time(StageMetrics.JSON, () -> objectMapper.writeValueAsString(accountIds));
+         byte[] result = gatewayPool.evaluateTransaction("GetBalances", payload);
+         Iterator<Map.Entry<String, JsonNode>> entries = stageMetrics.time(StageMetrics.JSON, () -> objectMapper.readTree(result)).fields();
+         while (entries.hasNext()) {
+            Map.Entry<String, JsonNode> entry = entries.next();
+            balances.put(entry.getKey(), entry.getValue());
+         }
+      } catch(Exception e){
+         System.err.println(e);
+         Map<String, Object> error = new LinkedHashMap<>();
+         error.put("balance", null);
+         error.put("error", e.toString());
+         for (String accountId : accountIds) {
+            balances.put(accountId, error);
+         }
+      }
+      return balances;
+   }
+
+   // streams {"accountId": ..., "balance": ...} lines for every account of the signing key, one GetAccountsByPublicKey page at a time
+   @RequestMapping(value = "/accounts-by-public-key", method = RequestMethod.POST)
+   public CompletableFuture<ResponseEntity<StreamingResponseBody>> accountsByPublicKey(@RequestBody Request req) {
+      CompletableFuture<Boolean> verified = signatureVerifier.verify(req, null).thenApply(valid -> valid && req.getPublicKey() != null);
+      return stageMetrics.inFlight("accounts-by-public-key", () -> streamed(verified, new HttpHeaders(), () -> {
+         String publicKey = req.getPublicKey().trim();
+         return out -> streamAccounts(out, "GetAccountsByPublicKey", publicKey);
+      }));
+   }
+
+   // streams {"accountId": ..., "balance": ...} lines for every account on the ledger, one ListAccounts page at a time,
+   // or from the balance view when it is live; admin keys only
+   @RequestMapping(value = "/accounts", method = RequestMethod.POST)
+   public CompletableFuture<ResponseEntity<StreamingResponseBody>> accounts(@RequestBody Request req) {
+      if (balanceView.isLive()) {
+         return stageMetrics.inFlight("accounts", () -> streamed(signatureVerifier.verifyAdmin(req),
+            asOfBlock(balanceView.getBlockNumber()), () -> this::streamView));
+      }
+      return stageMetrics.inFlight("accounts", () -> streamed(signatureVerifier.verifyAdmin(req), new HttpHeaders(),
+         () -> out -> streamAccounts(out, "ListAccounts")));
+   }
+
+   // streams {"txId": ..., "timestamp": ..., "balance": ..., "isDelete": ...} lines for every change of the account, newest
+   // first, one GetBalanceHistory page at a time; params.bookmark, the timestamp/txId of the last line received, resumes a stream
+   @RequestMapping(value = "/balance-history", method = RequestMethod.POST)
+   public CompletableFuture<ResponseEntity<StreamingResponseBody>> balanceHistory(@RequestBody Request req) {
+      String accountId;
+      String bookmark;
+      try {
+         accountId = req.getParams().get("accountId").toString();
+         bookmark = req.getParams().containsKey("bookmark") ? req.getParams().get("bookmark").toString() : "";
+      } catch(Exception e){
+         System.err.println(e);
+         return CompletableFuture.completedFuture(
+            new ResponseEntity<>(out -> out.write("Error".getBytes(StandardCharsets.UTF_8)), HttpStatus.BAD_REQUEST));
+      }
+      return stageMetrics.inFlight("balance-history", () -> streamed(signatureVerifier.verify(req, "accountId"), new HttpHeaders(),
+         () -> out -> streamHistory(out, accountId, bookmark)));
+   }
+
+   // totals over all accounts; admin keys only
+   @RequestMapping(value = "/account-stats", method = RequestMethod.POST)
+   public CompletableFuture<ResponseEntity<Object>> accountStats(@RequestBody Request req) {
+      return stageMetrics.inFlight("account-stats", () -> authorized(signatureVerifier.verifyAdmin(req), () -> CompletableFuture.supplyAsync(() -> {
+         try {
+            if (balanceView.isLive()) {
+               Map<String, Object> stats = balanceView.getStats();
+               return new ResponseEntity<>(stats, asOfBlock((Long) stats.get("asOfBlock")), HttpStatus.OK);
+            }
+            byte[] result = gatewayPool.evaluateTransaction("GetAccountStats");
+            return new ResponseEntity<>(stageMetrics.time(StageMetrics.JSON, () -> objectMapper.readTree(result)), HttpStatus.OK);
+
+         } catch(Exception e){
+            System.err.println(e);
+            return new ResponseEntity<>(e.toString(), HttpStatus.BAD_REQUEST);
+
+         }
+      }, fabricExecutor)));
+   }
+
+   // NDJSON response with headers written by body once the request signature checks out
+   private CompletableFuture<ResponseEntity<StreamingResponseBody>> streamed(CompletableFuture<Boolean> verified, HttpHeaders headers,
+         Supplier<StreamingResponseBody> body) {
+      return verified.thenApply(valid -> {
+         if (!valid) {
+            return new ResponseEntity<>(out -> out.write("Invalid signature".getBytes(StandardCharsets.UTF_8)), HttpStatus.UNAUTHORIZED);
+         }
+         return ResponseEntity.ok().headers(headers).contentType(NDJSON).body(body.get());
+      });
+   }
 
-		}
+   private static HttpHeaders asOfBlock(long blockNumber) {
+      HttpHeaders headers = new HttpHeaders();
+      headers.set(AS_OF_BLOCK, Long.toString(blockNumber));
+      return headers;
+   }
+
+   // the same lines as streamAccounts from the balance view, a page at a time so blocks are applied in between;
+   // accounts are as of the block in the header or a later one
+   private void streamView(OutputStream out) throws IOException {
+      int slot = 0;
+      do {
+         List<Map<String, Object>> lines = new ArrayList<>(lookupPageSize);
+         slot = balanceView.forEachAccount(slot, lookupPageSize, (accountId, balance) -> {
+            Map<String, Object> line = new LinkedHashMap<>();
+            line.put("accountId", accountId);
+            line.put("balance", balance);
+            lines.add(line);
+         });
+         for (Map<String, Object> line : lines) {
+            out.write(objectMapper.writeValueAsBytes(line));
+            out.write('\n');
+         }
+         out.flush();
+      } while (slot >= 0);
+   }
+
+   // evaluates the paginated function with args, the page size and the bookmark; each page is written and flushed
+   // before the next one is evaluated, so memory stays at one page whatever the account count
+   private void streamAccounts(OutputStream out, String function, String... args) throws IOException {
+      String[] pageArgs = Arrays.copyOf(args, args.length + 2);
+      pageArgs[args.length] = Integer.toString(lookupPageSize);
+      String bookmark = "";
+      do {
+         JsonNode page;
+         try {
+            pageArgs[args.length + 1] = bookmark;
+            page = stageMetrics.time(StageMetrics.JSON, () -> objectMapper.readTree(gatewayPool.evaluateTransaction(function, pageArgs)));
+         } catch(Exception e){
+            System.err.println(e);
+            Map<String, Object> error = new LinkedHashMap<>();
+            error.put("error", e.toString());
+            out.write(objectMapper.writeValueAsBytes(error));
+            out.write('\n');
+            return;
+         }
+         Iterator<Map.Entry<String, JsonNode>> accounts = page.get("accounts").fields();
+         while (accounts.hasNext()) {
+            Map.Entry<String, JsonNode> account = accounts.next();
+            Map<String, Object> line = new LinkedHashMap<>();
+            line.put("accountId", account.getKey());
+            line.put("balance", account.getValue().asText());
+            out.write(objectMapper.writeValueAsBytes(line));
+            out.write('\n');
+         }
+         out.flush();
+         bookmark = page.get("bookmark").asText();
+      } while (!bookmark.isEmpty());
+   }
+
+   // the changes of each GetBalanceHistory page as they come; the chaincode skips to the bookmark on the peer,
+   // so memory stays at one page however many changes the account has
+   private void streamHistory(OutputStream out, String accountId, String bookmark) throws IOException {
+      String pageSize = Integer.toString(historyPageSize);
+      do {
+         JsonNode page;
+         try {
+            String after = bookmark;
+            page = stageMetrics.time(StageMetrics.JSON,
+               () -> objectMapper.readTree(gatewayPool.evaluateTransaction("GetBalanceHistory", accountId, pageSize, after)));
+         } catch(Exception e){
+            System.err.println(e);
+            Map<String, Object> error = new LinkedHashMap<>();
+            error.put("error", e.toString());
+            out.write(objectMapper.writeValueAsBytes(error));
+            out.write('\n');
+            return;
+         }
+         for (JsonNode change : page.get("changes")) {
+            Map<String, Object> line = new LinkedHashMap<>();
+            line.put("txId", change.get("txId").asText());
+            line.put("timestamp", change.get("timestamp").asText());
+            line.put("balance", change.get("balance").isNull() ? null : change.get("balance").asText());
+            line.put("isDelete", change.get("isDelete").asBoolean());
+            out.write(objectMapper.writeValueAsBytes(line));
+            out.write('\n');
+         }
+         out.flush();
+         bookmark = page.get("bookmark").asText();
+      } while (!bookmark.isEmpty());
+   }
+
+   // creates the accounts of an upload with one [accountID, balance, publicKey] JSON array per line, see AccountUploader
+   @RequestMapping(value = "/create-accounts", method = RequestMethod.POST)
+   public CompletableFuture<ResponseEntity<Object>> createAccounts(InputStream body) {
+      if (!accountUploader.isEnabled()) {
+         return CompletableFuture.completedFuture(new ResponseEntity<>("Account upload is disabled", HttpStatus.NOT_FOUND));
+      }
+      return stageMetrics.inFlight("create-accounts", () -> accountUploader.upload(body).handle((report, e) -> {
+         if (e != null) {
+            System.err.println(e);
+            return new ResponseEntity<>(e.toString(), HttpStatus.BAD_REQUEST);
+         }
+         return new ResponseEntity<>(report, HttpStatus.OK);
+      }));
    }
 
    @RequestMapping(value = "/send", method = RequestMethod.POST)
-   public ResponseEntity<Object> send(@RequestBody Request req) {
-      try (Gateway gateway = FabricNetwork.connect()) {
-
-			// get the network and contract
-			Network network = gateway.getNetwork("mychannel");
-			Contract contract = network.getContract("account");
-         byte[] result;
-         result = contract.evaluateTransaction(
-            "TransferCoins", req.getParams().get("fromAccountId").toString(), 
-            req.getParams().get("toAccountId").toString(), 
-            req.getParams().get("amount").toString());
-			System.out.println("result: " + new String(result));
-         return new ResponseEntity<>(String.format("Transfer Success, remaining balance is %s", new String(result)), HttpStatus.OK);
+   public CompletableFuture<ResponseEntity<Object>> send(@RequestBody Request req) {
+      // a duplicate is answered without a submit, so only the first request is admitted; a rejection is an
+      // exception, which the deduplicator does not keep, answered 429 by the exception handler
+      return stageMetrics.inFlight("send", () -> authorized(req, "fromAccountId", () -> {
+         ResponseEntity<Object> rateLimited = admissionControl.rateLimit(req.getPublicKey());
+         if (rateLimited != null) {
+            return CompletableFuture.completedFuture(rateLimited);
+         }
+         return requestDeduplicator.deduplicate("send", req, () -> admissionControl.limit(AdmissionControl.SUBMIT, () -> transfer(req)));
+      }));
+   }
 
+   private CompletableFuture<ResponseEntity<Object>> transfer(Request req) {
+      if (transferBatcher.isEnabled()) {
+         return sendBatched(req);
+      }
+      String fromAccountId;
+      String toAccountId;
+      String amount;
+      try {
+         fromAccountId = req.getParams().get("fromAccountId").toString();
+         toAccountId = req.getParams().get("toAccountId").toString();
+         amount = req.getParams().get("amount").toString();
       } catch(Exception e){
-			System.err.println(e);
-         return new ResponseEntity<>(e.toString(), HttpStatus.BAD_REQUEST);
+         System.err.println(e);
+         return CompletableFuture.completedFuture(new ResponseEntity<>(e.toString(), HttpStatus.BAD_REQUEST));
+      }
+      return transferScheduler.schedule(fromAccountId, toAccountId, () -> commitTracker.submit(
+         () -> gatewayPool.submitTransaction("TransferCoins", fromAccountId, toAccountId, amount))).handle((submitted, e) -> {
+         if (e != null) {
+            System.err.println(e);
+            return transferFailed(e);
+         }
+         String result = new String(submitted.getResult());
+         System.out.println("result: " + result);
+         return transferResponse(new TransferReceipt(submitted.getTransactionId(), result));
+      });
+   }
+
+   // the batcher already completes asynchronously, so no executor thread waits on it
+   private CompletableFuture<ResponseEntity<Object>> sendBatched(Request req) {
+      CompletableFuture<TransferReceipt> transfer;
+      try {
+         transfer = transferBatcher.transfer(
+            req.getParams().get("fromAccountId").toString(),
+            req.getParams().get("toAccountId").toString(),
+            new BigDecimal(req.getParams().get("amount").toString()));
+      } catch(Exception e){
+         System.err.println(e);
+         return CompletableFuture.completedFuture(new ResponseEntity<>(e.toString(), HttpStatus.BAD_REQUEST));
+      }
+      return transfer.handle((result, e) -> {
+         if (e != null) {
+            System.err.println(e);
+            return transferFailed(e);
+         }
+         System.out.println("result: " + result.getRemainingBalance());
+         return transferResponse(result);
+      });
+   }
+
+   // runs the handler only for a request signed by the owner of the account, or accounts, in accountParam
+   private CompletableFuture<ResponseEntity<Object>> authorized(Request req, String accountParam,
+         Supplier<CompletableFuture<ResponseEntity<Object>>> handler) {
+      return authorized(signatureVerifier.verify(req, accountParam), handler);
+   }
+
+   private CompletableFuture<ResponseEntity<Object>> authorized(CompletableFuture<Boolean> verified,
+         Supplier<CompletableFuture<ResponseEntity<Object>>> handler) {
+      return verified.thenCompose(valid -> {
+         if (!valid) {
+            return CompletableFuture.completedFuture(new ResponseEntity<>("Invalid signature", HttpStatus.UNAUTHORIZED));
+         }
+         return handler.get();
+      });
+   }
+
+   // a queue in front of Fabric was full: the client should come back shortly rather than the request waiting in it
+   private static boolean isOverloaded(Throwable e) {
+      Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+      return cause instanceof RejectedExecutionException;
+   }
+
+   /**
+    * The answer to a transfer that failed, whose status tells the client, and the deduplicator, whether it
+    * happened: 400 when the chaincode rejected it, 504 when it may still commit, and 409, 429, 502 or 503 when
+    * it certainly did not and can be sent again.
+    */
+   private static ResponseEntity<Object> transferFailed(Throwable e) {
+      Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+      if (cause instanceof RejectedExecutionException) {
+         return overloaded(cause);
+      }
+      if (cause instanceof CommitTracker.ConflictException) {
+         return new ResponseEntity<>(cause.toString(), HttpStatus.CONFLICT);
+      }
+      if (cause instanceof TimeoutException) {
+         return new ResponseEntity<>(String.format("Transfer may still commit: %s", cause), HttpStatus.GATEWAY_TIMEOUT);
+      }
+      if (cause instanceof TransferBatcher.TransferRejectedException || isChaincodeError(cause)) {
+         return new ResponseEntity<>(cause.toString(), HttpStatus.BAD_REQUEST);
+      }
+      return new ResponseEntity<>(cause.toString(), HttpStatus.BAD_GATEWAY);
+   }
+
+   // a peer ran the chaincode and it answered with an error, as opposed to a peer that could not be reached
+   private static boolean isChaincodeError(Throwable e) {
+      if (!(e instanceof ContractException) || ((ContractException) e).getProposalResponses() == null) {
+         return false;
+      }
+      for (ProposalResponse response : ((ContractException) e).getProposalResponses()) {
+         if (response.getProposalResponse() != null && response.getProposalResponse().getResponse().getStatus() >= 400) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // the admission control or a full queue turned away a request of an endpoint without its own error handling
+   @ExceptionHandler(RejectedExecutionException.class)
+   public ResponseEntity<Object> rejected(RejectedExecutionException e) {
+      System.err.println(e);
+      return overloaded(e);
+   }
+
+   // 429 with the admission control's Retry-After, or 503 when a queue was full
+   private static ResponseEntity<Object> overloaded(Throwable e) {
+      Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+      if (cause instanceof AdmissionControl.RejectedException) {
+         return ((AdmissionControl.RejectedException) cause).toResponse();
+      }
+      HttpHeaders headers = new HttpHeaders();
+      headers.set(HttpHeaders.RETRY_AFTER, "1");
+      return new ResponseEntity<>("Service overloaded", headers, HttpStatus.SERVICE_UNAVAILABLE);
+   }
+
+   // with the async commit strategy the transfer is only ordered, the client polls /tx-status for the outcome
+   private ResponseEntity<Object> transferResponse(TransferReceipt receipt) {
+      if (commitTracker.isAsync()) {
+         Map<String, Object> body = new LinkedHashMap<>();
+         body.put("transactionId", receipt.getTransactionId());
+         body.put("status", CommitTracker.PENDING);
+         body.put("remainingBalance", receipt.getRemainingBalance());
+         return new ResponseEntity<>(body, HttpStatus.ACCEPTED);
+      }
+      return new ResponseEntity<>(String.format("Transfer Success, remaining balance is %s", receipt.getRemainingBalance()), HttpStatus.OK);
+   }
+
+   @RequestMapping(value = "/tx-status/{txId}", method = RequestMethod.GET)
+   public ResponseEntity<Object> txStatus(@PathVariable("txId") String txId) {
+      String status = commitTracker.getStatus(txId);
+      if (status == null) {
+         return new ResponseEntity<>(String.format("Transaction %s is unknown", txId), HttpStatus.NOT_FOUND);
+      }
+      Map<String, Object> body = new LinkedHashMap<>();
+      body.put("transactionId", txId);
+      body.put("status", status);
+      return new ResponseEntity<>(body, HttpStatus.OK);
+   }
+
+   @RequestMapping(value = "/request-dedup", method = RequestMethod.GET)
+   public ResponseEntity<Object> requestDedup() {
+      return new ResponseEntity<>(requestDeduplicator.getStats(), HttpStatus.OK);
+   }
+
+   @RequestMapping(value = "/transfer-lanes", method = RequestMethod.GET)
+   public ResponseEntity<Object> transferLanes() {
+      return new ResponseEntity<>(transferScheduler.getStats(), HttpStatus.OK);
+   }
+
+   @RequestMapping(value = "/admission", method = RequestMethod.GET)
+   public ResponseEntity<Object> admission() {
+      return new ResponseEntity<>(admissionControl.getStats(), HttpStatus.OK);
+   }
+
+   @RequestMapping(value = "/balance-coalescing", method = RequestMethod.GET)
+   public ResponseEntity<Object> balanceCoalescing() {
+      return new ResponseEntity<>(balanceQueries.getStats(), HttpStatus.OK);
+   }
+
+   @RequestMapping(value = "/query-peers", method = RequestMethod.GET)
+   public ResponseEntity<Object> queryPeers() {
+      return new ResponseEntity<>(queryHandler.getStats(), HttpStatus.OK);
+   }
 
-		}
+   @RequestMapping(value = "/gateway-pool", method = RequestMethod.GET)
+   public ResponseEntity<Object> gatewayPool() {
+      Map<String, Object> stats = gatewayPool.getStats();
+      return new ResponseEntity<>(stats, HttpStatus.OK);
    }
 }
@@ -0,0 +1,282 @@
+package application.java.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.after;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+import org.hyperledger.fabric.gateway.Network;
+import org.hyperledger.fabric.protos.ledger.rwset.Rwset;
+import org.hyperledger.fabric.protos.ledger.rwset.kvrwset.KvRwset;
+import org.hyperledger.fabric.sdk.BlockEvent;
+import org.hyperledger.fabric.sdk.BlockInfo;
+import org.hyperledger.fabric.sdk.BlockchainInfo;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.TxReadWriteSetInfo;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.google.protobuf.ByteString;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class BalanceViewTest {
+
+    private static final String CONTRACT = "account";
+
+    @TempDir
+    Path dir;
+
+    private final FabricGatewayPool gatewayPool = mock(FabricGatewayPool.class);
+
+    private BalanceView view() {
+        BalanceView view = new BalanceView();
+        ReflectionTestUtils.setField(view, "enabled", true);
+        ReflectionTestUtils.setField(view, "file", dir.resolve("balance-view.bin").toString());
+        ReflectionTestUtils.setField(view, "scale", 2);
+        ReflectionTestUtils.setField(view, "contractName", CONTRACT);
+        ReflectionTestUtils.setField(view, "gatewayPool", gatewayPool);
+        ReflectionTestUtils.setField(view, "registry", new SimpleMeterRegistry());
+        view.init();
+        return view;
+    }
+
+    // the listener the view gave the pool, which the pool calls with each block it delivers
+    @SuppressWarnings("unchecked")
+    private Consumer<BlockEvent> listener(long fromBlock) {
+        ArgumentCaptor<Consumer<BlockEvent>> listener = ArgumentCaptor.forClass(Consumer.class);
+        verify(gatewayPool).addBlockListener(listener.capture(), eq(fromBlock));
+        return listener.getValue();
+    }
+
+    // one valid transaction with the given writes to the contract's namespace
+    private static BlockEvent block(long number, KvRwset.KVWrite... writes) {
+        TxReadWriteSetInfo rwSet = new TxReadWriteSetInfo(Rwset.TxReadWriteSet.newBuilder()
+                .setDataModel(Rwset.TxReadWriteSet.DataModel.KV)
+                .addNsRwset(Rwset.NsReadWriteSet.newBuilder()
+                        .setNamespace(CONTRACT)
+                        .setRwset(KvRwset.KVRWSet.newBuilder().addAllWrites(Arrays.asList(writes)).build().toByteString()))
+                .build());
+        BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo action = mock(BlockInfo.TransactionEnvelopeInfo.TransactionActionInfo.class);
+        when(action.getTxReadWriteSet()).thenReturn(rwSet);
+        BlockEvent.TransactionEvent transaction = mock(BlockEvent.TransactionEvent.class);
+        when(transaction.isValid()).thenReturn(true);
+        when(transaction.getTransactionActionInfos()).thenReturn(Collections.singletonList(action));
+        BlockEvent block = mock(BlockEvent.class);
+        when(block.getBlockNumber()).thenReturn(number);
+        when(block.getTransactionEvents()).thenReturn(Collections.singletonList(transaction));
+        return block;
+    }
+
+    // AccountCodec version 2 at scale 2, without account ID or public key
+    private static KvRwset.KVWrite account(String accountId, long minorUnits) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(2);
+        record.write(2);
+        zigzag(record, minorUnits);
+        record.write(0);
+        record.write(0);
+        return write(accountId, record.toByteArray());
+    }
+
+    private static KvRwset.KVWrite delta(String accountId, String txId, long minorUnits) {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        delta.write(2);
+        zigzag(delta, minorUnits);
+        return write(deltaKey(accountId, txId), delta.toByteArray());
+    }
+
+    private static KvRwset.KVWrite deleteDelta(String accountId, String txId) {
+        return KvRwset.KVWrite.newBuilder().setKey(deltaKey(accountId, txId)).setIsDelete(true).build();
+    }
+
+    private static String deltaKey(String accountId, String txId) {
+        return "\u0000delta\u0000" + accountId + "\u0000" + txId + "\u0000";
+    }
+
+    private static KvRwset.KVWrite write(String key, byte[] value) {
+        return KvRwset.KVWrite.newBuilder().setKey(key).setValue(ByteString.copyFrom(value)).build();
+    }
+
+    private static void zigzag(ByteArrayOutputStream out, long value) {
+        long zigzag = value << 1 ^ value >> 63;
+        while ((zigzag & ~0x7FL) != 0) {
+            out.write((int) (zigzag & 0x7F | 0x80));
+            zigzag >>>= 7;
+        }
+        out.write((int) zigzag);
+    }
+
+    private void channelHeight(long height) throws Exception {
+        BlockchainInfo info = mock(BlockchainInfo.class);
+        when(info.getHeight()).thenReturn(height);
+        Channel channel = mock(Channel.class);
+        when(channel.queryBlockchainInfo()).thenReturn(info);
+        Network network = mock(Network.class);
+        when(network.getChannel()).thenReturn(channel);
+        when(gatewayPool.getNetwork()).thenReturn(network);
+    }
+
+    @Nested
+    class Blocks {
+
+        @Test
+        public void appliesBlocksInOrder() {
+            BalanceView view = view();
+            Consumer<BlockEvent> listener = listener(0);
+
+            listener.accept(block(0, account("acc1", 1000), account("acc2", 250)));
+            listener.accept(block(1, account("acc1", 900)));
+
+            assertThat(view.getBlockNumber()).isEqualTo(1);
+            assertThat(view.getBalance("acc1")).isEqualTo("9.00");
+            assertThat(view.getBalance("acc2")).isEqualTo("2.50");
+            assertThat(view.getBalance("acc3")).isNull();
+            assertThat(view.getStats()).containsEntry("accounts", 2).containsEntry("totalSupply", "11.50");
+        }
+
+        @Test
+        public void replaysOnceFromTheFirstMissingBlockAfterAGap() {
+            BalanceView view = view();
+            Consumer<BlockEvent> listener = listener(0);
+
+            listener.accept(block(0, account("acc1", 1000)));
+            listener.accept(block(2, account("acc1", 800)));
+            // the blocks still in flight past the gap do not ask again
+            listener.accept(block(3, account("acc1", 700)));
+
+            verify(gatewayPool, timeout(1000)).replayBlocks(1);
+            verify(gatewayPool, after(100).never()).replayBlocks(2);
+            assertThat(view.getBlockNumber()).isEqualTo(0);
+            assertThat(view.getBalance("acc1")).isEqualTo("10.00");
+            assertThat(view.isLive()).isFalse();
+
+            // the replay delivers the blocks from the gap on
+            listener.accept(block(1, account("acc1", 900)));
+            listener.accept(block(2, account("acc1", 800)));
+            listener.accept(block(3, account("acc1", 700)));
+
+            assertThat(view.getBlockNumber()).isEqualTo(3);
+            assertThat(view.getBalance("acc1")).isEqualTo("7.00");
+            verify(gatewayPool).replayBlocks(anyLong());
+        }
+
+        @Test
+        public void ignoresBlocksItAlreadyHas() {
+            BalanceView view = view();
+            Consumer<BlockEvent> listener = listener(0);
+
+            listener.accept(block(0, account("acc1", 1000)));
+            listener.accept(block(1, account("acc1", 900), delta("acc1", "tx1", 50)));
+            // delivered again when the pool restarts delivery for another listener
+            listener.accept(block(0, account("acc1", 1000)));
+            listener.accept(block(1, account("acc1", 900), delta("acc1", "tx1", 50)));
+
+            assertThat(view.getBlockNumber()).isEqualTo(1);
+            assertThat(view.getBalance("acc1")).isEqualTo("9.50");
+            verify(gatewayPool, never()).replayBlocks(anyLong());
+        }
+    }
+
+    @Nested
+    class Deltas {
+
+        @Test
+        public void addsDeltaCreditsToTheBalance() {
+            BalanceView view = view();
+            Consumer<BlockEvent> listener = listener(0);
+
+            listener.accept(block(0, account("acc1", 1000)));
+            listener.accept(block(1, delta("acc1", "tx1", 50), delta("acc1", "tx2", 25)));
+
+            assertThat(view.getBalance("acc1")).isEqualTo("10.75");
+        }
+
+        @Test
+        public void takesOffADeltaCreditWhenItIsDeleted() {
+            BalanceView view = view();
+            Consumer<BlockEvent> listener = listener(0);
+
+            listener.accept(block(0, account("acc1", 1000), delta("acc1", "tx1", 50), delta("acc1", "tx2", 25)));
+            // CompactDeltas folds the deltas into the record and deletes them in the same transaction
+            listener.accept(block(1, account("acc1", 1075), deleteDelta("acc1", "tx1"), deleteDelta("acc1", "tx2")));
+
+            assertThat(view.getBalance("acc1")).isEqualTo("10.75");
+            assertThat(view.getStats()).containsEntry("totalSupply", "10.75");
+        }
+
+        @Test
+        public void countsADeltaCreditForAnAccountItHasNotSeen() {
+            BalanceView view = view();
+            Consumer<BlockEvent> listener = listener(0);
+
+            listener.accept(block(0, delta("acc1", "tx1", 50)));
+            listener.accept(block(1, deleteDelta("acc1", "tx1"), deleteDelta("acc1", "tx0")));
+
+            // a delete of a delta the view never saw changes nothing
+            assertThat(view.getBalance("acc1")).isEqualTo("0.00");
+        }
+    }
+
+    @Nested
+    class Checkpoints {
+
+        @Test
+        public void reloadsTheCheckpointAndAsksForTheBlocksAfterIt() throws Exception {
+            channelHeight(2);
+            BalanceView view = view();
+            Consumer<BlockEvent> listener = listener(0);
+            listener.accept(block(0, account("acc1", 1000), account("acc2", 250)));
+            listener.accept(block(1, delta("acc1", "tx1", 50), delta("acc2", "tx2", 5)));
+            view.checkpoint();
+            assertThat(view.isLive()).isTrue();
+
+            BalanceView reloaded = view();
+            Consumer<BlockEvent> reloadedListener = listener(2);
+
+            assertThat(reloaded.getBlockNumber()).isEqualTo(1);
+            assertThat(reloaded.isLive()).isFalse();
+            assertThat(reloaded.getBalance("acc1")).isEqualTo("10.50");
+            assertThat(reloaded.getBalance("acc2")).isEqualTo("2.55");
+            List<String> accounts = new ArrayList<>();
+            assertThat(reloaded.forEachAccount(0, 10, (accountId, balance) -> accounts.add(accountId))).isEqualTo(-1);
+            assertThat(accounts).containsExactly("acc1", "acc2");
+
+            // the deltas came back by key, so deleting one takes off its amount
+            reloadedListener.accept(block(2, account("acc1", 1050), deleteDelta("acc1", "tx1")));
+            assertThat(reloaded.getBalance("acc1")).isEqualTo("10.50");
+        }
+
+        @Test
+        public void writesOnlyWhenBlocksWereApplied() throws Exception {
+            channelHeight(1);
+            BalanceView view = view();
+            Path file = dir.resolve("balance-view.bin");
+
+            view.checkpoint();
+            assertThat(Files.exists(file)).isFalse();
+
+            listener(0).accept(block(0, account("acc1", 1000)));
+            view.checkpoint();
+            assertThat(Files.exists(file)).isTrue();
+            assertThat(Files.exists(dir.resolve("balance-view.bin.tmp"))).isFalse();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package application.java.server;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.catchThrowable;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hyperledger.fabric.gateway.ContractException;
+import org.hyperledger.fabric.gateway.Gateway;
+import org.hyperledger.fabric.gateway.Identity;
+import org.hyperledger.fabric.gateway.Network;
+import org.hyperledger.fabric.gateway.spi.Query;
+import org.hyperledger.fabric.gateway.spi.QueryHandler;
+import org.hyperledger.fabric.protos.peer.ProposalResponsePackage;
+import org.hyperledger.fabric.sdk.ChaincodeResponse;
+import org.hyperledger.fabric.sdk.Channel;
+import org.hyperledger.fabric.sdk.Peer;
+import org.hyperledger.fabric.sdk.ProposalResponse;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Nested;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class LatencyAwareQueryHandlerTest {
+
+    private final List<LatencyAwareQueryHandler> factories = new ArrayList<>();
+
+    // the org's query peers, each answering after its injected latency
+    private final List<StubPeer> stubPeers = new ArrayList<>();
+
+    @AfterEach
+    public void closeFactories() {
+        factories.forEach(LatencyAwareQueryHandler::close);
+    }
+
+    private LatencyAwareQueryHandler factory(boolean hedge, int hedgeThreads) {
+        LatencyAwareQueryHandler factory = new LatencyAwareQueryHandler();
+        ReflectionTestUtils.setField(factory, "strategy", "latency");
+        ReflectionTestUtils.setField(factory, "alpha", 0.5);
+        ReflectionTestUtils.setField(factory, "exploreRate", 0.0);
+        ReflectionTestUtils.setField(factory, "hedgeEnabled", hedge);
+        ReflectionTestUtils.setField(factory, "hedgePercentile", 0.95);
+        ReflectionTestUtils.setField(factory, "hedgeMinDelayMillis", 20L);
+        ReflectionTestUtils.setField(factory, "hedgeThreads", hedgeThreads);
+        ReflectionTestUtils.setField(factory, "registry", new SimpleMeterRegistry());
+        factory.init();
+        factories.add(factory);
+        return factory;
+    }
+
+    private StubPeer peer(long latencyMillis, ProposalResponse response) {
+        StubPeer peer = new StubPeer("peer" + stubPeers.size() + ".org1.example.com", latencyMillis, response);
+        stubPeers.add(peer);
+        return peer;
+    }
+
+    private QueryHandler handler(LatencyAwareQueryHandler factory) throws Exception {
+        List<Peer> peers = new ArrayList<>();
+        for (StubPeer peer : stubPeers) {
+            peers.add(peer.peer);
+        }
+        Channel channel = mock(Channel.class);
+        when(channel.getPeers(any())).thenReturn(peers);
+        when(channel.getPeersForOrganization(anyString())).thenReturn(peers);
+        Identity identity = mock(Identity.class);
+        when(identity.getMspId()).thenReturn("Org1MSP");
+        Gateway gateway = mock(Gateway.class);
+        when(gateway.getIdentity()).thenReturn(identity);
+        Network network = mock(Network.class);
+        when(network.getChannel()).thenReturn(channel);
+        when(network.getGateway()).thenReturn(gateway);
+        return factory.create(network);
+    }
+
+    // a query that each stub peer answers after its latency, like Query.evaluate(peer) does for a real one
+    private Query query() {
+        Map<Peer, StubPeer> byPeer = new ConcurrentHashMap<>();
+        for (StubPeer peer : stubPeers) {
+            byPeer.put(peer.peer, peer);
+        }
+        Query query = mock(Query.class);
+        when(query.evaluate(any(Peer.class))).thenAnswer(invocation -> byPeer.get(invocation.getArgument(0)).evaluate());
+        return query;
+    }
+
+    private static ProposalResponse success() {
+        ProposalResponse response = mock(ProposalResponse.class);
+        when(response.getStatus()).thenReturn(ChaincodeResponse.Status.SUCCESS);
+        return response;
+    }
+
+    // what the SDK returns for a peer it could not reach: a failure without a peer response
+    private static ProposalResponse unavailable() {
+        ProposalResponse response = mock(ProposalResponse.class);
+        when(response.getStatus()).thenReturn(ChaincodeResponse.Status.FAILURE);
+        when(response.getMessage()).thenReturn("UNAVAILABLE: io exception");
+        return response;
+    }
+
+    // the chaincode ran and returned an error, which the peer sends back in its response
+    private static ProposalResponse chaincodeError() {
+        ProposalResponse response = mock(ProposalResponse.class);
+        when(response.getStatus()).thenReturn(ChaincodeResponse.Status.FAILURE);
+        when(response.getMessage()).thenReturn("ACCOUNT_NOT_FOUND");
+        when(response.getProposalResponse()).thenReturn(ProposalResponsePackage.ProposalResponse.newBuilder()
+                .setResponse(ProposalResponsePackage.Response.newBuilder().setStatus(500).setMessage("ACCOUNT_NOT_FOUND"))
+                .build());
+        return response;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> peerStats(LatencyAwareQueryHandler factory, StubPeer peer) {
+        return (Map<String, Object>) ((Map<String, Object>) factory.getStats().get("peers")).get(peer.name);
+    }
+
+    // a cancelled call records its time on its own thread once it has stopped
+    private static void awaitCalls(LatencyAwareQueryHandler factory, StubPeer peer, long calls) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while (!Long.valueOf(calls).equals(peerStats(factory, peer).get("calls")) && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertThat(peerStats(factory, peer)).containsEntry("calls", calls);
+    }
+
+    @Nested
+    class Ranking {
+
+        @Test
+        public void prefersThePeerWithTheLowestLatency() throws Exception {
+            LatencyAwareQueryHandler factory = factory(false, 1);
+            StubPeer slow = peer(30, success());
+            StubPeer fast = peer(1, success());
+            QueryHandler handler = handler(factory);
+            Query query = query();
+
+            // both are asked once before they are measured
+            handler.evaluate(query);
+            handler.evaluate(query);
+            for (int i = 0; i < 10; i++) {
+                handler.evaluate(query);
+            }
+
+            assertThat(slow.calls.get()).isEqualTo(1);
+            assertThat(fast.calls.get()).isEqualTo(11);
+        }
+
+        @Test
+        public void ranksAFailingPeerBehindASlowerOne() throws Exception {
+            LatencyAwareQueryHandler factory = factory(false, 1);
+            StubPeer failing = peer(1, unavailable());
+            StubPeer slower = peer(10, success());
+            QueryHandler handler = handler(factory);
+            Query query = query();
+
+            for (int i = 0; i < 10; i++) {
+                handler.evaluate(query);
+            }
+
+            // the failing peer was tried first until its error rate outweighed its latency
+            assertThat(failing.calls.get()).isLessThan(5);
+            assertThat(slower.calls.get()).isEqualTo(10);
+            assertThat((double) peerStats(factory, failing).get("errorRate")).isGreaterThan(0.4);
+            assertThat((double) peerStats(factory, slower).get("errorRate")).isEqualTo(0.0);
+        }
+    }
+
+    @Nested
+    class Answers {
+
+        @Test
+        public void fallsBackToTheNextPeerWhenOneGivesNoResponse() throws Exception {
+            LatencyAwareQueryHandler factory = factory(false, 1);
+            StubPeer unreachable = peer(1, unavailable());
+            ProposalResponse answer = success();
+            StubPeer reachable = peer(1, answer);
+
+            ProposalResponse response = handler(factory).evaluate(query());
+
+            assertThat(response).isSameAs(answer);
+            assertThat(unreachable.calls.get()).isEqualTo(1);
+            assertThat(peerStats(factory, unreachable)).containsEntry("errors", 1L);
+        }
+
+        @Test
+        public void failsWithEveryErrorWhenNoPeerResponds() throws Exception {
+            LatencyAwareQueryHandler factory = factory(false, 1);
+            peer(1, unavailable());
+            peer(1, unavailable());
+
+            Throwable thrown = catchThrowable(() -> handler(factory).evaluate(query()));
+
+            assertThat(thrown).isInstanceOf(ContractException.class)
+                    .hasMessage("No successful responses received. Errors: UNAVAILABLE: io exception; UNAVAILABLE: io exception");
+            assertThat(((ContractException) thrown).getProposalResponses()).hasSize(2);
+        }
+
+        @Test
+        public void takesAChaincodeErrorAsTheAnswer() throws Exception {
+            LatencyAwareQueryHandler factory = factory(false, 1);
+            ProposalResponse error = chaincodeError();
+            StubPeer first = peer(1, error);
+            StubPeer second = peer(1, success());
+
+            Throwable thrown = catchThrowable(() -> handler(factory).evaluate(query()));
+
+            assertThat(thrown).isInstanceOf(ContractException.class).hasMessage("ACCOUNT_NOT_FOUND");
+            assertThat(((ContractException) thrown).getProposalResponses()).containsExactly(error);
+            assertThat(first.calls.get()).isEqualTo(1);
+            assertThat(second.calls.get()).isZero();
+            assertThat(peerStats(factory, first)).containsEntry("errors", 0L);
+        }
+    }
+
+    @Nested
+    class Hedging {
+
+        @Test
+        public void asksTheNextPeerAfterTheHedgeDelayAndTakesTheFirstAnswer() throws Exception {
+            LatencyAwareQueryHandler factory = factory(true, 4);
+            StubPeer slow = peer(2000, success());
+            ProposalResponse answer = success();
+            StubPeer fast = peer(1, answer);
+
+            long start = System.nanoTime();
+            ProposalResponse response = handler(factory).evaluate(query());
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            assertThat(response).isSameAs(answer);
+            assertThat(elapsedMillis).isGreaterThanOrEqualTo(20).isLessThan(1000);
+            assertThat(factory.getStats()).containsEntry("hedges", 1L).containsEntry("hedgeWins", 1L);
+            assertThat(slow.calls.get()).isEqualTo(1);
+            assertThat(fast.calls.get()).isEqualTo(1);
+        }
+
+        @Test
+        public void cancelsTheCallThatLost() throws Exception {
+            LatencyAwareQueryHandler factory = factory(true, 4);
+            StubPeer slow = peer(2000, success());
+            peer(1, success());
+
+            handler(factory).evaluate(query());
+
+            // the slow call is interrupted rather than holding its thread for the whole latency
+            assertThat(slow.interrupted.await(500, TimeUnit.MILLISECONDS)).isTrue();
+            awaitCalls(factory, slow, 1);
+            // and it is not taken for a failure of the peer
+            assertThat(peerStats(factory, slow)).containsEntry("errors", 0L);
+            assertThat((double) peerStats(factory, slow).get("latencyMs")).isGreaterThanOrEqualTo(20.0);
+        }
+
+        @Test
+        public void skipsTheHedgeWhenThePoolIsBusy() throws Exception {
+            LatencyAwareQueryHandler factory = factory(true, 1);
+            ProposalResponse answer = success();
+            StubPeer slow = peer(100, answer);
+            StubPeer fast = peer(1, success());
+
+            ProposalResponse response = handler(factory).evaluate(query());
+
+            assertThat(response).isSameAs(answer);
+            assertThat(factory.getStats()).containsEntry("hedges", 0L).containsEntry("hedgesSkipped", 1L);
+            assertThat(fast.calls.get()).isZero();
+            assertThat(slow.calls.get()).isEqualTo(1);
+        }
+
+        @Test
+        public void asksTheNextPeerAtOnceWhenTheFirstGivesNoResponse() throws Exception {
+            LatencyAwareQueryHandler factory = factory(true, 4);
+            StubPeer unreachable = peer(1, unavailable());
+            ProposalResponse answer = success();
+            peer(1, answer);
+
+            ProposalResponse response = handler(factory).evaluate(query());
+
+            assertThat(response).isSameAs(answer);
+            assertThat(factory.getStats()).containsEntry("hedges", 0L);
+            assertThat(unreachable.calls.get()).isEqualTo(1);
+        }
+    }
+
+    /**
+     * A peer that answers every query with the same response after its
+     * latency, counting the calls and the ones interrupted.
+     */
+    private static final class StubPeer {
+        private final String name;
+        private final long latencyMillis;
+        private final ProposalResponse response;
+        private final Peer peer = mock(Peer.class);
+        private final AtomicInteger calls = new AtomicInteger();
+        private final CountDownLatch interrupted = new CountDownLatch(1);
+        // as the SDK does, a peer that did not answer in time is a failed response
+        private final ProposalResponse timedOut = unavailable();
+
+        StubPeer(String name, long latencyMillis, ProposalResponse response) {
+            this.name = name;
+            this.latencyMillis = latencyMillis;
+            this.response = response;
+            when(peer.getName()).thenReturn(name);
+        }
+
+        ProposalResponse evaluate() {
+            calls.incrementAndGet();
+            try {
+                Thread.sleep(latencyMillis);
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+                return timedOut;
+            }
+            return response;
+        }
+    }
+}
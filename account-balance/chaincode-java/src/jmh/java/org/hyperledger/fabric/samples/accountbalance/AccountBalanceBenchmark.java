@@ -0,0 +1,93 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.hyperledger.fabric.samples.accountbalance;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.hyperledger.fabric.contract.Context;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Transactions of the contract against an in-memory world state, so the cost
+ * measured is the contract code and its state encoding alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AccountBalanceBenchmark {
+
+    // json starts from state written before AccountCodec, with double balances; transfers rewrite it as binary
+    @Param({"binary", "json"})
+    private String stateEncoding;
+
+    // true writes credits as delta keys, which each transfer folds back into the sender
+    @Param({"false", "true"})
+    private boolean deltaCredits;
+
+    private AccountBalance contract;
+    private InMemoryLedger ledger;
+    private Context ctx;
+    private boolean reverse;
+
+    @Setup
+    public void setUp() {
+        contract = new AccountBalance(deltaCredits);
+        ledger = new InMemoryLedger();
+        ctx = ledger.getContext();
+        contract.InitLedger(ctx);
+        if ("json".equals(stateEncoding)) {
+            for (Map.Entry<String, byte[]> entry : ledger.getState().entrySet()) {
+                // composite keys such as the exists markers start with U+0000
+                if (entry.getKey().charAt(0) == 0) {
+                    continue;
+                }
+                Account account = AccountCodec.decode(entry.getValue());
+                String json = String.format("{\"accountID\":\"%s\",\"balance\":%s,\"publicKey\":\"%s\"}", account.getAccountID(),
+                        Double.parseDouble(Amounts.format(account.getBalance())), account.getPublicKey());
+                entry.setValue(json.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+    }
+
+    @Benchmark
+    public String getBalance() {
+        return contract.GetBalance(ctx, "acc1");
+    }
+
+    @Benchmark
+    public boolean accountExists() {
+        return contract.AccountExists(ctx, "acc2");
+    }
+
+    // alternates the direction so the balances stay the same from one call to the next
+    @Benchmark
+    public String transferCoins() {
+        reverse = !reverse;
+        return reverse ? contract.TransferCoins(ctx, "acc1", "acc2", "10") : contract.TransferCoins(ctx, "acc2", "acc1", "10");
+    }
+
+    // clearing the few keys left by the previous call costs far less than the creates
+    @Benchmark
+    public Account createAccount() {
+        ledger.getState().remove("acc10");
+        return contract.CreateAccount(ctx, "acc10", "1000", "pk10");
+    }
+
+    @Benchmark
+    public InMemoryLedger initLedger() {
+        ledger.clear();
+        contract.InitLedger(ctx);
+        return ledger;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.hyperledger.fabric.samples.accountbalance;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import com.owlike.genson.Genson;
+
+/**
+ * Encoding and value methods of Account, which every transaction goes through
+ * once or more per account it touches. serialize and deserialize are the Genson
+ * JSON the contract used before AccountCodec, and decodeLegacyJSON reads such a
+ * record with its double balance.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AccountBenchmark {
+
+    private final Genson genson = new Genson();
+    private final Account account = new Account("acc1", 500000L, "pk1");
+    private final Account other = new Account("acc1", 500000L, "pk1");
+    private final String accountJSON = genson.serialize(account);
+    private final byte[] legacyRecord = "{\"accountID\":\"acc1\",\"balance\":5000.0,\"publicKey\":\"pk1\"}"
+            .getBytes(StandardCharsets.UTF_8);
+    private final byte[] record = AccountCodec.encode(account);
+
+    @Benchmark
+    public String serialize() {
+        return genson.serialize(account);
+    }
+
+    @Benchmark
+    public Account deserialize() {
+        return genson.deserialize(accountJSON, Account.class);
+    }
+
+    @Benchmark
+    public byte[] encode() {
+        return AccountCodec.encode(account);
+    }
+
+    @Benchmark
+    public Account decode() {
+        return AccountCodec.decode(record);
+    }
+
+    @Benchmark
+    public Account decodeLegacyJSON() {
+        return AccountCodec.decode(legacyRecord);
+    }
+
+    @Benchmark
+    public long parseAmount() {
+        return Amounts.parse("1234.56");
+    }
+
+    @Benchmark
+    public String formatAmount() {
+        return Amounts.format(123456L);
+    }
+
+    @Benchmark
+    public boolean equalsAccount() {
+        return account.equals(other);
+    }
+
+    @Benchmark
+    public int hashCodeAccount() {
+        return account.hashCode();
+    }
+}
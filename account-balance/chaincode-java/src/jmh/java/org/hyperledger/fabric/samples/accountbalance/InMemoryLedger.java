@@ -0,0 +1,184 @@
+/*
+ * SPDX-License-Identifier: Apache-2.0
+ */
+
+package org.hyperledger.fabric.samples.accountbalance;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.hyperledger.fabric.contract.Context;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+
+/**
+ * World state held in a sorted map, with a ChaincodeStub stand-in over it so the
+ * contract can be benchmarked without a peer or a mocking framework in the hot path.
+ * Only the state and partial composite key calls the contract makes are supported.
+ */
+public final class InMemoryLedger {
+
+    private static final String MSP_ID = "Org1MSP";
+
+    private static final byte[] EMPTY = new byte[0];
+
+    // self-signed client certificate, only parsed by ClientIdentity when the Context is created
+    private static final String CERTIFICATE = "-----BEGIN CERTIFICATE-----\n"
+            + "MIIB5zCCAY2gAwIBAgIUcinAiALlg0M5qP8dVOCcCOGwzSgwCgYIKoZIzj0EAwIw\n"
+            + "SDELMAkGA1UEBhMCVVMxFDASBgNVBAoMC0h5cGVybGVkZ2VyMQ8wDQYDVQQLDAZj\n"
+            + "bGllbnQxEjAQBgNVBAMMCWJlbmNobWFyazAgFw0yNjEwMTgwMzA1NDNaGA8yMTI2\n"
+            + "MDkyNDAzMDU0M1owSDELMAkGA1UEBhMCVVMxFDASBgNVBAoMC0h5cGVybGVkZ2Vy\n"
+            + "MQ8wDQYDVQQLDAZjbGllbnQxEjAQBgNVBAMMCWJlbmNobWFyazBZMBMGByqGSM49\n"
+            + "AgEGCCqGSM49AwEHA0IABPLTBlMso63Q4SDOU89WzAJcDZ/9bRLJyHfk84rvjeDi\n"
+            + "m/RABqlKYwczrZH39wSQ9FNIZrTs0owG8GDGQvavFaGjUzBRMB0GA1UdDgQWBBSe\n"
+            + "bLrNFvchO/+qR4nEJrzYpR44TTAfBgNVHSMEGDAWgBSebLrNFvchO/+qR4nEJrzY\n"
+            + "pR44TTAPBgNVHRMBAf8EBTADAQH/MAoGCCqGSM49BAMCA0gAMEUCIQCZlqpHTPgR\n"
+            + "JDlPkVHWiWJeHjY/YkverJQ6l+Cr0urbDAIgPiR7EpHsvXEdnMHmz94zIZGdm0Cu\n"
+            + "Lj0WL2id4OQOeDQ=\n"
+            + "-----END CERTIFICATE-----\n";
+
+    private final NavigableMap<String, byte[]> state = new TreeMap<>();
+    private final ChaincodeStub stub;
+    private final Context context;
+    private long transactions;
+
+    public InMemoryLedger() {
+        stub = (ChaincodeStub) Proxy.newProxyInstance(ChaincodeStub.class.getClassLoader(),
+                new Class<?>[] {ChaincodeStub.class}, (proxy, method, args) -> invoke(method.getName(), args));
+        context = new Context(stub);
+    }
+
+    public Context getContext() {
+        return context;
+    }
+
+    public ChaincodeStub getStub() {
+        return stub;
+    }
+
+    public Map<String, byte[]> getState() {
+        return state;
+    }
+
+    public void clear() {
+        state.clear();
+    }
+
+    // each transaction of the contract reads its ID at most once, so a new one per call keeps delta keys unique
+    private String nextTxId() {
+        return "benchmark" + transactions++;
+    }
+
+    private QueryResultsIterator<KeyValue> range(final String prefix) {
+        Map<String, byte[]> range = state.subMap(prefix, true, prefix + Character.MAX_VALUE, false);
+        return new QueryResultsIterator<KeyValue>() {
+            @Override
+            public Iterator<KeyValue> iterator() {
+                Iterator<Map.Entry<String, byte[]>> entries = range.entrySet().iterator();
+                return new Iterator<KeyValue>() {
+                    @Override
+                    public boolean hasNext() {
+                        return entries.hasNext();
+                    }
+
+                    @Override
+                    public KeyValue next() {
+                        return keyValue(entries.next());
+                    }
+                };
+            }
+
+            @Override
+            public void close() {
+                // nothing to release
+            }
+        };
+    }
+
+    private static KeyValue keyValue(final Map.Entry<String, byte[]> entry) {
+        String key = entry.getKey();
+        byte[] value = entry.getValue();
+        return new KeyValue() {
+            @Override
+            public String getKey() {
+                return key;
+            }
+
+            @Override
+            public byte[] getValue() {
+                return value;
+            }
+
+            @Override
+            public String getStringValue() {
+                return new String(value, StandardCharsets.UTF_8);
+            }
+        };
+    }
+
+    private Object invoke(final String method, final Object[] args) {
+        switch (method) {
+            // like the peer, a missing key reads as an empty value
+            case "getState":
+                return state.getOrDefault((String) args[0], EMPTY);
+            case "getStringState":
+                return new String(state.getOrDefault((String) args[0], EMPTY), StandardCharsets.UTF_8);
+            case "putState":
+                state.put((String) args[0], (byte[]) args[1]);
+                return null;
+            case "putStringState":
+                state.put((String) args[0], ((String) args[1]).getBytes(StandardCharsets.UTF_8));
+                return null;
+            case "delState":
+                state.remove((String) args[0]);
+                return null;
+            case "getStateByPartialCompositeKey":
+                if (args[0] instanceof CompositeKey) {
+                    return range(args[0].toString());
+                }
+                return range(new CompositeKey((String) args[0], args.length > 1 ? (String[]) args[1] : new String[0]).toString());
+            case "getTxId":
+                return nextTxId();
+            case "getChannelId":
+                return "mychannel";
+            case "getMspId":
+                return MSP_ID;
+            case "getCreator":
+                return serializedIdentity();
+            case "hashCode":
+                return System.identityHashCode(this);
+            case "equals":
+                return false;
+            case "toString":
+                return "InMemoryLedger stub";
+            default:
+                throw new UnsupportedOperationException(method);
+        }
+    }
+
+    // msp.SerializedIdentity{mspid = 1, id_bytes = 2} encoded by hand to stay independent of the protos version
+    private static byte[] serializedIdentity() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeField(out, 1, MSP_ID.getBytes(StandardCharsets.UTF_8));
+        writeField(out, 2, CERTIFICATE.getBytes(StandardCharsets.UTF_8));
+        return out.toByteArray();
+    }
+
+    private static void writeField(final ByteArrayOutputStream out, final int field, final byte[] value) {
+        out.write(field << 3 | 2);
+        int length = value.length;
+        while (length >= 0x80) {
+            out.write(length & 0x7F | 0x80);
+            length >>>= 7;
+        }
+        out.write(length);
+        out.write(value, 0, value.length);
+    }
+}
@@ -13,8 +13,9 @@ public final class Account {
     @Property()
     private final String accountID;
 
+    // in minor units, see Amounts
     @Property()
-    private final Double balance;
+    private final long balance;
 
     @Property()
     private final String publicKey;
@@ -23,7 +24,7 @@ public final class Account {
         return accountID;
     }
 
-    public Double getBalance() {
+    public long getBalance() {
         return balance;
     }
 
@@ -31,7 +32,7 @@ public final class Account {
         return publicKey;
     }
 
-    public Account(@JsonProperty("accountID") final String accountID, @JsonProperty("balance") final Double balance,
+    public Account(@JsonProperty("accountID") final String accountID, @JsonProperty("balance") final long balance,
            @JsonProperty("publicKey") final String publicKey) {
         this.accountID = accountID;
         this.balance = balance;
@@ -53,15 +54,12 @@ public final class Account {
         return Objects.deepEquals(
                 new String[] {getAccountID(), getPublicKey()},
                 new String[] {other.getAccountID(), other.getPublicKey()})
-                &&
-                Objects.deepEquals(
-                new Double[] {getBalance()},
-                new Double[] {other.getBalance()});
+                && getBalance() == other.getBalance();
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(getAccountID(), getBalance(), getPublicKey());
+        return 31 * (31 * Objects.hashCode(getAccountID()) + Long.hashCode(getBalance())) + Objects.hashCode(getPublicKey());
     }
 
     @Override
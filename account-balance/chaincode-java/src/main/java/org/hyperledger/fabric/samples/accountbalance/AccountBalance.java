@@ -1,5 +1,20 @@
 package org.hyperledger.fabric.samples.accountbalance;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
 import org.hyperledger.fabric.contract.Context;
 import org.hyperledger.fabric.contract.ContractInterface;
 import org.hyperledger.fabric.contract.annotation.Contact;
@@ -10,6 +25,10 @@ import org.hyperledger.fabric.contract.annotation.License;
 import org.hyperledger.fabric.contract.annotation.Transaction;
 import org.hyperledger.fabric.shim.ChaincodeException;
 import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.KeyModification;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIteratorWithMetadata;
 
 import com.owlike.genson.Genson;
 
@@ -29,15 +48,111 @@ import com.owlike.genson.Genson;
 @Default
 public final class AccountBalance implements ContractInterface {
 
+    private static final Logger LOGGER = Logger.getLogger(AccountBalance.class.getName());
+
     private final Genson genson = new Genson();
 
+    private final ChaincodeStats stats = new ChaincodeStats();
+
+    private final boolean deltaCredits;
+
     private enum AccountBalanceErrors {
         ACCOUNT_ALREADY_EXISTS,
         ACCOUNT_NOT_FOUND,
+        BALANCE_OVERFLOW,
+        HISTORY_TOO_LONG,
         INSUFFICIENT_BALANCE,
+        INVALID_ACCOUNT,
+        INVALID_BALANCE,
+        INVALID_BOOKMARK,
+        INVALID_PAGE_SIZE,
         INVALID_TRANSFER_AMOUNT
     }
 
+    private static final int MAX_PAGE_SIZE = 1000;
+
+    // the most modifications GetBalanceHistory skips to reach its bookmark
+    private static final int MAX_HISTORY_SKIP = 10000;
+
+    // how much older than its bookmark a modification is before the bookmark counts as passed, as clients set the timestamps
+    private static final Duration HISTORY_CLOCK_SKEW = Duration.ofMinutes(15);
+
+    /**
+     * Creates the contract, with delta credits when the ACCOUNT_BALANCE_DELTA_CREDITS
+     * environment variable of the chaincode is true.
+     */
+    public AccountBalance() {
+        this(Boolean.parseBoolean(System.getenv("ACCOUNT_BALANCE_DELTA_CREDITS")));
+    }
+
+    /**
+     * Creates the contract.
+     *
+     * @param deltaCredits whether credits are written as delta keys, see AccountStore.
+     *        Turning it off again needs CompactDeltas on every account with deltas first.
+     */
+    AccountBalance(final boolean deltaCredits) {
+        this.deltaCredits = deltaCredits;
+    }
+
+    /**
+     * Creates an AccountContext, so that all the transaction functions of one
+     * invocation share a single read and write cache and their state calls
+     * are counted.
+     *
+     * @param stub the stub of the invocation
+     * @return the transaction context
+     */
+    @Override
+    public Context createContext(final ChaincodeStub stub) {
+        return new AccountContext(stub, stats.newInvocation(stub), deltaCredits);
+    }
+
+    /**
+     * Writes what the invocation left in the cache of its AccountContext, and
+     * adds those writes to the function in the chaincode stats.
+     *
+     * @param ctx the transaction context
+     * @param result the value returned by the transaction function
+     */
+    @Override
+    public void afterTransaction(final Context ctx, final Object result) {
+        if (ctx instanceof AccountContext) {
+            ((AccountContext) ctx).getStore().flush();
+            ((AccountContext) ctx).getInvocation().addStateCalls();
+        }
+    }
+
+    /**
+     * Counts the call of an undefined function before rejecting it as the
+     * contract API does.
+     *
+     * @param ctx the transaction context
+     */
+    @Override
+    public void unknownTransaction(final Context ctx) {
+        if (ctx instanceof AccountContext) {
+            ((AccountContext) ctx).getInvocation().unknownFunction();
+        }
+        ContractInterface.super.unknownTransaction(ctx);
+    }
+
+    /**
+     * Returns the counts of the transaction functions this chaincode process
+     * has run since it started: calls and failures, mean and max execution
+     * time, the getState, putState and delState calls with the bytes they
+     * moved, range and composite key queries, and the error codes raised. Each
+     * peer runs its own chaincode process, so the counts are those of the peer
+     * that evaluates this.
+     *
+     * @param ctx the transaction context
+     * @return JSON object of the counts by function name
+     */
+    @Transaction(intent = Transaction.TYPE.EVALUATE)
+    public String GetChaincodeStats(final Context ctx) {
+        return run(ctx, () -> genson.serialize(stats.toMap()));
+    }
+
     /**
      * Creates some initial account balance on the ledger.
      *
@@ -45,18 +160,18 @@ public final class AccountBalance implements ContractInterface {
      */
     @Transaction(intent = Transaction.TYPE.SUBMIT)
     public void InitLedger(final Context ctx) {
-        ChaincodeStub stub = ctx.getStub();
-
-        CreateAccount(ctx, "acc1", 5000.0, "pk1");
-        CreateAccount(ctx, "acc2", 8000.0, "pk2");
-        CreateAccount(ctx, "acc3", 8000.0, "pk2");
-        CreateAccount(ctx, "acc4", 8000.0, "pk2");
-        CreateAccount(ctx, "acc5", 8000.0, "pk2");
-        CreateAccount(ctx, "acc6", 8000.0, "pk2");
-        CreateAccount(ctx, "acc7", 8000.0, "pk2");
-        CreateAccount(ctx, "acc8", 8000.0, "pk2");
-        CreateAccount(ctx, "acc9", 8000.0, "pk2");
-
+        run(ctx, () -> {
+            CreateAccount(ctx, "acc1", "5000", "pk1");
+            CreateAccount(ctx, "acc2", "8000", "pk2");
+            CreateAccount(ctx, "acc3", "8000", "pk2");
+            CreateAccount(ctx, "acc4", "8000", "pk2");
+            CreateAccount(ctx, "acc5", "8000", "pk2");
+            CreateAccount(ctx, "acc6", "8000", "pk2");
+            CreateAccount(ctx, "acc7", "8000", "pk2");
+            CreateAccount(ctx, "acc8", "8000", "pk2");
+            CreateAccount(ctx, "acc9", "8000", "pk2");
+            return null;
+        });
     }
 
     /**
@@ -64,25 +179,67 @@ public final class AccountBalance implements ContractInterface {
      *
      * @param ctx the transaction context
      * @param accountID the ID of the new account
-     * @param balance the balance of the new account
+     * @param balance the balance of the new account as a decimal string
      * @param publicKey the public key for the new account
      * @return the created account
      */
     @Transaction(intent = Transaction.TYPE.SUBMIT)
-    public Account CreateAccount(final Context ctx, final String accountID, final Double balance, final String publicKey) {
-        ChaincodeStub stub = ctx.getStub();
+    public Account CreateAccount(final Context ctx, final String accountID, final String balance, final String publicKey) {
+        return run(ctx, () -> {
+            long minorUnits = parseAmount(balance, AccountBalanceErrors.INVALID_BALANCE);
 
-        if (AccountExists(ctx, accountID)) {
-            String errorMessage = String.format("Account %s already exists", accountID);
-            System.out.println(errorMessage);
-            throw new ChaincodeException(errorMessage, AccountBalanceErrors.ACCOUNT_ALREADY_EXISTS.toString());
-        }
+            if (AccountExists(ctx, accountID)) {
+                throw error(String.format("Account %s already exists", accountID), AccountBalanceErrors.ACCOUNT_ALREADY_EXISTS);
+            }
 
-        Account account = new Account(accountID, balance, publicKey);
-        String accountJSON = genson.serialize(account);
-        stub.putStringState(accountID, accountJSON);
+            Account account = new Account(accountID, minorUnits, publicKey);
+            AccountStore store = store(ctx);
+            store.create(account);
+            flush(ctx, store);
 
-        return account;
+            return account;
+        });
+    }
+
+    /**
+     * Creates many accounts in one transaction. Every entry is validated, and
+     * every account ID checked against the ledger, before any account is
+     * written; an entry that fails is reported on its own and the others are
+     * still created.
+     *
+     * @param ctx the transaction context
+     * @param accountsJSON JSON array of [accountID, balance, publicKey] arrays, balances as decimal strings
+     * @return JSON array with one result per entry, in payload order
+     */
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public String CreateAccounts(final Context ctx, final String accountsJSON) {
+        return run(ctx, () -> {
+            String[][] entries = genson.deserialize(accountsJSON, String[][].class);
+            AccountStore store = store(ctx);
+            Account[] accounts = new Account[entries.length];
+            List<CreateAccountResult> results = new ArrayList<>(entries.length);
+            Set<String> accountIDs = new HashSet<>();
+
+            for (int i = 0; i < entries.length; i++) {
+                String[] entry = entries[i];
+                String accountID = entry != null && entry.length > 0 ? entry[0] : null;
+                try {
+                    accounts[i] = newAccount(store, i, entry, accountIDs);
+                    results.add(new CreateAccountResult(accountID, Amounts.format(accounts[i].getBalance()), null, null));
+                } catch (ChaincodeException e) {
+                    countError(ctx, e);
+                    results.add(new CreateAccountResult(accountID, null, new String(e.getPayload(), StandardCharsets.UTF_8), e.getMessage()));
+                }
+            }
+            for (Account account : accounts) {
+                if (account != null) {
+                    store.create(account);
+                }
+            }
+            flush(ctx, store);
+
+            return genson.serialize(results);
+        });
     }
 
     /**
@@ -90,21 +247,263 @@ public final class AccountBalance implements ContractInterface {
      *
      * @param ctx the transaction context
      * @param accountID the ID of the account
-     * @return the account balance found on the ledger if there was one
+     * @return the account balance found on the ledger if there was one, as a decimal string
      */
     @Transaction(intent = Transaction.TYPE.EVALUATE)
-    public Double GetBalance(final Context ctx, final String accountID) {
-        ChaincodeStub stub = ctx.getStub();
-        String accountJSON = stub.getStringState(accountID);
+    public String GetBalance(final Context ctx, final String accountID) {
+        return run(ctx, () -> {
+            Account account = store(ctx).get(accountID);
 
-        if (accountJSON == null || accountJSON.isEmpty()) {
-            String errorMessage = String.format("Account %s does not exist", accountID);
-            System.out.println(errorMessage);
-            throw new ChaincodeException(errorMessage, AccountBalanceErrors.ACCOUNT_NOT_FOUND.toString());
-        }
+            if (account == null) {
+                throw error(String.format("Account %s does not exist", accountID), AccountBalanceErrors.ACCOUNT_NOT_FOUND);
+            }
+
+            return Amounts.format(account.getBalance());
+        });
+    }
+
+    /**
+     * Retrieves an account from the ledger.
+     *
+     * @param ctx the transaction context
+     * @param accountID the ID of the account
+     * @return the account found on the ledger if there was one
+     */
+    @Transaction(intent = Transaction.TYPE.EVALUATE)
+    public Account ReadAccount(final Context ctx, final String accountID) {
+        return run(ctx, () -> {
+            Account account = store(ctx).get(accountID);
+
+            if (account == null) {
+                throw error(String.format("Account %s does not exist", accountID), AccountBalanceErrors.ACCOUNT_NOT_FOUND);
+            }
+
+            return account;
+        });
+    }
+
+    /**
+     * Retrieves the balances of several accounts in one proposal. An account that
+     * does not exist is reported in its own entry instead of failing the call.
+     *
+     * @param ctx the transaction context
+     * @param accountIDsJSON JSON array of account IDs
+     * @return JSON object mapping each account ID to its balance or error code
+     */
+    @Transaction(intent = Transaction.TYPE.EVALUATE)
+    public String GetBalances(final Context ctx, final String accountIDsJSON) {
+        return run(ctx, () -> {
+            AccountStore store = store(ctx);
+            String[] accountIDs = genson.deserialize(accountIDsJSON, String[].class);
+
+            Map<String, BalanceResult> balances = new LinkedHashMap<>();
+            for (String accountID : accountIDs) {
+                if (balances.containsKey(accountID)) {
+                    continue;
+                }
+                Account account = store.get(accountID);
+                if (account == null) {
+                    balances.put(accountID, new BalanceResult(null, AccountBalanceErrors.ACCOUNT_NOT_FOUND.toString()));
+                } else {
+                    balances.put(accountID, new BalanceResult(Amounts.format(account.getBalance()), null));
+                }
+            }
+
+            return genson.serialize(balances);
+        });
+    }
+
+    /**
+     * Retrieves the balances of the accounts of a public key one page at a time, through the
+     * publicKey~accountID index kept by CreateAccount, so a lookup reads only the
+     * matching accounts. Accounts are in account ID order.
+     *
+     * @param ctx the transaction context
+     * @param publicKey the public key
+     * @param pageSize the most accounts to return, at most 1000
+     * @param bookmark the bookmark of the previous page, or empty for the first one
+     * @return JSON object with the balances by account ID and the bookmark of the next page, empty after the last one
+     */
+    @Transaction(intent = Transaction.TYPE.EVALUATE)
+    public String GetAccountsByPublicKey(final Context ctx, final String publicKey, final int pageSize, final String bookmark) {
+        return run(ctx, () -> {
+            checkPageSize(pageSize);
+            AccountStore store = store(ctx);
+
+            Map<String, String> balances = new LinkedHashMap<>();
+            String nextBookmark;
+            try (QueryResultsIteratorWithMetadata<KeyValue> index = store.getIndexEntries(publicKey, pageSize,
+                    bookmark == null ? "" : bookmark)) {
+                for (KeyValue entry : index) {
+                    Account account = store.get(AccountStore.lastAttribute(entry.getKey()));
+                    if (account != null) {
+                        balances.put(account.getAccountID(), Amounts.format(account.getBalance()));
+                    }
+                }
+                nextBookmark = nextBookmark(index, pageSize);
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not read the accounts of public key " + publicKey, e);
+            }
 
-        Account account = genson.deserialize(accountJSON, Account.class);
-        return account.getBalance();
+            return genson.serialize(new AccountPage(balances, nextBookmark));
+        });
+    }
+
+    /**
+     * Retrieves the modifications of an account record one page at a time,
+     * newest first, each with the transaction that made it, its timestamp and
+     * the balance it left. getHistoryForKey has no pagination of its own, so
+     * the bookmark is the timestamp and transaction ID of the last modification
+     * returned, as timestamp/txId, and a page skips the modifications up to it:
+     * reading a whole history costs time quadratic in its length. At most 10000
+     * modifications are skipped, deeper pages fail with HISTORY_TOO_LONG, and
+     * the skip stops at the first modification 15 minutes older than the
+     * bookmark, as its transaction cannot come after that. A bare transaction
+     * ID is taken as a bookmark too, without that stop. Modifications are
+     * decoded and kept one at a time, so memory is bounded by the page size
+     * however long the history is. With delta credits the balances are those
+     * of the record, which takes in its credits when the account is next
+     * debited or compacted.
+     *
+     * @param ctx the transaction context
+     * @param accountID the ID of the account
+     * @param pageSize the most modifications to return, at most 1000
+     * @param bookmark the bookmark of the previous page, or empty for the first one
+     * @return JSON object with the modifications and the bookmark of the next page, empty after the last one
+     */
+    @Transaction(intent = Transaction.TYPE.EVALUATE)
+    public String GetBalanceHistory(final Context ctx, final String accountID, final int pageSize, final String bookmark) {
+        return run(ctx, () -> {
+            checkPageSize(pageSize);
+            String after = bookmark == null ? "" : bookmark;
+            int separator = after.lastIndexOf('/');
+            String afterTxId = after.substring(separator + 1);
+            Instant passed = null;
+            if (separator >= 0) {
+                try {
+                    passed = Instant.parse(after.substring(0, separator)).minus(HISTORY_CLOCK_SKEW);
+                } catch (DateTimeParseException e) {
+                    throw error(String.format("Bookmark %s is not a timestamp/txId", after), AccountBalanceErrors.INVALID_BOOKMARK);
+                }
+            }
+
+            List<BalanceChange> changes = new ArrayList<>(Math.min(pageSize, 64));
+            String nextBookmark = "";
+            boolean skipping = !after.isEmpty();
+            int skipped = 0;
+            boolean tooDeep = false;
+            try (QueryResultsIterator<KeyModification> history = store(ctx).getHistory(accountID)) {
+                Iterator<KeyModification> modifications = history.iterator();
+                while (modifications.hasNext()) {
+                    KeyModification modification = modifications.next();
+                    if (skipping) {
+                        tooDeep = skipped == MAX_HISTORY_SKIP;
+                        if (tooDeep || passed != null && modification.getTimestamp().isBefore(passed)) {
+                            break;
+                        }
+                        skipped++;
+                        skipping = !afterTxId.equals(modification.getTxId());
+                        continue;
+                    }
+                    if (changes.size() == pageSize) {
+                        BalanceChange last = changes.get(pageSize - 1);
+                        nextBookmark = last.getTimestamp() + "/" + last.getTxId();
+                        break;
+                    }
+                    String balance = modification.isDeleted() ? null : Amounts.format(AccountCodec.decodeBalance(modification.getValue()));
+                    changes.add(new BalanceChange(modification.getTxId(), modification.getTimestamp().toString(), balance,
+                            modification.isDeleted()));
+                }
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not read the history of account " + accountID, e);
+            }
+
+            if (tooDeep) {
+                throw error(String.format("Bookmark %s is more than %d modifications into the history of account %s", after,
+                        MAX_HISTORY_SKIP, accountID), AccountBalanceErrors.HISTORY_TOO_LONG);
+            }
+            if (skipping) {
+                throw error(String.format("Bookmark %s is not in the history of account %s", after, accountID),
+                        AccountBalanceErrors.INVALID_BOOKMARK);
+            }
+            if (changes.isEmpty() && after.isEmpty()) {
+                throw error(String.format("Account %s does not exist", accountID), AccountBalanceErrors.ACCOUNT_NOT_FOUND);
+            }
+            return genson.serialize(new BalanceHistoryPage(changes, nextBookmark));
+        });
+    }
+
+    /**
+     * Retrieves the balances of all accounts one page at a time, in account ID order.
+     *
+     * @param ctx the transaction context
+     * @param pageSize the most accounts to return, at most 1000
+     * @param bookmark the bookmark of the previous page, or empty for the first one
+     * @return JSON object with the balances by account ID and the bookmark of the next page, empty after the last one
+     */
+    @Transaction(intent = Transaction.TYPE.EVALUATE)
+    public String ListAccounts(final Context ctx, final int pageSize, final String bookmark) {
+        return run(ctx, () -> {
+            checkPageSize(pageSize);
+            AccountStore store = store(ctx);
+
+            Map<String, String> balances = new LinkedHashMap<>();
+            String nextBookmark;
+            try (QueryResultsIteratorWithMetadata<KeyValue> records = store.getRecords(pageSize, bookmark == null ? "" : bookmark)) {
+                for (KeyValue record : records) {
+                    Account account = store.load(record.getKey(), record.getValue());
+                    if (account != null) {
+                        balances.put(account.getAccountID(), Amounts.format(account.getBalance()));
+                    }
+                }
+                nextBookmark = nextBookmark(records, pageSize);
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not list the accounts", e);
+            }
+
+            return genson.serialize(new AccountPage(balances, nextBookmark));
+        });
+    }
+
+    /**
+     * Counts the accounts and adds up their balances in one pass over the world
+     * state. Accounts are decoded one at a time as the query streams them, so
+     * memory does not grow with the number of accounts.
+     *
+     * @param ctx the transaction context
+     * @return the number of accounts and the total supply
+     */
+    @Transaction(intent = Transaction.TYPE.EVALUATE)
+    public AccountStats GetAccountStats(final Context ctx) {
+        return run(ctx, () -> {
+            AccountStore store = store(ctx);
+            long accounts = 0;
+            long totalSupply = 0;
+            try {
+                try (QueryResultsIterator<KeyValue> records = store.getRecords()) {
+                    for (KeyValue record : records) {
+                        Account account = AccountCodec.decode(record.getValue());
+                        if (account != null) {
+                            accounts++;
+                            totalSupply = Math.addExact(totalSupply, account.getBalance());
+                        }
+                    }
+                }
+                if (deltaCredits) {
+                    try (QueryResultsIterator<KeyValue> deltas = store.getDeltas()) {
+                        for (KeyValue delta : deltas) {
+                            totalSupply = Math.addExact(totalSupply, AccountCodec.decodeDelta(delta.getValue()));
+                        }
+                    }
+                }
+            } catch (ArithmeticException e) {
+                throw error("Total supply would overflow", AccountBalanceErrors.BALANCE_OVERFLOW);
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not read the accounts", e);
+            }
+
+            return new AccountStats(accounts, Amounts.format(totalSupply));
+        });
     }
 
     /**
@@ -116,10 +515,7 @@ public final class AccountBalance implements ContractInterface {
      */
     @Transaction(intent = Transaction.TYPE.EVALUATE)
     public boolean AccountExists(final Context ctx, final String accountID) {
-        ChaincodeStub stub = ctx.getStub();
-        String accountJSON = stub.getStringState(accountID);
-
-        return (accountJSON != null && !accountJSON.isEmpty());
+        return run(ctx, () -> store(ctx).get(accountID) != null);
     }
 
     /**
@@ -128,49 +524,199 @@ public final class AccountBalance implements ContractInterface {
      * @param ctx the transaction context
      * @param fromAccountID the ID of the account being debited
      * @param toAccountID the ID of the account being credited
-     * @param amount the amount being transfered
-     * @return the updated account balance
+     * @param amount the amount being transfered as a decimal string
+     * @return the updated account balance as a decimal string
      */
     @Transaction(intent = Transaction.TYPE.SUBMIT)
-    public Double TransferCoins(final Context ctx, final String fromAccountID, final String toAccountID, final Double amount) {
-        ChaincodeStub stub = ctx.getStub();
-        String fromAccountJSON = stub.getStringState(fromAccountID);
-        String toAccountJSON = stub.getStringState(toAccountID);
+    public String TransferCoins(final Context ctx, final String fromAccountID, final String toAccountID, final String amount) {
+        return run(ctx, () -> {
+            long minorUnits = parseAmount(amount, AccountBalanceErrors.INVALID_TRANSFER_AMOUNT);
+            AccountStore store = store(ctx);
+            transfer(store, fromAccountID, toAccountID, minorUnits);
+            flush(ctx, store);
+
+            return Amounts.format(store.get(fromAccountID).getBalance());
+        });
+    }
 
-        if (fromAccountJSON == null || fromAccountJSON.isEmpty()) {
-            String errorMessage = String.format("From account %s does not exist", fromAccountID);
-            System.out.println(errorMessage);
-            throw new ChaincodeException(errorMessage, AccountBalanceErrors.ACCOUNT_NOT_FOUND.toString());
+    /**
+     * Applies a batch of transfers in order within one transaction. Every touched
+     * account is read and written once; a leg that fails validation is rejected on
+     * its own and does not stop the legs after it.
+     *
+     * @param ctx the transaction context
+     * @param transfersJSON JSON array of {"from", "to", "amount"} legs
+     * @return JSON array with one result per leg, in payload order
+     */
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public String BatchTransfer(final Context ctx, final String transfersJSON) {
+        return run(ctx, () -> {
+            Transfer[] transfers = genson.deserialize(transfersJSON, Transfer[].class);
+            AccountStore store = store(ctx);
+            List<TransferResult> results = new ArrayList<>(transfers.length);
+
+            for (Transfer transfer : transfers) {
+                try {
+                    long amount = parseAmount(transfer.getAmount(), AccountBalanceErrors.INVALID_TRANSFER_AMOUNT);
+                    transfer(store, transfer.getFrom(), transfer.getTo(), amount);
+                } catch (ChaincodeException e) {
+                    countError(ctx, e);
+                    results.add(new TransferResult(null, new String(e.getPayload(), StandardCharsets.UTF_8), e.getMessage()));
+                    continue;
+                }
+                results.add(new TransferResult(Amounts.format(store.get(transfer.getFrom()).getBalance()), null, null));
+            }
+            flush(ctx, store);
+
+            return genson.serialize(results);
+        });
+    }
+
+    /**
+     * Folds the delta credits of an account back into its account record, so
+     * that reading its balance no longer has to go through them.
+     *
+     * @param ctx the transaction context
+     * @param accountID the ID of the account
+     * @return the balance of the account as a decimal string
+     */
+    @Transaction(intent = Transaction.TYPE.SUBMIT)
+    public String CompactDeltas(final Context ctx, final String accountID) {
+        return run(ctx, () -> {
+            // its own store, as the deltas are folded even when delta credits are off
+            AccountStore store = new AccountStore(ctx.getStub(), true, stateCalls(ctx));
+            if (store.compact(accountID) < 0) {
+                throw error(String.format("Account %s does not exist", accountID), AccountBalanceErrors.ACCOUNT_NOT_FOUND);
+            }
+            store.flush();
+
+            return Amounts.format(store.get(accountID).getBalance());
+        });
+    }
+
+    // the cache of an AccountContext, or a store of its own for a function called with another Context
+    private AccountStore store(final Context ctx) {
+        if (ctx instanceof AccountContext) {
+            return ((AccountContext) ctx).getStore();
         }
-        if (toAccountJSON == null || toAccountJSON.isEmpty()) {
-            String errorMessage = String.format("To account %s does not exist", toAccountID);
-            System.out.println(errorMessage);
-            throw new ChaincodeException(errorMessage, AccountBalanceErrors.ACCOUNT_NOT_FOUND.toString());
+        return new AccountStore(ctx.getStub(), deltaCredits);
+    }
+
+    // where a store of its own counts its state calls
+    private static ChaincodeStats.StateCalls stateCalls(final Context ctx) {
+        if (ctx instanceof AccountContext) {
+            return ((AccountContext) ctx).getInvocation().getStateCalls();
         }
-        if (amount <= 0) {
-            String errorMessage = String.format("Tranfer amount must be larger than zero, received %s", amount);
-            System.out.println(errorMessage);
-            throw new ChaincodeException(errorMessage, AccountBalanceErrors.INVALID_TRANSFER_AMOUNT.toString());
+        return new ChaincodeStats.StateCalls();
+    }
+
+    // runs a transaction function between the start and finish of its invocation, so that a call that throws is recorded
+    // as failed right away; a function called by another one is part of that call
+    private static <T> T run(final Context ctx, final Supplier<T> function) {
+        if (!(ctx instanceof AccountContext) || !((AccountContext) ctx).getInvocation().start()) {
+            return function.get();
         }
-        Account fromAccount = genson.deserialize(fromAccountJSON, Account.class);
-        Account toAccount = genson.deserialize(toAccountJSON, Account.class);
+        boolean succeeded = false;
+        try {
+            T result = function.get();
+            succeeded = true;
+            return result;
+        } catch (ChaincodeException e) {
+            countError(ctx, e);
+            throw e;
+        } finally {
+            ((AccountContext) ctx).getInvocation().finish(succeeded);
+        }
+    }
 
-        Double fromAccountBalance = fromAccount.getBalance();
-        if (fromAccountBalance < amount) {
-            String errorMessage = String.format("Insufficient account balance %s for transfer %s", fromAccountBalance, amount);
-            System.out.println(errorMessage);
-            throw new ChaincodeException(errorMessage, AccountBalanceErrors.INSUFFICIENT_BALANCE.toString());
+    // counts the error code of a ChaincodeException made by error() against the running function
+    private static void countError(final Context ctx, final ChaincodeException e) {
+        if (ctx instanceof AccountContext && e.getPayload() != null) {
+            ((AccountContext) ctx).getInvocation().error(new String(e.getPayload(), StandardCharsets.UTF_8));
         }
-        Account newFromAccount = new Account(fromAccount.getAccountID(), fromAccount.getBalance() - amount, fromAccount.getPublicKey());
-        Account newToAccount = new Account(toAccount.getAccountID(), toAccount.getBalance() + amount, toAccount.getPublicKey());
+    }
 
-        String newFromAccountJSON = genson.serialize(newFromAccount);
-        String newToAccountJSON = genson.serialize(newToAccount);
+    // an AccountContext is flushed once by afterTransaction; any other store is flushed by the function that used it
+    private static void flush(final Context ctx, final AccountStore store) {
+        if (!(ctx instanceof AccountContext)) {
+            store.flush();
+        }
+    }
 
-        stub.putStringState(fromAccountID, newFromAccountJSON);
-        stub.putStringState(toAccountID, newToAccountJSON);
+    // validates the transfer, then credits before debiting so an overflowing credit leaves both accounts as they were
+    private static void transfer(final AccountStore store, final String fromAccountID, final String toAccountID, final long amount) {
+        Account fromAccount = store.get(fromAccountID);
+        checkTransfer(fromAccountID, fromAccount, toAccountID, store.exists(toAccountID), amount);
+        try {
+            store.credit(toAccountID, amount);
+        } catch (ArithmeticException e) {
+            throw error(String.format("Balance of account %s would overflow", toAccountID), AccountBalanceErrors.BALANCE_OVERFLOW);
+        }
+        // read again in case the account credited is the same one
+        fromAccount = store.get(fromAccountID);
+        store.put(new Account(fromAccount.getAccountID(), fromAccount.getBalance() - amount, fromAccount.getPublicKey()));
+    }
 
-        return fromAccount.getBalance() - amount;
+    // validates entry index of a CreateAccounts payload against the ledger and the entries before it
+    private static Account newAccount(final AccountStore store, final int index, final String[] entry, final Set<String> accountIDs) {
+        if (entry == null || entry.length != 3 || entry[0] == null || entry[0].isEmpty()) {
+            throw error(String.format("Entry %d must be [accountID, balance, publicKey]", index), AccountBalanceErrors.INVALID_ACCOUNT);
+        }
+        String accountID = entry[0];
+        long balance = parseAmount(entry[1], AccountBalanceErrors.INVALID_BALANCE);
+        if (!accountIDs.add(accountID) || store.get(accountID) != null) {
+            throw error(String.format("Account %s already exists", accountID), AccountBalanceErrors.ACCOUNT_ALREADY_EXISTS);
+        }
+        return new Account(accountID, balance, entry[2]);
+    }
+
+    private static void checkPageSize(final int pageSize) {
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw error(String.format("Page size must be between 1 and %d, received %d", MAX_PAGE_SIZE, pageSize),
+                    AccountBalanceErrors.INVALID_PAGE_SIZE);
+        }
+    }
+
+    // a short page is the last one, so the client does not have to ask for an empty page to find out
+    private static String nextBookmark(final QueryResultsIteratorWithMetadata<KeyValue> results, final int pageSize) {
+        return results.getMetadata().getFetchedRecordsCount() < pageSize ? "" : results.getMetadata().getBookmark();
+    }
+
+    private static long parseAmount(final String amount, final AccountBalanceErrors error) {
+        try {
+            return Amounts.parse(amount);
+        } catch (IllegalArgumentException e) {
+            throw error(String.format("Invalid amount %s, expected a decimal with at most %d decimal places", amount, Amounts.SCALE),
+                    error);
+        }
+    }
+
+    private static void checkTransfer(final String fromAccountID, final Account fromAccount, final String toAccountID,
+            final boolean toAccountExists, final long amount) {
+        if (fromAccount == null) {
+            throw error(String.format("From account %s does not exist", fromAccountID), AccountBalanceErrors.ACCOUNT_NOT_FOUND);
+        }
+        if (!toAccountExists) {
+            throw error(String.format("To account %s does not exist", toAccountID), AccountBalanceErrors.ACCOUNT_NOT_FOUND);
+        }
+        if (amount <= 0) {
+            throw error(String.format("Tranfer amount must be larger than zero, received %s", Amounts.format(amount)),
+                    AccountBalanceErrors.INVALID_TRANSFER_AMOUNT);
+        }
+
+        long fromAccountBalance = fromAccount.getBalance();
+        if (fromAccountBalance < amount) {
+            throw error(String.format("Insufficient account balance %s for transfer %s", Amounts.format(fromAccountBalance),
+                    Amounts.format(amount)), AccountBalanceErrors.INSUFFICIENT_BALANCE);
+        }
+    }
+
+    // rejections are routine, so they are only logged at FINE
+    private static ChaincodeException error(final String message, final AccountBalanceErrors code) {
+        if (LOGGER.isLoggable(Level.FINE)) {
+            LOGGER.fine(message);
+        }
+        return new ChaincodeException(message, code.toString());
     }
 
 }
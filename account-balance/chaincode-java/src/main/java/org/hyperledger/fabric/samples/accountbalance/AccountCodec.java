@@ -0,0 +1,245 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import com.owlike.genson.Genson;
+
+/**
+ * Binary world state encoding of Account.
+ *
+ * A record is a version byte, the scale of the balance, the balance in minor
+ * units as a zigzag varint, then accountID and publicKey, each as a varint of
+ * its UTF-8 length plus one (0 for null) followed by the bytes. acc1 of
+ * InitLedger takes 14 bytes against 56 as JSON. Balances written at another
+ * scale than Amounts.SCALE are converted when read.
+ *
+ * Version 1 records, which held the balance as 8 big-endian IEEE 754 bytes, and
+ * records written as JSON before this encoding, which start with '{', are still
+ * read, so existing state migrates as accounts are next written.
+ */
+public final class AccountCodec {
+
+    static final byte VERSION_1 = 1;
+
+    static final byte VERSION_2 = 2;
+
+    private static final int DOUBLE_BYTES = 8;
+
+    // a zigzag encoded long takes at most 10 varint bytes
+    private static final int MAX_LONG_VARINT_BYTES = 10;
+
+    private static final Genson GENSON = new Genson();
+
+    private AccountCodec() {
+    }
+
+    /**
+     * Encodes an account for putState.
+     *
+     * @param account the account
+     * @return the encoded record
+     */
+    public static byte[] encode(final Account account) {
+        String accountID = account.getAccountID();
+        String publicKey = account.getPublicKey();
+        int accountIDLength = utf8Length(accountID);
+        int publicKeyLength = utf8Length(publicKey);
+
+        long balance = zigzag(account.getBalance());
+
+        byte[] record = new byte[2 + varintLength(balance) + varintLength(accountIDLength + 1) + accountIDLength
+                + varintLength(publicKeyLength + 1) + publicKeyLength];
+        record[0] = VERSION_2;
+        record[1] = (byte) Amounts.SCALE;
+        int offset = writeVarint(record, 2, balance);
+        offset = writeString(record, offset, accountID, accountIDLength);
+        writeString(record, offset, publicKey, publicKeyLength);
+        return record;
+    }
+
+    /**
+     * Decodes a record read with getState, binary or legacy JSON.
+     *
+     * @param record the record, null or empty when the key does not exist
+     * @return the account, or null when there is no record
+     */
+    public static Account decode(final byte[] record) {
+        if (record == null || record.length == 0) {
+            return null;
+        }
+
+        long balance;
+        int offset;
+        if (record[0] == VERSION_2) {
+            long zigzag = readVarint(record, 2);
+            balance = Amounts.rescale(zigzag >>> 1 ^ -(zigzag & 1), record[1]);
+            offset = 2 + varintLength(zigzag);
+        } else if (record[0] == VERSION_1) {
+            balance = Amounts.fromLegacy(Double.longBitsToDouble(readLong(record, 1)));
+            offset = 1 + DOUBLE_BYTES;
+        } else {
+            return decodeJSON(record);
+        }
+
+        int accountIDLength = (int) readVarint(record, offset) - 1;
+        offset += varintLength(accountIDLength + 1);
+        String accountID = readString(record, offset, accountIDLength);
+        offset += Math.max(accountIDLength, 0);
+        int publicKeyLength = (int) readVarint(record, offset) - 1;
+        offset += varintLength(publicKeyLength + 1);
+        String publicKey = readString(record, offset, publicKeyLength);
+        return new Account(accountID, balance, publicKey);
+    }
+
+    /**
+     * Decodes only the balance of a record, without reading its account ID and
+     * public key.
+     *
+     * @param record a record read from the ledger, binary or legacy JSON, not empty
+     * @return the balance in minor units
+     */
+    public static long decodeBalance(final byte[] record) {
+        if (record[0] == VERSION_2) {
+            long zigzag = readVarint(record, 2);
+            return Amounts.rescale(zigzag >>> 1 ^ -(zigzag & 1), record[1]);
+        }
+        if (record[0] == VERSION_1) {
+            return Amounts.fromLegacy(Double.longBitsToDouble(readLong(record, 1)));
+        }
+        return decodeJSON(record).getBalance();
+    }
+
+    /**
+     * Encodes the amount of a delta credit, see AccountStore.
+     *
+     * @param amount the amount in minor units
+     * @return the encoded delta
+     */
+    public static byte[] encodeDelta(final long amount) {
+        long zigzag = zigzag(amount);
+        byte[] delta = new byte[1 + varintLength(zigzag)];
+        delta[0] = (byte) Amounts.SCALE;
+        writeVarint(delta, 1, zigzag);
+        return delta;
+    }
+
+    /**
+     * Decodes the amount of a delta credit.
+     *
+     * @param delta the encoded delta
+     * @return the amount in minor units
+     */
+    public static long decodeDelta(final byte[] delta) {
+        long zigzag = readVarint(delta, 1);
+        return Amounts.rescale(zigzag >>> 1 ^ -(zigzag & 1), delta[0]);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Account decodeJSON(final byte[] record) {
+        Map<String, Object> fields = GENSON.deserialize(new String(record, StandardCharsets.UTF_8), Map.class);
+        return new Account((String) fields.get("accountID"), Amounts.fromLegacy((Number) fields.get("balance")),
+                (String) fields.get("publicKey"));
+    }
+
+    private static long zigzag(final long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    private static int writeString(final byte[] record, final int start, final String value, final int length) {
+        int offset = writeVarint(record, start, value == null ? 0 : length + 1);
+        if (value == null) {
+            return offset;
+        }
+        // encodes straight into the record instead of going through getBytes
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                record[offset++] = (byte) c;
+            } else if (c < 0x800) {
+                record[offset++] = (byte) (0xC0 | c >> 6);
+                record[offset++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                record[offset++] = (byte) (0xF0 | codePoint >> 18);
+                record[offset++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                record[offset++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                record[offset++] = (byte) (0x80 | codePoint & 0x3F);
+            } else {
+                record[offset++] = (byte) (0xE0 | c >> 12);
+                record[offset++] = (byte) (0x80 | c >> 6 & 0x3F);
+                record[offset++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+        return offset;
+    }
+
+    private static String readString(final byte[] record, final int offset, final int length) {
+        return length < 0 ? null : new String(record, offset, length, StandardCharsets.UTF_8);
+    }
+
+    // matches the bytes written by writeString, where a lone surrogate takes three
+    private static int utf8Length(final String value) {
+        if (value == null) {
+            return 0;
+        }
+        int length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800) {
+                length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))) {
+                length += 4;
+                i++;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private static int varintLength(final long value) {
+        int length = 1;
+        for (long rest = value >>> 7; rest != 0; rest >>>= 7) {
+            length++;
+        }
+        return length;
+    }
+
+    private static int writeVarint(final byte[] record, final int start, final long value) {
+        int offset = start;
+        long rest = value;
+        while ((rest & ~0x7FL) != 0) {
+            record[offset++] = (byte) (rest & 0x7F | 0x80);
+            rest >>>= 7;
+        }
+        record[offset++] = (byte) rest;
+        return offset;
+    }
+
+    private static long readVarint(final byte[] record, final int start) {
+        long value = 0;
+        int shift = 0;
+        int offset = start;
+        byte b;
+        do {
+            if (shift >= 7 * MAX_LONG_VARINT_BYTES) {
+                throw new IllegalArgumentException("Malformed varint in account record");
+            }
+            b = record[offset++];
+            value |= (b & 0x7FL) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    private static long readLong(final byte[] record, final int offset) {
+        long value = 0;
+        for (int i = 0; i < DOUBLE_BYTES; i++) {
+            value = value << 8 | record[offset + i] & 0xFF;
+        }
+        return value;
+    }
+}
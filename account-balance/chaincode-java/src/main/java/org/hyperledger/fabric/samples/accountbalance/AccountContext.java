@@ -0,0 +1,32 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import org.hyperledger.fabric.contract.Context;
+import org.hyperledger.fabric.shim.ChaincodeStub;
+
+/**
+ * Transaction context of AccountBalance. It holds one AccountStore for the whole
+ * invocation, so an account read twice, or read after being written, comes from
+ * memory instead of another call to the peer, and every account written is put
+ * once when AccountBalance.afterTransaction flushes the store. The store counts
+ * its state calls for the ChaincodeStats of the invocation.
+ */
+public final class AccountContext extends Context {
+
+    private final ChaincodeStats.Invocation invocation;
+
+    private final AccountStore store;
+
+    AccountContext(final ChaincodeStub stub, final ChaincodeStats.Invocation invocation, final boolean deltaCredits) {
+        super(stub);
+        this.invocation = invocation;
+        store = new AccountStore(stub, deltaCredits, invocation.getStateCalls());
+    }
+
+    ChaincodeStats.Invocation getInvocation() {
+        return invocation;
+    }
+
+    AccountStore getStore() {
+        return store;
+    }
+}
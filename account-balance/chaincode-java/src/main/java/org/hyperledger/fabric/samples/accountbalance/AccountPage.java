@@ -0,0 +1,30 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import java.util.Map;
+
+import com.owlike.genson.annotation.JsonProperty;
+
+/**
+ * One page of a GetAccountsByPublicKey response: the balance of each account
+ * as a decimal string, by account ID, and the bookmark to pass for the next
+ * page, empty after the last one.
+ */
+public final class AccountPage {
+
+    private final Map<String, String> accounts;
+
+    private final String bookmark;
+
+    public Map<String, String> getAccounts() {
+        return accounts;
+    }
+
+    public String getBookmark() {
+        return bookmark;
+    }
+
+    public AccountPage(@JsonProperty("accounts") final Map<String, String> accounts, @JsonProperty("bookmark") final String bookmark) {
+        this.accounts = accounts;
+        this.bookmark = bookmark;
+    }
+}
@@ -0,0 +1,61 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import java.util.Objects;
+
+import org.hyperledger.fabric.contract.annotation.DataType;
+import org.hyperledger.fabric.contract.annotation.Property;
+
+import com.owlike.genson.annotation.JsonProperty;
+
+/**
+ * Aggregates over all accounts, as returned by GetAccountStats: the number of
+ * accounts and the sum of their balances as a decimal string.
+ */
+@DataType()
+public final class AccountStats {
+
+    @Property()
+    private final long accounts;
+
+    @Property()
+    private final String totalSupply;
+
+    public long getAccounts() {
+        return accounts;
+    }
+
+    public String getTotalSupply() {
+        return totalSupply;
+    }
+
+    public AccountStats(@JsonProperty("accounts") final long accounts, @JsonProperty("totalSupply") final String totalSupply) {
+        this.accounts = accounts;
+        this.totalSupply = totalSupply;
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        if (this == obj) {
+            return true;
+        }
+
+        if ((obj == null) || (getClass() != obj.getClass())) {
+            return false;
+        }
+
+        AccountStats other = (AccountStats) obj;
+
+        return getAccounts() == other.getAccounts() && Objects.equals(getTotalSupply(), other.getTotalSupply());
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(getAccounts(), getTotalSupply());
+    }
+
+    @Override
+    public String toString() {
+        return this.getClass().getSimpleName() + "@" + Integer.toHexString(hashCode()) + " [accounts=" + accounts
+                + ", totalSupply=" + totalSupply + "]";
+    }
+}
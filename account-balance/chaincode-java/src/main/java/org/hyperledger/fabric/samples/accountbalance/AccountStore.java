@@ -0,0 +1,345 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
+import org.hyperledger.fabric.shim.ledger.KeyModification;
+import org.hyperledger.fabric.shim.ledger.KeyValue;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIteratorWithMetadata;
+
+/**
+ * The accounts one transaction reads and writes, kept until flush so that each
+ * account is read and written at most once.
+ *
+ * With delta credits, a credit to an account that the transaction has not read
+ * is written as its own delta key (delta, accountID, txID) instead of a new base
+ * record. The receiver of a transfer is then never read, so concurrent credits
+ * to the same account no longer invalidate each other on MVCC validation. The
+ * balance of an account is its base record plus all of its deltas. An account
+ * that is read folds its deltas into the base record when it is written back,
+ * so a debit is always checked against the whole balance and never leaves it
+ * negative. Deltas are credits only, so they can never take a balance below
+ * zero either.
+ *
+ * Every account also has an exists marker key that is written once by
+ * CreateAccount and never changes. Checking a receiver against it does not
+ * conflict with anything that updates the account. CreateAccount also adds the
+ * account to the (publicKey~accountID, publicKey, accountID) index, so the
+ * accounts of a key are found with a partial composite key query.
+ *
+ * All the state calls of a transaction function go through its store, which
+ * counts them for the ChaincodeStats of the invocation.
+ */
+final class AccountStore {
+
+    static final String DELTA = "delta";
+
+    static final String EXISTS = "exists";
+
+    static final String PUBLIC_KEY_INDEX = "publicKey~accountID";
+
+    private static final byte[] MARKER = {1};
+
+    // U+10FFFF, which like U+0000 cannot appear in a composite key segment
+    private static final String MAX_UNICODE_RUNE = new String(Character.toChars(Character.MAX_CODE_POINT));
+
+    private final ChaincodeStub stub;
+    private final boolean deltaCredits;
+    private final ChaincodeStats.StateCalls stateCalls;
+
+    private final Map<String, Account> accounts = new HashMap<>();
+    private final Map<String, List<String>> deltaKeys = new HashMap<>();
+    private final Map<String, Long> credits = new LinkedHashMap<>();
+    private final Set<String> updated = new LinkedHashSet<>();
+    private final Set<String> created = new LinkedHashSet<>();
+
+    AccountStore(final ChaincodeStub stub, final boolean deltaCredits) {
+        this(stub, deltaCredits, new ChaincodeStats.StateCalls());
+    }
+
+    AccountStore(final ChaincodeStub stub, final boolean deltaCredits, final ChaincodeStats.StateCalls stateCalls) {
+        this.stub = stub;
+        this.deltaCredits = deltaCredits;
+        this.stateCalls = stateCalls;
+    }
+
+    static String existsKey(final String accountID) {
+        return compositeKey(EXISTS, accountID);
+    }
+
+    // the last attribute of a composite key built by compositeKey
+    static String lastAttribute(final String compositeKey) {
+        int end = compositeKey.length() - CompositeKey.NAMESPACE.length();
+        return compositeKey.substring(compositeKey.lastIndexOf(CompositeKey.NAMESPACE, end - 1) + 1, end);
+    }
+
+    // the same key as new CompositeKey(objectType, attributes).toString(), without compiling a regex per segment to validate it
+    static String compositeKey(final String objectType, final String... attributes) {
+        StringBuilder key = new StringBuilder(CompositeKey.NAMESPACE).append(objectType).append(CompositeKey.NAMESPACE);
+        for (String attribute : attributes) {
+            if (attribute.indexOf(0) >= 0 || attribute.contains(MAX_UNICODE_RUNE)) {
+                // throws CompositeKeyFormatException
+                return new CompositeKey(objectType, attributes).toString();
+            }
+            key.append(attribute).append(CompositeKey.NAMESPACE);
+        }
+        return key.toString();
+    }
+
+    /**
+     * Reads an account with its deltas and any credits this transaction made to it.
+     *
+     * @param accountID the account
+     * @return the account, or null when it does not exist
+     */
+    Account get(final String accountID) {
+        if (accounts.containsKey(accountID)) {
+            return accounts.get(accountID);
+        }
+        return load(accountID, getState(accountID));
+    }
+
+    /**
+     * Like get, for an account whose base record was already read, such as by a range query.
+     *
+     * @param accountID the account
+     * @param record the base record of the account
+     * @return the account, or null when it does not exist
+     */
+    Account load(final String accountID, final byte[] record) {
+        if (accounts.containsKey(accountID)) {
+            return accounts.get(accountID);
+        }
+        Account account = AccountCodec.decode(record);
+        if (account != null && deltaCredits) {
+            long balance = account.getBalance();
+            List<String> keys = new ArrayList<>();
+            try (QueryResultsIterator<KeyValue> deltas = getDeltas(accountID)) {
+                for (KeyValue delta : deltas) {
+                    balance = Math.addExact(balance, AccountCodec.decodeDelta(delta.getValue()));
+                    keys.add(delta.getKey());
+                }
+            } catch (ArithmeticException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException("Could not read the deltas of account " + accountID, e);
+            }
+            Long credit = credits.remove(accountID);
+            if (credit != null) {
+                balance = Math.addExact(balance, credit);
+                updated.add(accountID);
+            }
+            account = new Account(account.getAccountID(), balance, account.getPublicKey());
+            deltaKeys.put(accountID, keys);
+        }
+        accounts.put(accountID, account);
+        return account;
+    }
+
+    /**
+     * Checks that an account exists, without reading its balance when delta
+     * credits are on.
+     *
+     * @param accountID the account
+     * @return whether the account exists
+     */
+    boolean exists(final String accountID) {
+        if (accounts.containsKey(accountID)) {
+            return accounts.get(accountID) != null;
+        }
+        if (credits.containsKey(accountID)) {
+            return true;
+        }
+        if (deltaCredits) {
+            byte[] marker = getState(existsKey(accountID));
+            if (marker != null && marker.length > 0) {
+                return true;
+            }
+        }
+        // accounts created before the marker existed
+        return get(accountID) != null;
+    }
+
+    /**
+     * Replaces an account, written at flush.
+     *
+     * @param account the new account
+     */
+    void put(final Account account) {
+        accounts.put(account.getAccountID(), account);
+        updated.add(account.getAccountID());
+    }
+
+    /**
+     * Adds a new account, its exists marker and its public key index entry, written at flush.
+     *
+     * @param account the new account
+     */
+    void create(final Account account) {
+        put(account);
+        created.add(account.getAccountID());
+    }
+
+    /**
+     * Folds the deltas of an account into its base record, written at flush.
+     *
+     * @param accountID the account
+     * @return the number of deltas folded, or -1 when the account does not exist
+     */
+    int compact(final String accountID) {
+        Account account = get(accountID);
+        if (account == null) {
+            return -1;
+        }
+        int folded = deltaKeys.getOrDefault(accountID, Collections.emptyList()).size();
+        if (folded > 0) {
+            updated.add(accountID);
+        }
+        // accounts created before the marker and the index existed get them here
+        byte[] marker = getState(existsKey(accountID));
+        if (marker == null || marker.length == 0) {
+            created.add(accountID);
+        }
+        return folded;
+    }
+
+    /**
+     * Credits an existing account.
+     *
+     * @param accountID the account
+     * @param amount the amount in minor units
+     * @throws ArithmeticException if the balance as known to this transaction would overflow
+     */
+    void credit(final String accountID, final long amount) {
+        Account account = accounts.get(accountID);
+        if (account == null && !deltaCredits) {
+            account = get(accountID);
+        }
+        if (account != null) {
+            put(new Account(account.getAccountID(), Math.addExact(account.getBalance(), amount), account.getPublicKey()));
+        } else {
+            credits.merge(accountID, amount, Math::addExact);
+        }
+    }
+
+    /**
+     * Writes the updated accounts, deleting the deltas folded into them, and one
+     * delta per account credited without being read.
+     */
+    void flush() {
+        for (String accountID : updated) {
+            putState(accountID, AccountCodec.encode(accounts.get(accountID)));
+            for (String key : deltaKeys.getOrDefault(accountID, Collections.emptyList())) {
+                delState(key);
+            }
+        }
+        for (String accountID : created) {
+            putState(existsKey(accountID), MARKER);
+            String publicKey = accounts.get(accountID).getPublicKey();
+            if (publicKey != null) {
+                putState(compositeKey(PUBLIC_KEY_INDEX, publicKey, accountID), MARKER);
+            }
+        }
+        for (Map.Entry<String, Long> credit : credits.entrySet()) {
+            putState(compositeKey(DELTA, credit.getKey(), stub.getTxId()), AccountCodec.encodeDelta(credit.getValue()));
+        }
+        updated.clear();
+        created.clear();
+        credits.clear();
+        deltaKeys.clear();
+    }
+
+    /**
+     * Queries the base records of the accounts one page at a time. An empty
+     * range covers the simple keys only, so the composite keys are left out.
+     *
+     * @param pageSize the most records to return
+     * @param bookmark the bookmark of the previous page, or empty for the first one
+     * @return the records of the page
+     */
+    QueryResultsIteratorWithMetadata<KeyValue> getRecords(final int pageSize, final String bookmark) {
+        stateCalls.query();
+        return stub.getStateByRangeWithPagination("", "", pageSize, bookmark);
+    }
+
+    /**
+     * Queries the base records of all accounts.
+     *
+     * @return the records
+     */
+    QueryResultsIterator<KeyValue> getRecords() {
+        stateCalls.query();
+        return stub.getStateByRange("", "");
+    }
+
+    /**
+     * Queries the deltas of one account.
+     *
+     * @param accountID the account
+     * @return the deltas
+     */
+    QueryResultsIterator<KeyValue> getDeltas(final String accountID) {
+        stateCalls.query();
+        return stub.getStateByPartialCompositeKey(new CompositeKey(DELTA, accountID));
+    }
+
+    /**
+     * Queries the deltas of all accounts together, rather than one query per account.
+     *
+     * @return the deltas
+     */
+    QueryResultsIterator<KeyValue> getDeltas() {
+        stateCalls.query();
+        return stub.getStateByPartialCompositeKey(new CompositeKey(DELTA));
+    }
+
+    /**
+     * Queries the public key index one page at a time; the account ID of an
+     * entry is the lastAttribute of its key.
+     *
+     * @param publicKey the public key
+     * @param pageSize the most entries to return
+     * @param bookmark the bookmark of the previous page, or empty for the first one
+     * @return the index entries of the page
+     */
+    QueryResultsIteratorWithMetadata<KeyValue> getIndexEntries(final String publicKey, final int pageSize, final String bookmark) {
+        stateCalls.query();
+        return stub.getStateByPartialCompositeKeyWithPagination(new CompositeKey(PUBLIC_KEY_INDEX, publicKey), pageSize, bookmark);
+    }
+
+    /**
+     * Queries the modifications of an account record, newest first.
+     *
+     * @param accountID the account
+     * @return the modifications
+     */
+    QueryResultsIterator<KeyModification> getHistory(final String accountID) {
+        stateCalls.query();
+        return stub.getHistoryForKey(accountID);
+    }
+
+    private byte[] getState(final String key) {
+        byte[] value = stub.getState(key);
+        stateCalls.get(value);
+        return value;
+    }
+
+    private void putState(final String key, final byte[] value) {
+        stub.putState(key, value);
+        stateCalls.put(value);
+    }
+
+    private void delState(final String key) {
+        stub.delState(key);
+        stateCalls.delete();
+    }
+}
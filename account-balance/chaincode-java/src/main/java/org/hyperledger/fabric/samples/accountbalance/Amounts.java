@@ -0,0 +1,147 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Conversion between the decimal strings of the transaction API and the long
+ * minor units balances are kept in.
+ *
+ * SCALE is the number of decimal places of a minor unit, 2 unless the
+ * ACCOUNT_BALANCE_SCALE environment variable of the chaincode says otherwise.
+ * Amounts given with more decimal places than SCALE are rejected rather than
+ * rounded.
+ */
+public final class Amounts {
+
+    static final int DEFAULT_SCALE = 2;
+
+    // 10^18 minor units still fit a long
+    static final int MAX_SCALE = 18;
+
+    public static final int SCALE = scale(System.getenv("ACCOUNT_BALANCE_SCALE"));
+
+    private static final long[] POWERS_OF_TEN = new long[MAX_SCALE + 1];
+
+    // up to 18 digits once scaled stay below 10^18 and cannot overflow; longer amounts go through BigDecimal
+    private static final int MAX_PLAIN_DIGITS = 18;
+
+    private static final long NOT_PLAIN = Long.MIN_VALUE;
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i <= MAX_SCALE; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private Amounts() {
+    }
+
+    static int scale(final String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return DEFAULT_SCALE;
+        }
+        int scale = Integer.parseInt(value.trim());
+        if (scale < 0 || scale > MAX_SCALE) {
+            throw new IllegalArgumentException("ACCOUNT_BALANCE_SCALE must be between 0 and " + MAX_SCALE + ", got " + scale);
+        }
+        return scale;
+    }
+
+    /**
+     * Parses a decimal amount.
+     *
+     * @param amount the amount, such as "12.5"
+     * @return the amount in minor units
+     * @throws IllegalArgumentException if the amount is not a number, has more
+     *         decimal places than SCALE or does not fit a long
+     */
+    public static long parse(final String amount) {
+        if (amount == null) {
+            throw new IllegalArgumentException("Amount is missing");
+        }
+        long plain = parsePlain(amount);
+        if (plain != NOT_PLAIN) {
+            return plain;
+        }
+        try {
+            return new BigDecimal(amount.trim()).setScale(SCALE).unscaledValue().longValueExact();
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException("Amount " + amount + " does not fit " + SCALE + " decimal places in a long", e);
+        }
+    }
+
+    /**
+     * Formats an amount in minor units as a decimal string with SCALE decimal places.
+     *
+     * @param minorUnits the amount in minor units
+     * @return the decimal string
+     */
+    public static String format(final long minorUnits) {
+        return BigDecimal.valueOf(minorUnits, SCALE).toPlainString();
+    }
+
+    // [-]digits[.digits] with at most SCALE decimal places, the form the app sends, without going through BigDecimal
+    private static long parsePlain(final String amount) {
+        int length = amount.length();
+        int i = length > 0 && amount.charAt(0) == '-' ? 1 : 0;
+        int digits = 0;
+        int decimals = -1;
+        long value = 0;
+        for (; i < length; i++) {
+            char c = amount.charAt(i);
+            if (c == '.' && decimals < 0) {
+                decimals = 0;
+                continue;
+            }
+            if (c < '0' || c > '9' || ++digits > MAX_PLAIN_DIGITS) {
+                return NOT_PLAIN;
+            }
+            if (decimals >= 0 && ++decimals > SCALE) {
+                return NOT_PLAIN;
+            }
+            value = value * 10 + (c - '0');
+        }
+        int padding = SCALE - Math.max(decimals, 0);
+        if (digits == 0 || digits + padding > MAX_PLAIN_DIGITS) {
+            return NOT_PLAIN;
+        }
+        value *= POWERS_OF_TEN[padding];
+        return amount.charAt(0) == '-' ? -value : value;
+    }
+
+    /**
+     * Converts a balance stored as a JSON or IEEE 754 number before balances were
+     * kept in minor units, rounding half-even to SCALE decimal places.
+     *
+     * @param legacy the stored number
+     * @return the balance in minor units
+     */
+    public static long fromLegacy(final Number legacy) {
+        if (legacy == null || legacy instanceof Double && (((Double) legacy).isNaN() || ((Double) legacy).isInfinite())) {
+            return 0L;
+        }
+        // toString keeps the shortest decimal of a double, so 0.1 is 0.1 and not 0.1000000000000000055...
+        return new BigDecimal(legacy.toString()).setScale(SCALE, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+    }
+
+    /**
+     * Converts minor units written at another scale to SCALE.
+     *
+     * @param minorUnits the amount in minor units of fromScale
+     * @param fromScale the scale the amount was written with
+     * @return the amount in minor units of SCALE
+     * @throws ArithmeticException if the amount cannot be represented exactly
+     */
+    public static long rescale(final long minorUnits, final int fromScale) {
+        return rescale(minorUnits, fromScale, SCALE);
+    }
+
+    static long rescale(final long minorUnits, final int fromScale, final int toScale) {
+        if (fromScale == toScale) {
+            return minorUnits;
+        }
+        return BigDecimal.valueOf(minorUnits, fromScale).setScale(toScale).unscaledValue().longValueExact();
+    }
+}
@@ -0,0 +1,44 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import com.owlike.genson.annotation.JsonProperty;
+
+/**
+ * One modification of an account record in a GetBalanceHistory response: the
+ * transaction that made it, its timestamp as an ISO-8601 instant, and the
+ * balance it left as a decimal string, null when it deleted the record.
+ */
+public final class BalanceChange {
+
+    private final String txId;
+
+    private final String timestamp;
+
+    private final String balance;
+
+    private final boolean delete;
+
+    public String getTxId() {
+        return txId;
+    }
+
+    public String getTimestamp() {
+        return timestamp;
+    }
+
+    public String getBalance() {
+        return balance;
+    }
+
+    @JsonProperty("isDelete")
+    public boolean isDelete() {
+        return delete;
+    }
+
+    public BalanceChange(@JsonProperty("txId") final String txId, @JsonProperty("timestamp") final String timestamp,
+            @JsonProperty("balance") final String balance, @JsonProperty("isDelete") final boolean delete) {
+        this.txId = txId;
+        this.timestamp = timestamp;
+        this.balance = balance;
+        this.delete = delete;
+    }
+}
@@ -0,0 +1,30 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import java.util.List;
+
+import com.owlike.genson.annotation.JsonProperty;
+
+/**
+ * One page of a GetBalanceHistory response: the modifications of the account,
+ * newest first, and the bookmark to pass for the next page, empty after the
+ * last one.
+ */
+public final class BalanceHistoryPage {
+
+    private final List<BalanceChange> changes;
+
+    private final String bookmark;
+
+    public List<BalanceChange> getChanges() {
+        return changes;
+    }
+
+    public String getBookmark() {
+        return bookmark;
+    }
+
+    public BalanceHistoryPage(@JsonProperty("changes") final List<BalanceChange> changes, @JsonProperty("bookmark") final String bookmark) {
+        this.changes = changes;
+        this.bookmark = bookmark;
+    }
+}
@@ -0,0 +1,27 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import com.owlike.genson.annotation.JsonProperty;
+
+/**
+ * One entry of a GetBalances response: the balance of the account as a decimal
+ * string, or the error code explaining why there is none.
+ */
+public final class BalanceResult {
+
+    private final String balance;
+
+    private final String error;
+
+    public String getBalance() {
+        return balance;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public BalanceResult(@JsonProperty("balance") final String balance, @JsonProperty("error") final String error) {
+        this.balance = balance;
+        this.error = error;
+    }
+}
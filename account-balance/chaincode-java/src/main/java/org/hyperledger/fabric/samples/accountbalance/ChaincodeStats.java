@@ -0,0 +1,232 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.hyperledger.fabric.shim.ChaincodeStub;
+
+/**
+ * Per transaction function counts of one chaincode process: calls and
+ * failures, execution time, the getState, putState and delState calls with the
+ * bytes they moved, the range, composite key and history queries, and the
+ * error codes raised.
+ *
+ * Every AccountContext gets an Invocation. AccountBalance runs each transaction
+ * function between its start and finish, in a try/finally, so a call that
+ * throws is recorded as failed as soon as it does. The state calls are counted
+ * by the AccountStore of the context; the writes of the flush in
+ * afterTransaction are added to the function after it finishes.
+ */
+final class ChaincodeStats {
+
+    private final ConcurrentMap<String, FunctionStats> functions = new ConcurrentHashMap<>();
+
+    /**
+     * Creates the counts of one invocation.
+     *
+     * @param stub the stub of the invocation, which names its function
+     * @return the invocation
+     */
+    Invocation newInvocation(final ChaincodeStub stub) {
+        return new Invocation(stub);
+    }
+
+    /**
+     * The counts so far, by function name.
+     *
+     * @return a map of plain values, ready to serialize
+     */
+    Map<String, Object> toMap() {
+        Map<String, Object> map = new TreeMap<>();
+        functions.forEach((name, stats) -> map.put(name, stats.toMap()));
+        return map;
+    }
+
+    private static String functionName(final ChaincodeStub stub) {
+        String function = stub.getFunction();
+        if (function == null) {
+            return "unknown";
+        }
+        // functions can be called as contract:function
+        return function.substring(function.lastIndexOf(':') + 1);
+    }
+
+    /**
+     * The state calls of one AccountStore, not yet added to a function.
+     */
+    static final class StateCalls {
+        private long gets;
+        private long getBytes;
+        private long puts;
+        private long putBytes;
+        private long deletes;
+        private long queries;
+
+        void get(final byte[] value) {
+            gets++;
+            getBytes += value == null ? 0 : value.length;
+        }
+
+        void put(final byte[] value) {
+            puts++;
+            putBytes += value.length;
+        }
+
+        void delete() {
+            deletes++;
+        }
+
+        void query() {
+            queries++;
+        }
+
+        private void clear() {
+            gets = 0;
+            getBytes = 0;
+            puts = 0;
+            putBytes = 0;
+            deletes = 0;
+            queries = 0;
+        }
+    }
+
+    /**
+     * The counts of one invocation, used by its own thread only.
+     */
+    final class Invocation {
+        private final ChaincodeStub stub;
+        private final StateCalls stateCalls = new StateCalls();
+        // the function last started, which the state calls counted are added to
+        private String function;
+        private boolean running;
+        private long start;
+
+        private Invocation(final ChaincodeStub stub) {
+            this.stub = stub;
+        }
+
+        StateCalls getStateCalls() {
+            return stateCalls;
+        }
+
+        /**
+         * Starts timing the function the invocation was called with.
+         *
+         * @return false when a function is already running, such as for
+         *         InitLedger calling CreateAccount, which then counts as part of it
+         */
+        boolean start() {
+            if (running) {
+                return false;
+            }
+            start(functionName(stub));
+            return true;
+        }
+
+        /**
+         * Records the call with the state calls it made so far.
+         *
+         * @param succeeded whether the function returned rather than threw
+         */
+        void finish(final boolean succeeded) {
+            running = false;
+            stats().record(succeeded, System.nanoTime() - start);
+            addStateCalls();
+        }
+
+        /**
+         * Adds the state calls made since the function finished, which are the
+         * writes of the flush in afterTransaction.
+         */
+        void addStateCalls() {
+            if (function != null) {
+                stats().add(stateCalls);
+            }
+            stateCalls.clear();
+        }
+
+        /**
+         * Records a failed call with UNDEFINED_FUNCTION under unknownTransaction
+         * instead of the function name it was called with, so undefined names
+         * add no entries.
+         */
+        void unknownFunction() {
+            start("unknownTransaction");
+            error("UNDEFINED_FUNCTION");
+            finish(false);
+        }
+
+        void error(final String errorCode) {
+            if (running) {
+                stats().errors.computeIfAbsent(errorCode, code -> new LongAdder()).increment();
+            }
+        }
+
+        private void start(final String name) {
+            // state calls made outside of any function belong to none
+            stateCalls.clear();
+            function = name;
+            running = true;
+            start = System.nanoTime();
+        }
+
+        private FunctionStats stats() {
+            return functions.computeIfAbsent(function, name -> new FunctionStats());
+        }
+    }
+
+    private static final class FunctionStats {
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder nanos = new LongAdder();
+        private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+        private final LongAdder gets = new LongAdder();
+        private final LongAdder getBytes = new LongAdder();
+        private final LongAdder puts = new LongAdder();
+        private final LongAdder putBytes = new LongAdder();
+        private final LongAdder deletes = new LongAdder();
+        private final LongAdder queries = new LongAdder();
+        private final ConcurrentMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+        void record(final boolean succeeded, final long elapsed) {
+            calls.increment();
+            if (!succeeded) {
+                failures.increment();
+            }
+            nanos.add(elapsed);
+            maxNanos.accumulate(elapsed);
+        }
+
+        void add(final StateCalls stateCalls) {
+            gets.add(stateCalls.gets);
+            getBytes.add(stateCalls.getBytes);
+            puts.add(stateCalls.puts);
+            putBytes.add(stateCalls.putBytes);
+            deletes.add(stateCalls.deletes);
+            queries.add(stateCalls.queries);
+        }
+
+        Map<String, Object> toMap() {
+            long callCount = calls.sum();
+            Map<String, Object> map = new TreeMap<>();
+            map.put("calls", callCount);
+            map.put("failures", failures.sum());
+            map.put("meanMillis", callCount == 0 ? 0.0 : nanos.sum() / 1e6 / callCount);
+            map.put("maxMillis", maxNanos.get() / 1e6);
+            map.put("getState", gets.sum());
+            map.put("getStateBytes", getBytes.sum());
+            map.put("putState", puts.sum());
+            map.put("putStateBytes", putBytes.sum());
+            map.put("delState", deletes.sum());
+            map.put("queries", queries.sum());
+            Map<String, Long> errorCounts = new TreeMap<>();
+            errors.forEach((code, count) -> errorCounts.put(code, count.sum()));
+            map.put("errors", errorCounts);
+            return map;
+        }
+    }
+}
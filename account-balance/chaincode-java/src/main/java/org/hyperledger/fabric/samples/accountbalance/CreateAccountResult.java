@@ -0,0 +1,43 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import com.owlike.genson.annotation.JsonProperty;
+
+/**
+ * Outcome of one CreateAccounts entry: the ID and opening balance of the
+ * account created, as a decimal string, or the error code and message that
+ * rejected the entry.
+ */
+public final class CreateAccountResult {
+
+    private final String accountID;
+
+    private final String balance;
+
+    private final String error;
+
+    private final String message;
+
+    public String getAccountID() {
+        return accountID;
+    }
+
+    public String getBalance() {
+        return balance;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public CreateAccountResult(@JsonProperty("accountID") final String accountID, @JsonProperty("balance") final String balance,
+            @JsonProperty("error") final String error, @JsonProperty("message") final String message) {
+        this.accountID = accountID;
+        this.balance = balance;
+        this.error = error;
+        this.message = message;
+    }
+}
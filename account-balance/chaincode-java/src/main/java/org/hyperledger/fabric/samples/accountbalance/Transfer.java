@@ -0,0 +1,35 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import com.owlike.genson.annotation.JsonProperty;
+
+/**
+ * One leg of a BatchTransfer payload. The amount is a decimal string, or a
+ * JSON number as sent before balances were kept in minor units.
+ */
+public final class Transfer {
+
+    private final String from;
+
+    private final String to;
+
+    private final String amount;
+
+    public String getFrom() {
+        return from;
+    }
+
+    public String getTo() {
+        return to;
+    }
+
+    public String getAmount() {
+        return amount;
+    }
+
+    public Transfer(@JsonProperty("from") final String from, @JsonProperty("to") final String to,
+            @JsonProperty("amount") final String amount) {
+        this.from = from;
+        this.to = to;
+        this.amount = amount;
+    }
+}
@@ -0,0 +1,36 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import com.owlike.genson.annotation.JsonProperty;
+
+/**
+ * Outcome of one BatchTransfer leg: the remaining balance of the debited
+ * account as a decimal string, or the error code and message that rejected the
+ * leg.
+ */
+public final class TransferResult {
+
+    private final String balance;
+
+    private final String error;
+
+    private final String message;
+
+    public String getBalance() {
+        return balance;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public String getMessage() {
+        return message;
+    }
+
+    public TransferResult(@JsonProperty("balance") final String balance, @JsonProperty("error") final String error,
+            @JsonProperty("message") final String message) {
+        this.balance = balance;
+        this.error = error;
+        this.message = message;
+    }
+}
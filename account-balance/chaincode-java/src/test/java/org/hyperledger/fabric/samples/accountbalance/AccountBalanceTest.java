@@ -2,32 +2,62 @@ package org.hyperledger.fabric.samples.accountbalance;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.ThrowableAssert.catchThrowable;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.verifyZeroInteractions;
 import static org.mockito.Mockito.when;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 
 import org.hyperledger.fabric.contract.Context;
+import org.hyperledger.fabric.protos.msp.SerializedIdentity;
+import org.hyperledger.fabric.protos.peer.QueryResponseMetadata;
 import org.hyperledger.fabric.shim.ChaincodeException;
 import org.hyperledger.fabric.shim.ChaincodeStub;
+import org.hyperledger.fabric.shim.ledger.CompositeKey;
+import org.hyperledger.fabric.shim.ledger.KeyModification;
 import org.hyperledger.fabric.shim.ledger.KeyValue;
 import org.hyperledger.fabric.shim.ledger.QueryResultsIterator;
+import org.hyperledger.fabric.shim.ledger.QueryResultsIteratorWithMetadata;
 import org.junit.jupiter.api.Nested;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentMatcher;
 import org.mockito.InOrder;
 
+import com.google.protobuf.ByteString;
+import com.owlike.genson.GenericType;
+import com.owlike.genson.Genson;
+
 public final class AccountBalanceTest {
 
+    // accounts written before AccountCodec are JSON, which the contract still reads
+    private static byte[] json(final String accountJSON) {
+        return accountJSON.getBytes(StandardCharsets.UTF_8);
+    }
+
     private final class MockKeyValue implements KeyValue {
 
         private final String key;
-        private final String value;
+        private final byte[] value;
 
         MockKeyValue(final String key, final String value) {
+            this(key, value.getBytes());
+        }
+
+        MockKeyValue(final String key, final byte[] value) {
             super();
             this.key = key;
             this.value = value;
@@ -40,24 +70,38 @@ public final class AccountBalanceTest {
 
         @Override
         public String getStringValue() {
-            return this.value;
+            return new String(this.value);
         }
 
         @Override
         public byte[] getValue() {
-            return this.value.getBytes();
+            return this.value;
         }
 
     }
 
-    private final class MockAccountResultsIterator implements QueryResultsIterator<KeyValue> {
+    private final class MockAccountResultsIterator implements QueryResultsIterator<KeyValue>, QueryResultsIteratorWithMetadata<KeyValue> {
 
         private final List<KeyValue> accountList;
 
+        private final String bookmark;
+
+        MockAccountResultsIterator(final KeyValue... keyValues) {
+            this("", keyValues);
+        }
+
+        MockAccountResultsIterator(final String bookmark, final KeyValue... keyValues) {
+            super();
+
+            accountList = Arrays.asList(keyValues);
+            this.bookmark = bookmark;
+        }
+
         MockAccountResultsIterator() {
             super();
 
             accountList = new ArrayList<KeyValue>();
+            bookmark = "";
 
             accountList.add(new MockKeyValue("account1",
                     "{ \"accountID\": \"account1\", \"balance\": 5, \"publicKey\": \"Tomoko\"}"));
@@ -78,6 +122,11 @@ public final class AccountBalanceTest {
             return accountList.iterator();
         }
 
+        @Override
+        public QueryResponseMetadata getMetadata() {
+            return QueryResponseMetadata.newBuilder().setBookmark(bookmark).setFetchedRecordsCount(accountList.size()).build();
+        }
+
         @Override
         public void close() throws Exception {
             // do nothing
@@ -110,12 +159,12 @@ public final class AccountBalanceTest {
             Context ctx = mock(Context.class);
             ChaincodeStub stub = mock(ChaincodeStub.class);
             when(ctx.getStub()).thenReturn(stub);
-            when(stub.getStringState("account1"))
-                    .thenReturn("{ \"accountID\": \"account1\", \"balance\": 5.0, \"publicKey\": \"Tomoko\"}");
+            when(stub.getState("account1"))
+                    .thenReturn(json("{ \"accountID\": \"account1\", \"balance\": 5.0, \"publicKey\": \"Tomoko\"}"));
 
-            Double balance = contract.GetBalance(ctx, "account1");
+            String balance = contract.GetBalance(ctx, "account1");
 
-            assertThat(balance).isEqualTo(5.0);
+            assertThat(balance).isEqualTo("5.00");
         }
 
         @Test
@@ -124,7 +173,7 @@ public final class AccountBalanceTest {
             Context ctx = mock(Context.class);
             ChaincodeStub stub = mock(ChaincodeStub.class);
             when(ctx.getStub()).thenReturn(stub);
-            when(stub.getStringState("account1")).thenReturn("");
+            when(stub.getState("account1")).thenReturn(new byte[0]);
 
             Throwable thrown = catchThrowable(() -> {
                 contract.GetBalance(ctx, "account1");
@@ -136,6 +185,58 @@ public final class AccountBalanceTest {
         }
     }
 
+    @Nested
+    class InvokeReadAccountTransaction {
+
+        @Test
+        public void whenAccountExists() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getState("account1"))
+                    .thenReturn(json("{ \"accountID\": \"account1\", \"balance\": 5.0, \"publicKey\": \"Tomoko\"}"));
+
+            Account account = contract.ReadAccount(ctx, "account1");
+
+            assertThat(account).isEqualTo(new Account("account1", 500L, "Tomoko"));
+        }
+
+        @Test
+        public void whenAccountDoesNotExist() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getState("account1")).thenReturn(new byte[0]);
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.ReadAccount(ctx, "account1");
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("Account account1 does not exist");
+            assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("ACCOUNT_NOT_FOUND".getBytes());
+        }
+    }
+
+    @Test
+    void invokeGetBalancesTransaction() {
+        AccountBalance contract = new AccountBalance();
+        Context ctx = mock(Context.class);
+        ChaincodeStub stub = mock(ChaincodeStub.class);
+        when(ctx.getStub()).thenReturn(stub);
+        when(stub.getState("account1"))
+                .thenReturn(json("{ \"accountID\": \"account1\", \"balance\": 5.0, \"publicKey\": \"Tomoko\"}"));
+        when(stub.getState("account2")).thenReturn(new byte[0]);
+
+        String balances = contract.GetBalances(ctx, "[\"account1\",\"account2\",\"account1\"]");
+
+        assertThat(balances).isEqualTo("{\"account1\":{\"balance\":\"5.00\",\"error\":null},"
+                + "\"account2\":{\"balance\":null,\"error\":\"ACCOUNT_NOT_FOUND\"}}");
+        verify(stub, times(1)).getState("account1");
+    }
+
     @Test
     void invokeInitLedgerTransaction() {
         AccountBalance contract = new AccountBalance();
@@ -146,15 +247,15 @@ public final class AccountBalanceTest {
         contract.InitLedger(ctx);
 
         InOrder inOrder = inOrder(stub);
-        inOrder.verify(stub).putStringState("acc1", "{\"accountID\":\"acc1\",\"balance\":5000.0,\"publicKey\":\"pk1\"}");
-        inOrder.verify(stub).putStringState("acc2", "{\"accountID\":\"acc2\",\"balance\":8000.0,\"publicKey\":\"pk2\"}");
-        inOrder.verify(stub).putStringState("acc3", "{\"accountID\":\"acc3\",\"balance\":8000.0,\"publicKey\":\"pk2\"}");
-        inOrder.verify(stub).putStringState("acc4", "{\"accountID\":\"acc4\",\"balance\":8000.0,\"publicKey\":\"pk2\"}");
-        inOrder.verify(stub).putStringState("acc5", "{\"accountID\":\"acc5\",\"balance\":8000.0,\"publicKey\":\"pk2\"}");
-        inOrder.verify(stub).putStringState("acc6", "{\"accountID\":\"acc6\",\"balance\":8000.0,\"publicKey\":\"pk2\"}");
-        inOrder.verify(stub).putStringState("acc7", "{\"accountID\":\"acc7\",\"balance\":8000.0,\"publicKey\":\"pk2\"}");
-        inOrder.verify(stub).putStringState("acc8", "{\"accountID\":\"acc8\",\"balance\":8000.0,\"publicKey\":\"pk2\"}");
-        inOrder.verify(stub).putStringState("acc9", "{\"accountID\":\"acc9\",\"balance\":8000.0,\"publicKey\":\"pk2\"}");
+        inOrder.verify(stub).putState("acc1", AccountCodec.encode(new Account("acc1", 500000L, "pk1")));
+        inOrder.verify(stub).putState("acc2", AccountCodec.encode(new Account("acc2", 800000L, "pk2")));
+        inOrder.verify(stub).putState("acc3", AccountCodec.encode(new Account("acc3", 800000L, "pk2")));
+        inOrder.verify(stub).putState("acc4", AccountCodec.encode(new Account("acc4", 800000L, "pk2")));
+        inOrder.verify(stub).putState("acc5", AccountCodec.encode(new Account("acc5", 800000L, "pk2")));
+        inOrder.verify(stub).putState("acc6", AccountCodec.encode(new Account("acc6", 800000L, "pk2")));
+        inOrder.verify(stub).putState("acc7", AccountCodec.encode(new Account("acc7", 800000L, "pk2")));
+        inOrder.verify(stub).putState("acc8", AccountCodec.encode(new Account("acc8", 800000L, "pk2")));
+        inOrder.verify(stub).putState("acc9", AccountCodec.encode(new Account("acc9", 800000L, "pk2")));
 
     }
 
@@ -167,13 +268,15 @@ public final class AccountBalanceTest {
             Context ctx = mock(Context.class);
             ChaincodeStub stub = mock(ChaincodeStub.class);
             when(ctx.getStub()).thenReturn(stub);
-            when(stub.getStringState("account1"))
-                    .thenReturn("{ \"accountID\": \"account1\", \"balance\": 5, \"publicKey\": \"Tomoko\"}");
-            when(stub.getStringState("account2"))
-                    .thenReturn("{ \"accountID\": \"account2\", \"balance\": 10, \"publicKey\": \"Tomoko\"}");
-            Double remainingBalance = contract.TransferCoins(ctx, "account1", "account2", 1.5);
+            when(stub.getState("account1"))
+                    .thenReturn(json("{ \"accountID\": \"account1\", \"balance\": 5, \"publicKey\": \"Tomoko\"}"));
+            when(stub.getState("account2"))
+                    .thenReturn(json("{ \"accountID\": \"account2\", \"balance\": 10, \"publicKey\": \"Tomoko\"}"));
+            String remainingBalance = contract.TransferCoins(ctx, "account1", "account2", "1.5");
 
-            assertThat(remainingBalance).isEqualTo(3.5);
+            assertThat(remainingBalance).isEqualTo("3.50");
+            verify(stub).putState("account1", AccountCodec.encode(new Account("account1", 350L, "Tomoko")));
+            verify(stub).putState("account2", AccountCodec.encode(new Account("account2", 1150L, "Tomoko")));
         }
 
         @Test
@@ -182,11 +285,11 @@ public final class AccountBalanceTest {
             Context ctx = mock(Context.class);
             ChaincodeStub stub = mock(ChaincodeStub.class);
             when(ctx.getStub()).thenReturn(stub);
-            when(stub.getStringState("account1")).thenReturn("");
-            when(stub.getStringState("account2")).thenReturn("");
+            when(stub.getState("account1")).thenReturn(new byte[0]);
+            when(stub.getState("account2")).thenReturn(new byte[0]);
 
             Throwable thrown = catchThrowable(() -> {
-                contract.TransferCoins(ctx, "account1", "account2", 2.0);
+                contract.TransferCoins(ctx, "account1", "account2", "2.0");
             });
 
             assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
@@ -200,11 +303,11 @@ public final class AccountBalanceTest {
             Context ctx = mock(Context.class);
             ChaincodeStub stub = mock(ChaincodeStub.class);
             when(ctx.getStub()).thenReturn(stub);
-            when(stub.getStringState("account1")).thenReturn("{ \"accountID\": \"account1\", \"balance\": 5, \"publicKey\": \"Tomoko\"}");
-            when(stub.getStringState("account2")).thenReturn("");
+            when(stub.getState("account1")).thenReturn(json("{ \"accountID\": \"account1\", \"balance\": 5, \"publicKey\": \"Tomoko\"}"));
+            when(stub.getState("account2")).thenReturn(new byte[0]);
 
             Throwable thrown = catchThrowable(() -> {
-                contract.TransferCoins(ctx, "account1", "account2", 2.0);
+                contract.TransferCoins(ctx, "account1", "account2", "2.0");
             });
 
             assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
@@ -218,15 +321,15 @@ public final class AccountBalanceTest {
             Context ctx = mock(Context.class);
             ChaincodeStub stub = mock(ChaincodeStub.class);
             when(ctx.getStub()).thenReturn(stub);
-            when(stub.getStringState("account1")).thenReturn("{ \"accountID\": \"account1\", \"balance\": 5.0, \"publicKey\": \"Tomoko\"}");
-            when(stub.getStringState("account2")).thenReturn("{ \"accountID\": \"account2\", \"balance\": 5.0, \"publicKey\": \"Tomoko\"}");
+            when(stub.getState("account1")).thenReturn(json("{ \"accountID\": \"account1\", \"balance\": 5.0, \"publicKey\": \"Tomoko\"}"));
+            when(stub.getState("account2")).thenReturn(json("{ \"accountID\": \"account2\", \"balance\": 5.0, \"publicKey\": \"Tomoko\"}"));
 
             Throwable thrown = catchThrowable(() -> {
-                contract.TransferCoins(ctx, "account1", "account2", 6.0);
+                contract.TransferCoins(ctx, "account1", "account2", "6.0");
             });
 
             assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
-                    .hasMessage("Insufficient account balance 5.0 for transfer 6.0");
+                    .hasMessage("Insufficient account balance 5.00 for transfer 6.00");
             assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("INSUFFICIENT_BALANCE".getBytes());
         }
 
@@ -236,16 +339,877 @@ public final class AccountBalanceTest {
             Context ctx = mock(Context.class);
             ChaincodeStub stub = mock(ChaincodeStub.class);
             when(ctx.getStub()).thenReturn(stub);
-            when(stub.getStringState("account1")).thenReturn("{ \"accountID\": \"account1\", \"balance\": 5, \"publicKey\": \"Tomoko\"}");
-            when(stub.getStringState("account2")).thenReturn("{ \"accountID\": \"account2\", \"balance\": 5, \"publicKey\": \"Tomoko\"}");
+            when(stub.getState("account1")).thenReturn(json("{ \"accountID\": \"account1\", \"balance\": 5, \"publicKey\": \"Tomoko\"}"));
+            when(stub.getState("account2")).thenReturn(json("{ \"accountID\": \"account2\", \"balance\": 5, \"publicKey\": \"Tomoko\"}"));
 
             Throwable thrown = catchThrowable(() -> {
-                contract.TransferCoins(ctx, "account1", "account2", -6.0);
+                contract.TransferCoins(ctx, "account1", "account2", "-6.0");
             });
 
             assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
-                    .hasMessage("Tranfer amount must be larger than zero, received -6.0");
+                    .hasMessage("Tranfer amount must be larger than zero, received -6.00");
             assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("INVALID_TRANSFER_AMOUNT".getBytes());
         }
+
+        @Test
+        public void whenAmountHasTooManyDecimalPlaces() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.TransferCoins(ctx, "account1", "account2", "0.001");
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("Invalid amount 0.001, expected a decimal with at most 2 decimal places");
+            assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("INVALID_TRANSFER_AMOUNT".getBytes());
+            verify(stub, never()).putState(any(), any());
+        }
+
+        @Test
+        public void whenBalanceWouldOverflow() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getState("account1")).thenReturn(AccountCodec.encode(new Account("account1", 500L, "Tomoko")));
+            when(stub.getState("account2")).thenReturn(AccountCodec.encode(new Account("account2", Long.MAX_VALUE, "Tomoko")));
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.TransferCoins(ctx, "account1", "account2", "1");
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("Balance of account account2 would overflow");
+            assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("BALANCE_OVERFLOW".getBytes());
+            verify(stub, never()).putState(any(), any());
+        }
+
+        @Test
+        public void keepsSmallTransfersExact() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getState("account1")).thenReturn(json("{ \"accountID\": \"account1\", \"balance\": 0.3, \"publicKey\": \"Tomoko\"}"));
+            when(stub.getState("account2")).thenReturn(AccountCodec.encode(new Account("account2", 0L, "Tomoko")));
+
+            String remainingBalance = contract.TransferCoins(ctx, "account1", "account2", "0.1");
+
+            assertThat(remainingBalance).isEqualTo("0.20");
+            verify(stub).putState("account2", AccountCodec.encode(new Account("account2", 10L, "Tomoko")));
+        }
+    }
+
+    @Nested
+    class CreateAccountTransaction {
+
+        @Test
+        public void whenAccountDoesNotExist() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getState("account1")).thenReturn(new byte[0]);
+
+            Account account = contract.CreateAccount(ctx, "account1", "12.5", "Tomoko");
+
+            assertThat(account).isEqualTo(new Account("account1", 1250L, "Tomoko"));
+            verify(stub).putState("account1", AccountCodec.encode(account));
+            verify(stub).putState(new CompositeKey("publicKey~accountID", "Tomoko", "account1").toString(), new byte[] {1});
+        }
+
+        @Test
+        public void whenBalanceIsInvalid() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.CreateAccount(ctx, "account1", "lots", "Tomoko");
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("Invalid amount lots, expected a decimal with at most 2 decimal places");
+            assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("INVALID_BALANCE".getBytes());
+            verify(stub, never()).putState(any(), any());
+        }
+    }
+
+    @Nested
+    class CreateAccountsTransaction {
+
+        @Test
+        public void createsValidEntriesAndReportsTheOthers() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getState(any())).thenReturn(new byte[0]);
+            when(stub.getState("account2")).thenReturn(AccountCodec.encode(new Account("account2", 500L, "Brad")));
+
+            String results = contract.CreateAccounts(ctx, "[[\"account1\",\"12.5\",\"Tomoko\"],[\"account2\",\"1\",\"Brad\"],"
+                    + "[\"account3\",\"lots\",\"Jin Soo\"],[\"account1\",\"1\",\"Tomoko\"],[\"account4\"],[\"account5\",7,\"Max\"]]");
+
+            assertThat(results).isEqualTo("["
+                    + "{\"accountID\":\"account1\",\"balance\":\"12.50\",\"error\":null,\"message\":null},"
+                    + "{\"accountID\":\"account2\",\"balance\":null,\"error\":\"ACCOUNT_ALREADY_EXISTS\",\"message\":\"Account account2 already exists\"},"
+                    + "{\"accountID\":\"account3\",\"balance\":null,\"error\":\"INVALID_BALANCE\","
+                    + "\"message\":\"Invalid amount lots, expected a decimal with at most 2 decimal places\"},"
+                    + "{\"accountID\":\"account1\",\"balance\":null,\"error\":\"ACCOUNT_ALREADY_EXISTS\",\"message\":\"Account account1 already exists\"},"
+                    + "{\"accountID\":\"account4\",\"balance\":null,\"error\":\"INVALID_ACCOUNT\","
+                    + "\"message\":\"Entry 4 must be [accountID, balance, publicKey]\"},"
+                    + "{\"accountID\":\"account5\",\"balance\":\"7.00\",\"error\":null,\"message\":null}]");
+            verify(stub).putState("account1", AccountCodec.encode(new Account("account1", 1250L, "Tomoko")));
+            verify(stub).putState("account5", AccountCodec.encode(new Account("account5", 700L, "Max")));
+            verify(stub, never()).putState(eq("account2"), any());
+            verify(stub, never()).putState(eq("account3"), any());
+        }
+
+        @Test
+        public void checksEveryAccountBeforeWritingAny() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getState(any())).thenReturn(new byte[0]);
+
+            contract.CreateAccounts(ctx, "[[\"account1\",\"1\",\"Tomoko\"],[\"account2\",\"2\",\"Brad\"]]");
+
+            InOrder order = inOrder(stub);
+            order.verify(stub).getState("account1");
+            order.verify(stub).getState("account2");
+            order.verify(stub).putState("account1", AccountCodec.encode(new Account("account1", 100L, "Tomoko")));
+            order.verify(stub).putState("account2", AccountCodec.encode(new Account("account2", 200L, "Brad")));
+        }
+    }
+
+    @Nested
+    class GetAccountsByPublicKeyTransaction {
+
+        private QueryResultsIteratorWithMetadata<KeyValue> page(final String bookmark, final String... accountIDs) {
+            KeyValue[] entries = new KeyValue[accountIDs.length];
+            for (int i = 0; i < accountIDs.length; i++) {
+                entries[i] = new MockKeyValue(AccountStore.compositeKey(AccountStore.PUBLIC_KEY_INDEX, "Tomoko", accountIDs[i]),
+                        new byte[] {1});
+            }
+            return new MockAccountResultsIterator(bookmark, entries);
+        }
+
+        // CompositeKey has no equals
+        private ArgumentMatcher<CompositeKey> indexOf(final String publicKey) {
+            String prefix = new CompositeKey("publicKey~accountID", publicKey).toString();
+            return key -> key != null && key.toString().equals(prefix);
+        }
+
+        @Test
+        public void returnsOnePageWithTheNextBookmark() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getStateByPartialCompositeKeyWithPagination(argThat(indexOf("Tomoko")), eq(2), eq("")))
+                    .thenReturn(page("account2", "account1", "account2"));
+            when(stub.getState("account1")).thenReturn(AccountCodec.encode(new Account("account1", 500L, "Tomoko")));
+            when(stub.getState("account2")).thenReturn(AccountCodec.encode(new Account("account2", 1000L, "Tomoko")));
+
+            String accounts = contract.GetAccountsByPublicKey(ctx, "Tomoko", 2, null);
+
+            assertThat(accounts).isEqualTo("{\"accounts\":{\"account1\":\"5.00\",\"account2\":\"10.00\"},\"bookmark\":\"account2\"}");
+        }
+
+        @Test
+        public void endsWithAnEmptyBookmarkAfterTheLastPage() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getStateByPartialCompositeKeyWithPagination(argThat(indexOf("Tomoko")), eq(2), eq("account2")))
+                    .thenReturn(page("account3", "account3"));
+            when(stub.getState("account3")).thenReturn(AccountCodec.encode(new Account("account3", 5L, "Tomoko")));
+
+            String accounts = contract.GetAccountsByPublicKey(ctx, "Tomoko", 2, "account2");
+
+            assertThat(accounts).isEqualTo("{\"accounts\":{\"account3\":\"0.05\"},\"bookmark\":\"\"}");
+        }
+
+        @Test
+        public void whenPageSizeIsInvalid() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.GetAccountsByPublicKey(ctx, "Tomoko", 0, "");
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("Page size must be between 1 and 1000, received 0");
+            assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("INVALID_PAGE_SIZE".getBytes());
+        }
+    }
+
+    @Nested
+    class ListAccountsTransaction {
+
+        @Test
+        public void returnsOnePageWithTheNextBookmark() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getStateByRangeWithPagination("", "", 2, "")).thenReturn(new MockAccountResultsIterator("account3",
+                    new MockKeyValue("account1", AccountCodec.encode(new Account("account1", 500L, "Tomoko"))),
+                    new MockKeyValue("account2", AccountCodec.encode(new Account("account2", 1000L, "Brad")))));
+
+            String accounts = contract.ListAccounts(ctx, 2, "");
+
+            assertThat(accounts).isEqualTo("{\"accounts\":{\"account1\":\"5.00\",\"account2\":\"10.00\"},\"bookmark\":\"account3\"}");
+            verify(stub, never()).getState(any());
+        }
+
+        @Test
+        public void endsWithAnEmptyBookmarkAfterTheLastPage() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getStateByRangeWithPagination("", "", 10, "account3")).thenReturn(new MockAccountResultsIterator());
+
+            String accounts = contract.ListAccounts(ctx, 10, "account3");
+
+            assertThat(accounts).isEqualTo("{\"accounts\":{\"account1\":\"5.00\",\"account2\":\"5.00\",\"account3\":\"10.00\","
+                    + "\"account4\":\"10.00\",\"account5\":\"15.00\",\"account6\":\"15.00\"},\"bookmark\":\"\"}");
+        }
+
+        @Test
+        public void whenPageSizeIsInvalid() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.ListAccounts(ctx, 1001, "");
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("Page size must be between 1 and 1000, received 1001");
+            assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("INVALID_PAGE_SIZE".getBytes());
+        }
+    }
+
+    @Nested
+    class GetAccountStatsTransaction {
+
+        @Test
+        public void addsUpAllAccounts() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getStateByRange("", "")).thenReturn(new MockAccountResultsIterator());
+
+            AccountStats stats = contract.GetAccountStats(ctx);
+
+            assertThat(stats).isEqualTo(new AccountStats(6, "60.00"));
+        }
+
+        @Test
+        public void whenTotalSupplyWouldOverflow() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getStateByRange("", "")).thenReturn(new MockAccountResultsIterator(
+                    new MockKeyValue("account1", AccountCodec.encode(new Account("account1", Long.MAX_VALUE, "Tomoko"))),
+                    new MockKeyValue("account2", AccountCodec.encode(new Account("account2", 1L, "Brad")))));
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.GetAccountStats(ctx);
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("Total supply would overflow");
+            assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("BALANCE_OVERFLOW".getBytes());
+        }
+    }
+
+    @Nested
+    class GetBalanceHistoryTransaction {
+
+        private KeyModification modification(final String txId, final long second, final long balance) {
+            KeyModification modification = mock(KeyModification.class);
+            when(modification.getTxId()).thenReturn(txId);
+            when(modification.getTimestamp()).thenReturn(Instant.ofEpochSecond(second));
+            when(modification.getValue()).thenReturn(AccountCodec.encode(new Account("account1", balance, "Tomoko")));
+            return modification;
+        }
+
+        // a modification that is only skipped, without the cost of a mock
+        private KeyModification skipped(final String txId, final long second) {
+            return new KeyModification() {
+                @Override
+                public String getTxId() {
+                    return txId;
+                }
+
+                @Override
+                public byte[] getValue() {
+                    return AccountCodec.encode(new Account("account1", 0L, "Tomoko"));
+                }
+
+                @Override
+                public String getStringValue() {
+                    return null;
+                }
+
+                @Override
+                public Instant getTimestamp() {
+                    return Instant.ofEpochSecond(second);
+                }
+
+                @Override
+                public boolean isDeleted() {
+                    return false;
+                }
+            };
+        }
+
+        private Context history(final KeyModification... modifications) {
+            return history(Arrays.asList(modifications));
+        }
+
+        private Context history(final List<KeyModification> modifications) {
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getHistoryForKey("account1")).thenReturn(new QueryResultsIterator<KeyModification>() {
+                @Override
+                public Iterator<KeyModification> iterator() {
+                    return modifications.iterator();
+                }
+
+                @Override
+                public void close() {
+                    // nothing to release
+                }
+            });
+            return ctx;
+        }
+
+        @Test
+        public void returnsTheNewestChangesWithTheNextBookmark() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = history(modification("tx3", 3, 300L), modification("tx2", 2, 200L), modification("tx1", 1, 100L));
+
+            String history = contract.GetBalanceHistory(ctx, "account1", 2, "");
+
+            assertThat(history).isEqualTo("{\"bookmark\":\"1970-01-01T00:00:02Z/tx2\",\"changes\":["
+                    + "{\"balance\":\"3.00\",\"isDelete\":false,\"timestamp\":\"1970-01-01T00:00:03Z\",\"txId\":\"tx3\"},"
+                    + "{\"balance\":\"2.00\",\"isDelete\":false,\"timestamp\":\"1970-01-01T00:00:02Z\",\"txId\":\"tx2\"}]}");
+        }
+
+        @Test
+        public void continuesAfterTheBookmarkToTheLastPage() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = history(modification("tx3", 3, 300L), modification("tx2", 2, 200L), modification("tx1", 1, 100L));
+
+            String history = contract.GetBalanceHistory(ctx, "account1", 2, "1970-01-01T00:00:02Z/tx2");
+
+            assertThat(history).isEqualTo("{\"bookmark\":\"\",\"changes\":["
+                    + "{\"balance\":\"1.00\",\"isDelete\":false,\"timestamp\":\"1970-01-01T00:00:01Z\",\"txId\":\"tx1\"}]}");
+        }
+
+        @Test
+        public void takesABareTransactionIdAsTheBookmark() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = history(modification("tx3", 3, 300L), modification("tx2", 2, 200L), modification("tx1", 1, 100L));
+
+            String history = contract.GetBalanceHistory(ctx, "account1", 2, "tx2");
+
+            assertThat(history).isEqualTo("{\"bookmark\":\"\",\"changes\":["
+                    + "{\"balance\":\"1.00\",\"isDelete\":false,\"timestamp\":\"1970-01-01T00:00:01Z\",\"txId\":\"tx1\"}]}");
+        }
+
+        @Test
+        public void reportsADeleteWithoutABalance() {
+            AccountBalance contract = new AccountBalance();
+            KeyModification deleted = mock(KeyModification.class);
+            when(deleted.getTxId()).thenReturn("tx2");
+            when(deleted.getTimestamp()).thenReturn(Instant.ofEpochSecond(2));
+            when(deleted.isDeleted()).thenReturn(true);
+            Context ctx = history(deleted);
+
+            String history = contract.GetBalanceHistory(ctx, "account1", 10, null);
+
+            assertThat(history).isEqualTo("{\"bookmark\":\"\",\"changes\":["
+                    + "{\"balance\":null,\"isDelete\":true,\"timestamp\":\"1970-01-01T00:00:02Z\",\"txId\":\"tx2\"}]}");
+        }
+
+        @Test
+        public void whenTheBookmarkIsNotInTheHistory() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = history(modification("tx1", 1, 100L));
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.GetBalanceHistory(ctx, "account1", 10, "tx9");
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("Bookmark tx9 is not in the history of account account1");
+            assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("INVALID_BOOKMARK".getBytes());
+        }
+
+        @Test
+        public void whenTheBookmarkTransactionIsGoneStopsOncePastItsTimestamp() {
+            AccountBalance contract = new AccountBalance();
+            KeyModification older = mock(KeyModification.class);
+            Context ctx = history(modification("tx4", 4000, 400L), modification("tx3", 3000, 300L),
+                    modification("tx2", 2000, 200L), older);
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.GetBalanceHistory(ctx, "account1", 10, "1970-01-01T00:55:00Z/tx9");
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("Bookmark 1970-01-01T00:55:00Z/tx9 is not in the history of account account1");
+            assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("INVALID_BOOKMARK".getBytes());
+            // tx2 is more than 15 minutes older than the bookmark, so the modifications after it are not read
+            verify(older, never()).getTimestamp();
+            verify(older, never()).getTxId();
+        }
+
+        @Test
+        public void whenTheBookmarkIsNotATimestamp() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = history(modification("tx1", 1, 100L));
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.GetBalanceHistory(ctx, "account1", 10, "yesterday/tx1");
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("Bookmark yesterday/tx1 is not a timestamp/txId");
+            assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("INVALID_BOOKMARK".getBytes());
+        }
+
+        @Test
+        public void whenTheBookmarkIsTooDeepInTheHistory() {
+            AccountBalance contract = new AccountBalance();
+            List<KeyModification> modifications = new ArrayList<>();
+            for (int i = 10001; i > 0; i--) {
+                modifications.add(skipped("tx" + i, i));
+            }
+            Context ctx = history(modifications);
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.GetBalanceHistory(ctx, "account1", 10, "1970-01-01T00:00:01Z/tx1");
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("Bookmark 1970-01-01T00:00:01Z/tx1 is more than 10000 modifications into the history of account account1");
+            assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("HISTORY_TOO_LONG".getBytes());
+        }
+
+        @Test
+        public void whenTheAccountHasNoHistory() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = history();
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.GetBalanceHistory(ctx, "account1", 10, "");
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("Account account1 does not exist");
+            assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("ACCOUNT_NOT_FOUND".getBytes());
+        }
+    }
+
+    @Nested
+    class BatchTransferTransaction {
+
+        @Test
+        public void appliesLegsInOrderWritingEachAccountOnce() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getState("account1")).thenReturn(json("{ \"accountID\": \"account1\", \"balance\": 5.0, \"publicKey\": \"Tomoko\"}"));
+            when(stub.getState("account2")).thenReturn(json("{ \"accountID\": \"account2\", \"balance\": 1.0, \"publicKey\": \"Brad\"}"));
+
+            String results = contract.BatchTransfer(ctx, "[{\"from\":\"account1\",\"to\":\"account2\",\"amount\":4.0},"
+                    + "{\"from\":\"account2\",\"to\":\"account1\",\"amount\":3.0}]");
+
+            assertThat(results).isEqualTo("[{\"balance\":\"1.00\",\"error\":null,\"message\":null},"
+                    + "{\"balance\":\"2.00\",\"error\":null,\"message\":null}]");
+            verify(stub, times(1)).getState("account1");
+            verify(stub, times(1)).getState("account2");
+            verify(stub, times(1)).putState("account1", AccountCodec.encode(new Account("account1", 400L, "Tomoko")));
+            verify(stub, times(1)).putState("account2", AccountCodec.encode(new Account("account2", 200L, "Brad")));
+        }
+
+        @Test
+        public void rejectsFailingLegWithoutStoppingTheBatch() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getState("account1")).thenReturn(json("{ \"accountID\": \"account1\", \"balance\": 5.0, \"publicKey\": \"Tomoko\"}"));
+            when(stub.getState("account2")).thenReturn(json("{ \"accountID\": \"account2\", \"balance\": 1.0, \"publicKey\": \"Brad\"}"));
+            when(stub.getState("account3")).thenReturn(new byte[0]);
+
+            String results = contract.BatchTransfer(ctx, "[{\"from\":\"account1\",\"to\":\"account3\",\"amount\":\"1\"},"
+                    + "{\"from\":\"account2\",\"to\":\"account1\",\"amount\":\"2\"},"
+                    + "{\"from\":\"account1\",\"to\":\"account2\",\"amount\":\"0.001\"},"
+                    + "{\"from\":\"account1\",\"to\":\"account2\",\"amount\":\"1.5\"}]");
+
+            assertThat(results).isEqualTo("[{\"balance\":null,\"error\":\"ACCOUNT_NOT_FOUND\",\"message\":\"To account account3 does not exist\"},"
+                    + "{\"balance\":null,\"error\":\"INSUFFICIENT_BALANCE\",\"message\":\"Insufficient account balance 1.00 for transfer 2.00\"},"
+                    + "{\"balance\":null,\"error\":\"INVALID_TRANSFER_AMOUNT\","
+                    + "\"message\":\"Invalid amount 0.001, expected a decimal with at most 2 decimal places\"},"
+                    + "{\"balance\":\"3.50\",\"error\":null,\"message\":null}]");
+            verify(stub).putState("account1", AccountCodec.encode(new Account("account1", 350L, "Tomoko")));
+            verify(stub).putState("account2", AccountCodec.encode(new Account("account2", 250L, "Brad")));
+            verify(stub, never()).putState(eq("account3"), any());
+        }
+    }
+
+    @Nested
+    class TransactionContext {
+
+        // self-signed client certificate, parsed by ClientIdentity when a Context is created
+        private final String certificate = "-----BEGIN CERTIFICATE-----\n"
+                + "MIIB5zCCAY2gAwIBAgIUcinAiALlg0M5qP8dVOCcCOGwzSgwCgYIKoZIzj0EAwIw\n"
+                + "SDELMAkGA1UEBhMCVVMxFDASBgNVBAoMC0h5cGVybGVkZ2VyMQ8wDQYDVQQLDAZj\n"
+                + "bGllbnQxEjAQBgNVBAMMCWJlbmNobWFyazAgFw0yNjEwMTgwMzA1NDNaGA8yMTI2\n"
+                + "MDkyNDAzMDU0M1owSDELMAkGA1UEBhMCVVMxFDASBgNVBAoMC0h5cGVybGVkZ2Vy\n"
+                + "MQ8wDQYDVQQLDAZjbGllbnQxEjAQBgNVBAMMCWJlbmNobWFyazBZMBMGByqGSM49\n"
+                + "AgEGCCqGSM49AwEHA0IABPLTBlMso63Q4SDOU89WzAJcDZ/9bRLJyHfk84rvjeDi\n"
+                + "m/RABqlKYwczrZH39wSQ9FNIZrTs0owG8GDGQvavFaGjUzBRMB0GA1UdDgQWBBSe\n"
+                + "bLrNFvchO/+qR4nEJrzYpR44TTAfBgNVHSMEGDAWgBSebLrNFvchO/+qR4nEJrzY\n"
+                + "pR44TTAPBgNVHRMBAf8EBTADAQH/MAoGCCqGSM49BAMCA0gAMEUCIQCZlqpHTPgR\n"
+                + "JDlPkVHWiWJeHjY/YkverJQ6l+Cr0urbDAIgPiR7EpHsvXEdnMHmz94zIZGdm0Cu\n"
+                + "Lj0WL2id4OQOeDQ=\n"
+                + "-----END CERTIFICATE-----\n";
+
+        private AccountContext createContext(final AccountBalance contract, final ChaincodeStub stub) {
+            when(stub.getCreator()).thenReturn(SerializedIdentity.newBuilder().setMspid("Org1MSP")
+                    .setIdBytes(ByteString.copyFromUtf8(certificate)).build().toByteArray());
+            return (AccountContext) contract.createContext(stub);
+        }
+
+        @Test
+        public void readsEachAccountOnceAndWritesAtTheEnd() {
+            AccountBalance contract = new AccountBalance();
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(stub.getState(any())).thenReturn(new byte[0]);
+            AccountContext ctx = createContext(contract, stub);
+
+            contract.InitLedger(ctx);
+
+            verify(stub, times(9)).getState(any());
+            verify(stub, never()).putState(any(), any());
+
+            contract.afterTransaction(ctx, null);
+
+            verify(stub).putState("acc1", AccountCodec.encode(new Account("acc1", 500000L, "pk1")));
+            verify(stub, times(27)).putState(any(), any());
+            verify(stub, times(9)).getState(any());
+        }
+
+        @Test
+        public void servesRepeatedReadsFromMemory() {
+            AccountBalance contract = new AccountBalance();
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(stub.getState("account1")).thenReturn(AccountCodec.encode(new Account("account1", 500L, "Tomoko")));
+            AccountContext ctx = createContext(contract, stub);
+
+            assertThat(contract.AccountExists(ctx, "account1")).isTrue();
+            assertThat(contract.GetBalance(ctx, "account1")).isEqualTo("5.00");
+            assertThat(contract.GetBalances(ctx, "[\"account1\"]")).isEqualTo("{\"account1\":{\"balance\":\"5.00\",\"error\":null}}");
+
+            verify(stub, times(1)).getState("account1");
+        }
+
+        @Test
+        public void readsItsOwnWrites() {
+            AccountBalance contract = new AccountBalance();
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(stub.getState(any())).thenReturn(new byte[0]);
+            when(stub.getState("account1")).thenReturn(AccountCodec.encode(new Account("account1", 500L, "Tomoko")));
+            AccountContext ctx = createContext(contract, stub);
+
+            contract.CreateAccount(ctx, "account2", "1", "Brad");
+            contract.TransferCoins(ctx, "account1", "account2", "2");
+
+            assertThat(contract.GetBalance(ctx, "account2")).isEqualTo("3.00");
+            verify(stub, times(1)).getState("account2");
+
+            contract.afterTransaction(ctx, null);
+
+            verify(stub).putState("account1", AccountCodec.encode(new Account("account1", 300L, "Tomoko")));
+            verify(stub).putState("account2", AccountCodec.encode(new Account("account2", 300L, "Brad")));
+        }
+
+        @Test
+        public void leavesOtherContextsAlone() {
+            AccountBalance contract = new AccountBalance();
+            Context ctx = mock(Context.class);
+
+            contract.afterTransaction(ctx, null);
+
+            verifyZeroInteractions(ctx);
+        }
+
+        // runs one invocation as the contract router does, with the stats in its context
+        private Map<String, Map<String, Object>> chaincodeStats(final AccountBalance contract) {
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(stub.getFunction()).thenReturn("GetChaincodeStats");
+            AccountContext ctx = createContext(contract, stub);
+            String stats = contract.GetChaincodeStats(ctx);
+            contract.afterTransaction(ctx, stats);
+            return new Genson().deserialize(stats, new GenericType<Map<String, Map<String, Object>>>() { });
+        }
+
+        @Test
+        public void countsTheStateCallsOfEachFunction() {
+            AccountBalance contract = new AccountBalance();
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(stub.getFunction()).thenReturn("account:TransferCoins");
+            when(stub.getState("account1")).thenReturn(AccountCodec.encode(new Account("account1", 500L, "Tomoko")));
+            when(stub.getState("account2")).thenReturn(AccountCodec.encode(new Account("account2", 100L, "Brad")));
+            AccountContext ctx = createContext(contract, stub);
+
+            contract.afterTransaction(ctx, contract.TransferCoins(ctx, "account1", "account2", "2"));
+
+            Map<String, Object> transfers = chaincodeStats(contract).get("TransferCoins");
+            assertThat(transfers).containsEntry("calls", 1L).containsEntry("failures", 0L)
+                    .containsEntry("getState", 2L).containsEntry("putState", 2L).containsEntry("delState", 0L)
+                    .containsEntry("putStateBytes", (long) (AccountCodec.encode(new Account("account1", 300L, "Tomoko")).length
+                            + AccountCodec.encode(new Account("account2", 300L, "Brad")).length))
+                    .containsEntry("errors", Collections.emptyMap());
+        }
+
+        @Test
+        public void recordsAFailedCallWithItsErrorCode() {
+            AccountBalance contract = new AccountBalance();
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(stub.getFunction()).thenReturn("TransferCoins");
+            when(stub.getState("account1")).thenReturn(AccountCodec.encode(new Account("account1", 500L, "Tomoko")));
+            when(stub.getState("account2")).thenReturn(AccountCodec.encode(new Account("account2", 100L, "Brad")));
+            AccountContext ctx = createContext(contract, stub);
+
+            Throwable thrown = catchThrowable(() -> contract.TransferCoins(ctx, "account1", "account2", "20"));
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class);
+            Map<String, Object> transfers = chaincodeStats(contract).get("TransferCoins");
+            assertThat(transfers).containsEntry("calls", 1L).containsEntry("failures", 1L)
+                    .containsEntry("getState", 2L).containsEntry("putState", 0L);
+            assertThat(transfers.get("errors")).isEqualTo(Collections.singletonMap("INSUFFICIENT_BALANCE", 1L));
+        }
+
+        @Test
+        public void countsTheFunctionsItCallsAsPartOfIt() {
+            AccountBalance contract = new AccountBalance();
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(stub.getFunction()).thenReturn("InitLedger");
+            when(stub.getState(any())).thenReturn(new byte[0]);
+            AccountContext ctx = createContext(contract, stub);
+
+            contract.InitLedger(ctx);
+            contract.afterTransaction(ctx, null);
+
+            Map<String, Map<String, Object>> stats = chaincodeStats(contract);
+            assertThat(stats).doesNotContainKeys("CreateAccount", "AccountExists");
+            assertThat(stats.get("InitLedger")).containsEntry("calls", 1L).containsEntry("failures", 0L)
+                    .containsEntry("getState", 9L).containsEntry("putState", 27L);
+        }
+
+        @Test
+        public void countsUndefinedFunctionsTogether() {
+            AccountBalance contract = new AccountBalance();
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(stub.getFunction()).thenReturn("NoSuchFunction");
+            AccountContext ctx = createContext(contract, stub);
+
+            Throwable thrown = catchThrowable(() -> contract.unknownTransaction(ctx));
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasMessage("Undefined contract method called");
+            Map<String, Map<String, Object>> stats = chaincodeStats(contract);
+            assertThat(stats).doesNotContainKey("NoSuchFunction");
+            assertThat(stats.get("unknownTransaction")).containsEntry("calls", 1L).containsEntry("failures", 1L);
+            assertThat(stats.get("unknownTransaction").get("errors")).isEqualTo(Collections.singletonMap("UNDEFINED_FUNCTION", 1L));
+        }
+    }
+
+    @Nested
+    class DeltaCredits {
+
+        private final String delta1 = new CompositeKey("delta", "account1", "tx0").toString();
+        private final String delta2 = new CompositeKey("delta", "account1", "tx00").toString();
+
+        private ChaincodeStub stubWithDeltas(final Context ctx) {
+            ChaincodeStub stub = mock(ChaincodeStub.class);
+            when(ctx.getStub()).thenReturn(stub);
+            when(stub.getTxId()).thenReturn("tx1");
+            when(stub.getState(any())).thenReturn(new byte[0]);
+            when(stub.getState("account1")).thenReturn(AccountCodec.encode(new Account("account1", 100L, "Tomoko")));
+            when(stub.getState(AccountStore.existsKey("account2"))).thenReturn(new byte[] {1});
+            when(stub.getStateByPartialCompositeKey(any(CompositeKey.class))).thenAnswer(invocation -> {
+                String prefix = invocation.getArgument(0).toString();
+                if (prefix.equals(new CompositeKey("delta", "account1").toString()) || prefix.equals(new CompositeKey("delta").toString())) {
+                    return new MockAccountResultsIterator(new MockKeyValue(delta1, AccountCodec.encodeDelta(100L)),
+                            new MockKeyValue(delta2, AccountCodec.encodeDelta(250L)));
+                }
+                return new MockAccountResultsIterator(new KeyValue[0]);
+            });
+            return stub;
+        }
+
+        @Test
+        public void buildsCompositeKeysLikeTheShim() {
+            assertThat(AccountStore.existsKey("account1")).isEqualTo(new CompositeKey("exists", "account1").toString());
+            assertThat(AccountStore.compositeKey("delta", "account1", "tx1")).isEqualTo(new CompositeKey("delta", "account1", "tx1").toString());
+            assertThat(catchThrowable(() -> AccountStore.compositeKey("delta", "bad\u0000id"))).isInstanceOf(IllegalArgumentException.class);
+        }
+
+        @Test
+        public void readsTheBalanceWithItsDeltas() {
+            AccountBalance contract = new AccountBalance(true);
+            Context ctx = mock(Context.class);
+            stubWithDeltas(ctx);
+
+            assertThat(contract.GetBalance(ctx, "account1")).isEqualTo("4.50");
+        }
+
+        @Test
+        public void listsAccountsWithTheirDeltas() {
+            AccountBalance contract = new AccountBalance(true);
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = stubWithDeltas(ctx);
+            when(stub.getStateByRangeWithPagination("", "", 10, "")).thenReturn(new MockAccountResultsIterator(
+                    new MockKeyValue("account1", AccountCodec.encode(new Account("account1", 100L, "Tomoko")))));
+
+            assertThat(contract.ListAccounts(ctx, 10, null)).isEqualTo("{\"accounts\":{\"account1\":\"4.50\"},\"bookmark\":\"\"}");
+        }
+
+        @Test
+        public void addsTheDeltasToTheTotalSupply() {
+            AccountBalance contract = new AccountBalance(true);
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = stubWithDeltas(ctx);
+            when(stub.getStateByRange("", "")).thenReturn(new MockAccountResultsIterator(
+                    new MockKeyValue("account1", AccountCodec.encode(new Account("account1", 100L, "Tomoko")))));
+
+            assertThat(contract.GetAccountStats(ctx)).isEqualTo(new AccountStats(1, "4.50"));
+        }
+
+        @Test
+        public void creditsWithoutReadingTheReceiver() {
+            AccountBalance contract = new AccountBalance(true);
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = stubWithDeltas(ctx);
+
+            String remainingBalance = contract.TransferCoins(ctx, "account1", "account2", "4");
+
+            assertThat(remainingBalance).isEqualTo("0.50");
+            verify(stub, never()).getState("account2");
+            verify(stub).putState("account1", AccountCodec.encode(new Account("account1", 50L, "Tomoko")));
+            verify(stub).delState(delta1);
+            verify(stub).delState(delta2);
+            verify(stub).putState(new CompositeKey("delta", "account2", "tx1").toString(), AccountCodec.encodeDelta(400L));
+            verify(stub, never()).putState(eq("account2"), any());
+        }
+
+        @Test
+        public void neverDebitsBeyondTheBalanceWithItsDeltas() {
+            AccountBalance contract = new AccountBalance(true);
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = stubWithDeltas(ctx);
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.TransferCoins(ctx, "account1", "account2", "4.51");
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("Insufficient account balance 4.50 for transfer 4.51");
+            verify(stub, never()).putState(any(), any());
+            verify(stub, never()).delState(any());
+        }
+
+        @Test
+        public void rejectsCreditsToMissingAccounts() {
+            AccountBalance contract = new AccountBalance(true);
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = stubWithDeltas(ctx);
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.TransferCoins(ctx, "account1", "account3", "1");
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("To account account3 does not exist");
+            verify(stub, never()).putState(any(), any());
+        }
+
+        @Test
+        public void batchesCreditsToTheSameAccountIntoOneDelta() {
+            AccountBalance contract = new AccountBalance(true);
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = stubWithDeltas(ctx);
+
+            String results = contract.BatchTransfer(ctx, "[{\"from\":\"account1\",\"to\":\"account2\",\"amount\":\"1\"},"
+                    + "{\"from\":\"account1\",\"to\":\"account2\",\"amount\":\"2\"}]");
+
+            assertThat(results).isEqualTo("[{\"balance\":\"3.50\",\"error\":null,\"message\":null},"
+                    + "{\"balance\":\"1.50\",\"error\":null,\"message\":null}]");
+            verify(stub, times(1)).getState("account1");
+            verify(stub).putState(new CompositeKey("delta", "account2", "tx1").toString(), AccountCodec.encodeDelta(300L));
+        }
+
+        @Test
+        public void compactsDeltasIntoTheAccount() {
+            AccountBalance contract = new AccountBalance(true);
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = stubWithDeltas(ctx);
+
+            String balance = contract.CompactDeltas(ctx, "account1");
+
+            assertThat(balance).isEqualTo("4.50");
+            verify(stub).putState("account1", AccountCodec.encode(new Account("account1", 450L, "Tomoko")));
+            verify(stub).delState(delta1);
+            verify(stub).delState(delta2);
+            verify(stub).putState(AccountStore.existsKey("account1"), new byte[] {1});
+        }
+
+        @Test
+        public void compactsOnlyExistingAccounts() {
+            AccountBalance contract = new AccountBalance(true);
+            Context ctx = mock(Context.class);
+            stubWithDeltas(ctx);
+
+            Throwable thrown = catchThrowable(() -> {
+                contract.CompactDeltas(ctx, "account3");
+            });
+
+            assertThat(thrown).isInstanceOf(ChaincodeException.class).hasNoCause()
+                    .hasMessage("Account account3 does not exist");
+            assertThat(((ChaincodeException) thrown).getPayload()).isEqualTo("ACCOUNT_NOT_FOUND".getBytes());
+        }
+
+        @Test
+        public void marksNewAccountsAsExisting() {
+            AccountBalance contract = new AccountBalance(true);
+            Context ctx = mock(Context.class);
+            ChaincodeStub stub = stubWithDeltas(ctx);
+
+            contract.CreateAccount(ctx, "account3", "1", "Brad");
+
+            verify(stub).putState("account3", AccountCodec.encode(new Account("account3", 100L, "Brad")));
+            verify(stub).putState(AccountStore.existsKey("account3"), new byte[] {1});
+            verify(stub).putState(AccountStore.compositeKey(AccountStore.PUBLIC_KEY_INDEX, "Brad", "account3"), new byte[] {1});
+        }
     }
 }
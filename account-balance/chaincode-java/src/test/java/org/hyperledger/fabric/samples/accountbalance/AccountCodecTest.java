@@ -0,0 +1,81 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+public final class AccountCodecTest {
+
+    @Test
+    public void roundTripsAnAccount() {
+        Account account = new Account("acc1", 500000L, "pk1");
+
+        byte[] record = AccountCodec.encode(account);
+
+        assertThat(record[0]).isEqualTo(AccountCodec.VERSION_2);
+        assertThat(record).hasSize(14);
+        assertThat(AccountCodec.decode(record)).isEqualTo(account);
+    }
+
+    @Test
+    public void roundTripsNullsAndNonAsciiText() {
+        Account account = new Account("\uacc4\uc88c-\u00e9-\ud83d\ude00", -1L, null);
+
+        assertThat(AccountCodec.decode(AccountCodec.encode(account))).isEqualTo(account);
+    }
+
+    @Test
+    public void roundTripsLongPublicKeys() {
+        StringBuilder publicKey = new StringBuilder();
+        for (int i = 0; i < 300; i++) {
+            publicKey.append('k');
+        }
+        Account account = new Account("", Long.MIN_VALUE, publicKey.toString());
+
+        assertThat(AccountCodec.decode(AccountCodec.encode(account))).isEqualTo(account);
+    }
+
+    @Test
+    public void readsLegacyJSON() {
+        byte[] record = "{ \"accountID\": \"account1\", \"balance\": 5, \"publicKey\": \"Tomoko\"}".getBytes(StandardCharsets.UTF_8);
+        byte[] drifted = "{ \"accountID\": \"account2\", \"balance\": 0.30000000000000004, \"publicKey\": \"Tomoko\"}"
+                .getBytes(StandardCharsets.UTF_8);
+
+        assertThat(AccountCodec.decode(record)).isEqualTo(new Account("account1", 500L, "Tomoko"));
+        assertThat(AccountCodec.decode(drifted)).isEqualTo(new Account("account2", 30L, "Tomoko"));
+    }
+
+    @Test
+    public void readsVersion1Records() {
+        // 12.5 as IEEE 754 bits, then "a" and a null public key
+        byte[] record = {AccountCodec.VERSION_1, 0x40, 0x29, 0, 0, 0, 0, 0, 0, 2, 'a', 0};
+
+        assertThat(AccountCodec.decode(record)).isEqualTo(new Account("a", 1250L, null));
+    }
+
+    @Test
+    public void decodesOnlyTheBalance() {
+        byte[] version1 = {AccountCodec.VERSION_1, 0x40, 0x29, 0, 0, 0, 0, 0, 0, 2, 'a', 0};
+        byte[] json = "{ \"accountID\": \"account1\", \"balance\": 5, \"publicKey\": \"Tomoko\"}".getBytes(StandardCharsets.UTF_8);
+
+        assertThat(AccountCodec.decodeBalance(AccountCodec.encode(new Account("acc1", -42L, "pk1")))).isEqualTo(-42L);
+        assertThat(AccountCodec.decodeBalance(version1)).isEqualTo(1250L);
+        assertThat(AccountCodec.decodeBalance(json)).isEqualTo(500L);
+    }
+
+    @Test
+    public void rescalesBalancesWrittenAtAnotherScale() {
+        // 125 at scale 1, zigzag encoded as 250
+        byte[] record = {AccountCodec.VERSION_2, 1, (byte) 0xFA, 0x01, 2, 'a', 1};
+
+        assertThat(AccountCodec.decode(record)).isEqualTo(new Account("a", 1250L, ""));
+    }
+
+    @Test
+    public void readsMissingRecordsAsNull() {
+        assertThat(AccountCodec.decode(null)).isNull();
+        assertThat(AccountCodec.decode(new byte[0])).isNull();
+    }
+}
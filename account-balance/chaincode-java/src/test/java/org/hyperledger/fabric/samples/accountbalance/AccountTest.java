@@ -11,15 +11,15 @@ public final class AccountTest {
 
         @Test
         public void isReflexive() {
-            Account account = new Account("account1", 20.0, "Guy");
+            Account account = new Account("account1", 2000L, "Guy");
 
             assertThat(account).isEqualTo(account);
         }
 
         @Test
         public void isSymmetric() {
-            Account accountA = new Account("account1", 20.0, "Guy");
-            Account accountB = new Account("account1", 20.0, "Guy");
+            Account accountA = new Account("account1", 2000L, "Guy");
+            Account accountB = new Account("account1", 2000L, "Guy");
 
             assertThat(accountA).isEqualTo(accountB);
             assertThat(accountB).isEqualTo(accountA);
@@ -27,9 +27,9 @@ public final class AccountTest {
 
         @Test
         public void isTransitive() {
-            Account accountA = new Account("account1", 20.0, "Guy");
-            Account accountB = new Account("account1", 20.0, "Guy");
-            Account accountC = new Account("account1", 20.0, "Guy");
+            Account accountA = new Account("account1", 2000L, "Guy");
+            Account accountB = new Account("account1", 2000L, "Guy");
+            Account accountC = new Account("account1", 2000L, "Guy");
             assertThat(accountA).isEqualTo(accountB);
             assertThat(accountB).isEqualTo(accountC);
             assertThat(accountA).isEqualTo(accountC);
@@ -37,15 +37,15 @@ public final class AccountTest {
 
         @Test
         public void handlesInequality() {
-            Account accountA = new Account("account1", 20.0, "Guy");
-            Account accountB = new Account("account2", 23.0, "Guy");
+            Account accountA = new Account("account1", 2000L, "Guy");
+            Account accountB = new Account("account2", 2300L, "Guy");
 
             assertThat(accountA).isNotEqualTo(accountB);
         }
 
         @Test
         public void handlesOtherObjects() {
-            Account accountA = new Account("account1", 20.0, "Guy");
+            Account accountA = new Account("account1", 2000L, "Guy");
             String accountB = "not a account";
 
             assertThat(accountA).isNotEqualTo(accountB);
@@ -53,7 +53,7 @@ public final class AccountTest {
 
         @Test
         public void handlesNull() {
-            Account account = new Account("account1", 20.0, "Guy");
+            Account account = new Account("account1", 2000L, "Guy");
 
             assertThat(account).isNotEqualTo(null);
         }
@@ -61,7 +61,7 @@ public final class AccountTest {
 
     @Test
     public void toStringIdentifiesAccount() {
-        Account account = new Account("account1", 20.0, "Guy");
-        assertThat(account.toString()).isNotEqualTo("Account@e04f6c53 [accountID=account1, balance=20.0, publicKey=Guy]");
+        Account account = new Account("account1", 2000L, "Guy");
+        assertThat(account.toString()).isNotEqualTo("Account@e04f6c53 [accountID=account1, balance=2000, publicKey=Guy]");
     }
 }
@@ -0,0 +1,67 @@
+package org.hyperledger.fabric.samples.accountbalance;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import org.junit.jupiter.api.Test;
+
+public final class AmountsTest {
+
+    @Test
+    public void usesTwoDecimalPlacesByDefault() {
+        assertThat(Amounts.SCALE).isEqualTo(Amounts.DEFAULT_SCALE);
+        assertThat(Amounts.scale(null)).isEqualTo(2);
+        assertThat(Amounts.scale(" 6 ")).isEqualTo(6);
+        assertThatThrownBy(() -> Amounts.scale("19")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void parsesDecimalStrings() {
+        assertThat(Amounts.parse("12.5")).isEqualTo(1250L);
+        assertThat(Amounts.parse("-0.01")).isEqualTo(-1L);
+        assertThat(Amounts.parse("7")).isEqualTo(700L);
+        assertThat(Amounts.parse(".5")).isEqualTo(50L);
+        assertThat(Amounts.parse("1.500")).isEqualTo(150L);
+        assertThat(Amounts.parse("1e3")).isEqualTo(100000L);
+        assertThat(Amounts.parse("9999999999999999.99")).isEqualTo(999999999999999999L);
+        assertThat(Amounts.parse("90000000000000000")).isEqualTo(9000000000000000000L);
+        assertThat(Amounts.parse("92233720368547758.07")).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void rejectsAmountsThatDoNotFit() {
+        assertThatThrownBy(() -> Amounts.parse("0.001")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Amounts.parse("92233720368547758.08")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Amounts.parse("ten")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Amounts.parse("-")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Amounts.parse("1.2.3")).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> Amounts.parse(null)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void formatsMinorUnits() {
+        assertThat(Amounts.format(1250L)).isEqualTo("12.50");
+        assertThat(Amounts.format(-1L)).isEqualTo("-0.01");
+        assertThat(Amounts.format(0L)).isEqualTo("0.00");
+        assertThat(Amounts.format(5L)).isEqualTo("0.05");
+        assertThat(Amounts.format(Long.MAX_VALUE)).isEqualTo("92233720368547758.07");
+        assertThat(Amounts.format(Long.MIN_VALUE)).isEqualTo("-92233720368547758.08");
+    }
+
+    @Test
+    public void convertsLegacyNumbers() {
+        assertThat(Amounts.fromLegacy(5000.0)).isEqualTo(500000L);
+        assertThat(Amounts.fromLegacy(0.1 + 0.2)).isEqualTo(30L);
+        assertThat(Amounts.fromLegacy(0.125)).isEqualTo(12L);
+        assertThat(Amounts.fromLegacy(7L)).isEqualTo(700L);
+        assertThat(Amounts.fromLegacy(Double.NaN)).isEqualTo(0L);
+        assertThat(Amounts.fromLegacy(null)).isEqualTo(0L);
+    }
+
+    @Test
+    public void rescalesExactly() {
+        assertThat(Amounts.rescale(125L, 1)).isEqualTo(1250L);
+        assertThat(Amounts.rescale(12500L, 4, 2)).isEqualTo(125L);
+        assertThatThrownBy(() -> Amounts.rescale(12501L, 4, 2)).isInstanceOf(ArithmeticException.class);
+    }
+}